@@ -40,8 +40,6 @@ import com.google.gson.JsonDeserializer;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
-import com.google.gson.JsonSerializationContext;
-import com.google.gson.JsonSerializer;
 
 import org.joda.time.DateTime;
 import org.json.JSONException;
@@ -53,13 +51,10 @@ import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.lang.reflect.Type;
 import java.net.URL;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.security.NoSuchAlgorithmException;
 import java.text.DateFormat;
 import java.text.DecimalFormat;
@@ -132,6 +127,7 @@ public class BackgroundService extends IntentService {
     public static final String EXTRA_WAYPOINT = "Waypoint";
     public static final String EXTRA_GEOURI = "Geopoint";
     public static final String EXTRA_ID = "RowID";
+    public static final String EXTRA_IDS = "RowIDs";
 
     public static final String DEFAULT_TRACK_NAME = "BackPackTrack";
 
@@ -178,13 +174,30 @@ public class BackgroundService extends IntentService {
     private static final int LIFELINE_TIMEOUT = 20 * 1000;
     public static final String LIFELINE_BASEURL = "https://lifeline.faircode.eu/";
 
-    private static int mEGM96Pointer = -1;
-    private static int mEGM96Offset;
+    private static final float FILTER_MAX_SPEED = 300; // meters per second, faster than airliners
+    private static final float STAY_MIN_CONFIDENCE = 0.2f; // below this a stay is likely drift
+    private static final double SMOOTHING_ACCELERATION = 1; // meters per second squared
+    private static final long SMOOTHING_GAP = 10 * 60 * 1000L; // milliseconds
+
+    private static final KalmanFilter mKalmanFilter = new KalmanFilter(SMOOTHING_ACCELERATION, SMOOTHING_GAP);
+    private static Filters mFilters = null;
+
+    // Reused to read the tracking state on the location paths, intents are handled one at a time
+    private final Location mLastLocation = new Location("state");
+    private final Location mBestLocation = new Location("state");
 
     public BackgroundService() {
         super(TAG);
     }
 
+    @Override
+    public void onDestroy() {
+        // The process may be killed once idle, so buffered trackpoints are written before
+        // Intents queued in a burst still share a batch
+        DatabaseHelper.getInstance(this).flushLocations();
+        super.onDestroy();
+    }
+
     @Override
     protected void onHandleIntent(Intent intent) {
         PowerManager.WakeLock wakeLock = null;
@@ -310,15 +323,16 @@ public class BackgroundService extends IntentService {
 
     private void handleActivity(Intent intent) {
         // Get preferences
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-        int pref_confidence = Integer.parseInt(prefs.getString(SettingsFragment.PREF_RECOGNITION_CONFIDENCE, SettingsFragment.DEFAULT_RECOGNITION_CONFIDENCE));
-        boolean pref_tilting = prefs.getBoolean(SettingsFragment.PREF_RECOGNITION_TILTING, SettingsFragment.DEFAULT_RECOGNITION_TILTING);
-        boolean pref_known = prefs.getBoolean(SettingsFragment.PREF_RECOGNITION_KNOWN, SettingsFragment.DEFAULT_RECOGNITION_KNOWN);
-        boolean pref_unknown = prefs.getBoolean(SettingsFragment.PREF_RECOGNITION_UNKNOWN, SettingsFragment.DEFAULT_RECOGNITION_UNKNOWN);
+        TrackingSettings settings = TrackingSettings.get(this);
+        int pref_confidence = settings.recognition_confidence;
+        boolean pref_tilting = settings.recognition_tilting;
+        boolean pref_known = settings.recognition_known;
+        boolean pref_unknown = settings.recognition_unknown;
 
         // Get last activity
-        int lastActivity = prefs.getInt(SettingsFragment.PREF_LAST_ACTIVITY, DetectedActivity.STILL);
-        long lastTime = prefs.getLong(SettingsFragment.PREF_LAST_ACTIVITY_TIME, -1);
+        TrackingState state = TrackingState.getInstance(this);
+        int lastActivity = state.getLastActivity();
+        long lastTime = state.getLastActivityTime();
         boolean lastStill = (lastActivity == DetectedActivity.STILL);
 
         // Get detected activity
@@ -326,17 +340,9 @@ public class BackgroundService extends IntentService {
         List<DetectedActivity> listProbable = activityResult.getProbableActivities();
 
         // Persist probably activities
-        if (prefs.getBoolean(SettingsFragment.PREF_RECOGNITION_HISTORY, SettingsFragment.DEFAULT_RECOGNITION_HISTORY)) {
-            DatabaseHelper dh = null;
-            try {
-                dh = new DatabaseHelper(this);
-                long time = new Date().getTime();
-                for (DetectedActivity act : listProbable)
-                    dh.insertActivityType(time, act.getType(), act.getConfidence());
-            } finally {
-                if (dh != null)
-                    dh.close();
-            }
+        if (settings.recognition_history) {
+            long time = new Date().getTime();
+            DatabaseHelper.getInstance(this).insertActivityTypes(time, new ArrayList<DetectedActivity>(listProbable));
         }
 
         DetectedActivity activity = listProbable.get(0);
@@ -393,15 +399,11 @@ public class BackgroundService extends IntentService {
         if (activity.getConfidence() > pref_confidence) {
             // Persist probable activity
             Log.i(TAG, "New activity=" + activity);
-            SharedPreferences.Editor editor = prefs.edit();
-            editor.putInt(SettingsFragment.PREF_LAST_ACTIVITY, activity.getType());
-            editor.putInt(SettingsFragment.PREF_LAST_CONFIDENCE, activity.getConfidence());
-            editor.putLong(SettingsFragment.PREF_LAST_ACTIVITY_TIME, time);
-            editor.apply();
+            state.setLastActivity(activity.getType(), activity.getConfidence(), time);
 
             // Update activity duration
             if (lastTime >= 0)
-                new DatabaseHelper(this).updateActivity(lastTime, lastActivity, time - lastTime).close();
+                DatabaseHelper.getInstance(this).updateActivity(lastTime, lastActivity, time - lastTime);
 
             // Debug
             if (Util.debugMode(this) && lastActivity != activity.getType())
@@ -414,10 +416,10 @@ public class BackgroundService extends IntentService {
             int act = activity.getType();
             boolean still = (act == DetectedActivity.STILL);
             boolean onfoot = (act == DetectedActivity.ON_FOOT || act == DetectedActivity.WALKING || act == DetectedActivity.RUNNING);
-            boolean pref_recognize_steps = prefs.getBoolean(SettingsFragment.PREF_RECOGNITION_STEPS, SettingsFragment.DEFAULT_RECOGNITION_STEPS);
-            boolean pref_unknown_steps = prefs.getBoolean(SettingsFragment.PREF_RECOGNITION_UNKNOWN_STEPS, SettingsFragment.DEFAULT_RECOGNITION_UNKNOWN_STEPS);
-            boolean pref_auto_enabled = prefs.getBoolean(SettingsFragment.PREF_AUTO_ENABLED, SettingsFragment.DEFAULT_AUTO_ENABLED);
-            boolean pref_auto_still = prefs.getBoolean(SettingsFragment.PREF_AUTO_STILL, SettingsFragment.DEFAULT_AUTO_STILL);
+            boolean pref_recognize_steps = settings.recognition_steps;
+            boolean pref_unknown_steps = settings.recognition_unknown_steps;
+            boolean pref_auto_enabled = settings.auto_enabled;
+            boolean pref_auto_still = settings.auto_still;
             if (pref_unknown_steps && act == DetectedActivity.UNKNOWN)
                 onfoot = true;
 
@@ -426,9 +428,7 @@ public class BackgroundService extends IntentService {
                 Log.i(TAG, "Last still=" + lastStill + " still=" + still);
 
                 // Restart activity recognition if needed
-                int intervalStill = Integer.parseInt(prefs.getString(SettingsFragment.PREF_RECOGNITION_INTERVAL_STILL, SettingsFragment.DEFAULT_RECOGNITION_INTERVAL_STILL));
-                int intervalMoving = Integer.parseInt(prefs.getString(SettingsFragment.PREF_RECOGNITION_INTERVAL_MOVING, SettingsFragment.DEFAULT_RECOGNITION_INTERVAL_MOVING));
-                if (intervalStill != intervalMoving) {
+                if (settings.recognition_interval_still != settings.recognition_interval_moving) {
                     stopActivityRecognition(this);
                     startActivityRecognition(this);
                 }
@@ -478,6 +478,7 @@ public class BackgroundService extends IntentService {
 
     private void handleLocationUpdate(Intent intent) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        TrackingSettings settings = TrackingSettings.get(this);
 
         // Process location update
         int locationType = prefs.getInt(SettingsFragment.PREF_LOCATION_TYPE, -1);
@@ -492,55 +493,31 @@ public class BackgroundService extends IntentService {
             return;
         }
 
-        // Filter inaccurate location
-        int pref_inaccurate = Integer.parseInt(prefs.getString(SettingsFragment.PREF_INACCURATE, SettingsFragment.DEFAULT_INACCURATE));
-        if (!location.hasAccuracy() || location.getAccuracy() > pref_inaccurate) {
-            Log.i(TAG, "Filtering inaccurate location=" + location);
-            return;
-        }
-
-        // Filter old locations
-        Location lastLocation = LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_LAST_LOCATION, null));
-        if (lastLocation != null && location.getTime() <= lastLocation.getTime()) {
-            Log.i(TAG, "Location is older than last location, location=" + location);
+        // Filter inaccurate and old locations
+        Location lastLocation = readLastLocation();
+        Filters filters = getFilters(settings);
+        if (!filters.update.accept(lastLocation, location))
             return;
-        }
 
         // Correct altitude
         correctAltitude(location, this);
 
         // Persist better location
-        Location bestLocation = LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_BEST_LOCATION, null));
+        Location bestLocation = readBestLocation();
         if (isBetterLocation(bestLocation, location)) {
             Log.i(TAG, "Better location=" + location);
-            SharedPreferences.Editor editor = prefs.edit();
-            editor.putInt(SettingsFragment.PREF_STATE, STATE_ACQUIRED);
-            editor.putString(SettingsFragment.PREF_BEST_LOCATION, LocationSerializer.serialize(location));
-            editor.apply();
+            TrackingState.getInstance(this).setBestLocation(location);
+            prefs.edit().putInt(SettingsFragment.PREF_STATE, STATE_ACQUIRED).apply();
             showStateNotification(this);
         }
 
-        // Check altitude
-        boolean pref_altitude = prefs.getBoolean(SettingsFragment.PREF_ALTITUDE, SettingsFragment.DEFAULT_ALTITUDE);
-        if (!location.hasAltitude() && pref_altitude) {
-            Log.i(TAG, "No altitude, but preferred, location=" + location);
+        // Check altitude and accuracy
+        LocationFilter acquire = (locationType == LOCATION_WAYPOINT ? filters.acquireWaypoint : filters.acquireTrackpoint);
+        if (!acquire.accept(lastLocation, location))
             return;
-        }
-
-        // Check accuracy
-        int pref_accuracy;
-        if (locationType == LOCATION_WAYPOINT)
-            pref_accuracy = Integer.parseInt(prefs.getString(SettingsFragment.PREF_WP_ACCURACY, SettingsFragment.DEFAULT_WP_ACCURACY));
-        else
-            pref_accuracy = Integer.parseInt(prefs.getString(SettingsFragment.PREF_TP_ACCURACY, SettingsFragment.DEFAULT_TP_ACCURACY));
-        if (!location.hasAccuracy() || location.getAccuracy() > pref_accuracy) {
-            Log.i(TAG, "Accuracy not reached, location=" + location);
-            return;
-        }
 
         // Check pressure
-        boolean pressure_enabled = prefs.getBoolean(SettingsFragment.PREF_PRESSURE_ENABLED, SettingsFragment.DEFAULT_PRESSURE_ENABLED);
-        if (pressure_enabled)
+        if (settings.pressure_enabled)
             if (prefs.getFloat(SettingsFragment.PREF_PRESSURE_VALUE, -1) < 0) {
                 Log.i(TAG, "Pressure not available yet");
                 return;
@@ -553,7 +530,7 @@ public class BackgroundService extends IntentService {
     }
 
     private void handlePassiveLocationUpdate(Intent intent) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        TrackingSettings settings = TrackingSettings.get(this);
 
         // Process passive location update
         Location location = (Location) intent.getExtras().get(LocationManager.KEY_LOCATION_CHANGED);
@@ -561,76 +538,26 @@ public class BackgroundService extends IntentService {
         if (location == null || (location.getLatitude() == 0.0 && location.getLongitude() == 0.0))
             return;
 
-        // Filter inaccurate passive locations
-        int pref_inaccurate = Integer.parseInt(prefs.getString(SettingsFragment.PREF_PASSIVE_INACCURATE, SettingsFragment.DEFAULT_PASSIVE_INACCURATE));
-        if (!location.hasAccuracy() || location.getAccuracy() > pref_inaccurate) {
-            Log.i(TAG, "Filtering inaccurate passive location=" + location);
-            return;
-        }
-
-        // Get last location
-        Location lastLocation = LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_LAST_LOCATION, null));
-        if (lastLocation == null) {
-            Log.i(TAG, "Passive location without last location, location=" + location);
-            return;
-        }
-
-        // Filter old locations
-        if (location.getTime() <= lastLocation.getTime()) {
-            Log.i(TAG, "Passive location is older than last location, location=" + location);
+        // Filter inaccurate and old passive locations
+        Location lastLocation = readLastLocation();
+        Filters filters = getFilters(settings);
+        if (!filters.passive.accept(lastLocation, location))
             return;
-        }
 
         // Correct altitude
         correctAltitude(location, this);
 
-        // Filter nearby passive locations
-        int pref_nearby = Integer.parseInt(prefs.getString(SettingsFragment.PREF_PASSIVE_NEARBY, SettingsFragment.DEFAULT_PASSIVE_NEARBY));
-        if (Util.distance(lastLocation, location) < pref_nearby &&
-                (lastLocation.hasAccuracy() ? lastLocation.getAccuracy() : Float.MAX_VALUE) <=
-                        (location.hasAccuracy() ? location.getAccuracy() : Float.MAX_VALUE)) {
-            Log.i(TAG, "Filtering nearby passive location=" + location);
-            return;
-        }
-
-        float bchange = 0;
-        double achange = 0;
-        boolean update = false;
-
-        // Handle bearing change
-        if (location.hasBearing()) {
-            int pref_bearing_change = Integer.parseInt(prefs.getString(SettingsFragment.PREF_PASSIVE_BEARING, SettingsFragment.DEFAULT_PASSIVE_BEARING));
-            bchange = Math.abs(lastLocation.getBearing() - location.getBearing());
-            if (bchange > 180)
-                bchange = 360 - bchange;
-            if (!lastLocation.hasBearing() || bchange > pref_bearing_change) {
-                Log.i(TAG, "Bearing changed to " + location.getBearing());
-                update = true;
-            }
-        }
-
-        // Handle altitude change
-        if (location.hasAltitude()) {
-            int pref_altitude_change = Integer.parseInt(prefs.getString(SettingsFragment.PREF_PASSIVE_ALTITUDE, SettingsFragment.DEFAULT_PASSIVE_ALTITUDE));
-            achange = Math.abs(lastLocation.getAltitude() - location.getAltitude());
-            if (!lastLocation.hasAltitude() || achange > pref_altitude_change) {
-                Log.i(TAG, "Altitude changed to " + location.getAltitude());
-                update = true;
-            }
-        }
+        // Filter jumps and nearby passive locations, keep bearing and altitude changes
+        if (filters.passiveChange.accept(lastLocation, location)) {
+            float bchange = (location.hasBearing() ? LocationFilter.getBearingChange(lastLocation, location) : 0);
+            double achange = (location.hasAltitude() ? Math.abs(lastLocation.getAltitude() - location.getAltitude()) : 0);
+            Log.i(TAG, "Bearing changed to " + location.getBearing() + " altitude changed to " + location.getAltitude());
+            smoothLocation(location, this);
 
-        if (update) {
             // Persist new location
-            prefs.edit().putString(SettingsFragment.PREF_LAST_LOCATION, LocationSerializer.serialize(location)).apply();
-            DatabaseHelper dh = null;
-            try {
-                dh = new DatabaseHelper(this);
-                int altitude_type = (location.hasAltitude() ? ALTITUDE_GPS : ALTITUDE_NONE);
-                dh.insertLocation(location, altitude_type, null).close();
-            } finally {
-                if (dh != null)
-                    dh.close();
-            }
+            TrackingState.getInstance(this).setLastLocation(location);
+            int altitude_type = (location.hasAltitude() ? ALTITUDE_GPS : ALTITUDE_NONE);
+            DatabaseHelper.getInstance(this).insertLocation(location, altitude_type, null);
 
             // Feedback
             showStateNotification(this);
@@ -672,7 +599,7 @@ public class BackgroundService extends IntentService {
 
         // Process location time-out
         int locationType = prefs.getInt(SettingsFragment.PREF_LOCATION_TYPE, -1);
-        Location bestLocation = LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_BEST_LOCATION, null));
+        Location bestLocation = TrackingState.getInstance(this).getBestLocation();
         Log.i(TAG, "Timeout best location=" + bestLocation + " type=" + locationType);
 
         stopLocating(this);
@@ -748,7 +675,7 @@ public class BackgroundService extends IntentService {
             if (name == null)
                 name = SimpleDateFormat.getDateTimeInstance(SimpleDateFormat.MEDIUM, SimpleDateFormat.MEDIUM).format(new Date());
 
-            new DatabaseHelper(this).insertLocation(location, altitude_type, name).close();
+            DatabaseHelper.getInstance(this).insertLocation(location, altitude_type, name);
             Util.toast(getString(R.string.msg_added, name), Toast.LENGTH_LONG, this);
         }
     }
@@ -785,7 +712,7 @@ public class BackgroundService extends IntentService {
 
         // Delete data on request
         if (delete)
-            new DatabaseHelper(this).deleteTrackpoints(from, to).close();
+            DatabaseHelper.getInstance(this).deleteTrackpoints(from, to);
 
         // View file
         if (ACTION_SHARE_GPX.equals(intent.getAction()) || ACTION_SHARE_KML.equals(intent.getAction())) {
@@ -857,7 +784,7 @@ public class BackgroundService extends IntentService {
 
         // Delete data on request
         if (delete)
-            new DatabaseHelper(this).deleteTrackpoints(from, to).close();
+            DatabaseHelper.getInstance(this).deleteTrackpoints(from, to);
 
         // Feedback
         if (ACTION_UPLOAD_GPX.equals(intent.getAction()) && !intent.getBooleanExtra(EXTRA_JOB, false)) {
@@ -899,20 +826,28 @@ public class BackgroundService extends IntentService {
             Log.i(TAG, "Daily task at " + SimpleDateFormat.getDateTimeInstance().format(time));
 
             // Reset step counter
-            new DatabaseHelper(this).updateSteps(time, 0).close();
+            DatabaseHelper.getInstance(this).updateSteps(time, 0);
 
             // Finalize last activity
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-            int lastActivity = prefs.getInt(SettingsFragment.PREF_LAST_ACTIVITY, DetectedActivity.STILL);
-            long lastTime = prefs.getLong(SettingsFragment.PREF_LAST_ACTIVITY_TIME, -1);
+            TrackingState state = TrackingState.getInstance(this);
+            int lastActivity = state.getLastActivity();
+            long lastTime = state.getLastActivityTime();
             if (lastTime >= 0) {
-                new DatabaseHelper(this).updateActivity(lastTime, lastActivity, time - lastTime).close();
-                prefs.edit().putLong(SettingsFragment.PREF_LAST_ACTIVITY_TIME, time).apply();
-                new DatabaseHelper(this).updateActivity(time, lastActivity, 0).close();
+                DatabaseHelper.getInstance(this).updateActivity(lastTime, lastActivity, time - lastTime);
+                state.setLastActivityTime(time);
+                DatabaseHelper.getInstance(this).updateActivity(time, lastActivity, 0);
             }
 
+            // Archive old trackpoints
+            int archive = Integer.parseInt(prefs.getString(SettingsFragment.PREF_ARCHIVE_AGE, SettingsFragment.DEFAULT_ARCHIVE_AGE));
+            if (archive > 0)
+                DatabaseHelper.getInstance(this).archiveTrackpoints(time - archive * 24L * 3600L * 1000L);
+
+            Log.i(TAG, "Location filters\n" + LocationFilter.getStatistics());
+
             // Optimize database
-            new DatabaseHelper(this).vacuum().close();
+            DatabaseHelper.getInstance(this).vacuum();
         } finally {
             startDaily(this);
             showStateNotification(this);
@@ -936,7 +871,7 @@ public class BackgroundService extends IntentService {
             String apikey_fio = prefs.getString(SettingsFragment.PREF_WEATHER_APIKEY_FIO, null);
 
             // Get last location
-            Location lastLocation = BackgroundService.LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_LAST_LOCATION, null));
+            Location lastLocation = getLastLocation(this);
             if (lastLocation == null)
                 return;
 
@@ -953,10 +888,9 @@ public class BackgroundService extends IntentService {
             // Select best weather station
             for (Weather weather : listWeather) {
                 // Persist weather
-                DatabaseHelper dh = new DatabaseHelper(this);
+                DatabaseHelper dh = DatabaseHelper.getInstance(this);
                 if (dh.insertWeather(weather, lastLocation) && Util.debugMode(this))
                     Util.toast(getString(R.string.title_weather_settings), Toast.LENGTH_SHORT, this);
-                dh.close();
 
                 if (!weather.isEmpty()) {
                     // Update reference pressure
@@ -979,12 +913,11 @@ public class BackgroundService extends IntentService {
             Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
 
             // Insert no weather
-            DatabaseHelper dh = new DatabaseHelper(this);
+            DatabaseHelper dh = DatabaseHelper.getInstance(this);
             Weather weather = new Weather();
             weather.time = new Date().getTime();
             if (dh.insertWeather(weather, null) && Util.debugMode(this))
                 Util.toast(getString(R.string.title_weather_settings), Toast.LENGTH_SHORT, this);
-            dh.close();
 
         } finally {
             startWeatherUpdates(this);
@@ -1006,28 +939,28 @@ public class BackgroundService extends IntentService {
                 long last = prefs.getLong(SettingsFragment.PREF_LIFELINE_LAST, 0);
                 int interval = Integer.parseInt(prefs.getString(SettingsFragment.PREF_LIFELINE_METERED_INTERVAL, SettingsFragment.DEFAULT_LIFELINE_METERED_INTERVAL));
                 if (!Util.isMeteredNetwork(this) || interval == 0 || last + 60 * 1000L * interval < new Date().getTime()) {
-                    DatabaseHelper dh = null;
                     try {
-                        long id = intent.getLongExtra(EXTRA_ID, 0);
-                        if (id != 0) {
-                            dh = new DatabaseHelper(this);
-                            Location location = dh.getLocation(id);
-                            postLocation(id, location, location.getProvider());
-                        }
+                        long[] ids = intent.getLongArrayExtra(EXTRA_IDS);
+                        if (ids == null)
+                            ids = new long[]{intent.getLongExtra(EXTRA_ID, 0)};
+                        for (long id : ids)
+                            if (id != 0) {
+                                Location location = DatabaseHelper.getInstance(this).getLocation(id);
+                                if (location == null)
+                                    Log.w(TAG, "Lifeline location id=" + id + " not found");
+                                else
+                                    postLocation(id, location, location.getProvider());
+                            }
                     } catch (Throwable ex) {
                         Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-                    } finally {
-                        if (dh != null)
-                            dh.close();
                     }
                 } else if (Util.isMeteredNetwork(this))
                     JobExecutionService.schedule(JobExecutionService.JOB_CONNECTIVITY, null, this);
             } else
                 JobExecutionService.schedule(JobExecutionService.JOB_CONNECTIVITY, null, this);
 
-        DatabaseHelper dh = new DatabaseHelper(this);
+        DatabaseHelper dh = DatabaseHelper.getInstance(this);
         prefs.edit().putInt(SettingsFragment.PREF_LIFELINE_STATE, dh.getUnsentLocationCount()).apply();
-        dh.close();
     }
 
     private void handleConnectivity(Intent intent) {
@@ -1052,11 +985,10 @@ public class BackgroundService extends IntentService {
             // Update lifeline
             if (prefs.getBoolean(SettingsFragment.PREF_LIFELINE_ENABLED, SettingsFragment.DEFAULT_LIFELINE_ENABLED))
                 try {
-                    DatabaseHelper dh = null;
                     Cursor cursor = null;
                     try {
-                        dh = new DatabaseHelper(this);
-                        cursor = dh.getUnsentLocations();
+                        cursor = DatabaseHelper.getInstance(this).flushLocations().getUnsentLocations(new String[]{
+                                "ID", "time", "provider", "latitude", "longitude", "altitude", "accuracy", "name", "deleted"});
 
                         int colID = cursor.getColumnIndex("ID");
                         int colTime = cursor.getColumnIndex("time");
@@ -1087,8 +1019,6 @@ public class BackgroundService extends IntentService {
                     } finally {
                         if (cursor != null)
                             cursor.close();
-                        if (dh != null)
-                            dh.close();
                     }
                 } catch (Throwable ex) {
                     Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
@@ -1156,7 +1086,7 @@ public class BackgroundService extends IntentService {
             }
 
             if (location != null)
-                new DatabaseHelper(this).sentLocation(id, true).close();
+                DatabaseHelper.getInstance(this).sentLocation(id, true);
 
             prefs.edit().putLong(SettingsFragment.PREF_LIFELINE_LAST, new Date().getTime()).apply();
 
@@ -1245,7 +1175,7 @@ public class BackgroundService extends IntentService {
                 PendingIntent pi = PendingIntent.getService(context, 0, activityIntent, PendingIntent.FLAG_UPDATE_CURRENT);
 
                 SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-                boolean still = (prefs.getInt(SettingsFragment.PREF_LAST_ACTIVITY, DetectedActivity.STILL) == DetectedActivity.STILL);
+                boolean still = (TrackingState.getInstance(context).getLastActivity() == DetectedActivity.STILL);
                 String setting = (still ? SettingsFragment.PREF_RECOGNITION_INTERVAL_STILL : SettingsFragment.PREF_RECOGNITION_INTERVAL_MOVING);
                 String standard = (still ? SettingsFragment.DEFAULT_RECOGNITION_INTERVAL_STILL : SettingsFragment.DEFAULT_RECOGNITION_INTERVAL_MOVING);
                 int interval = Integer.parseInt(prefs.getString(setting, standard));
@@ -1266,11 +1196,7 @@ public class BackgroundService extends IntentService {
                 PendingIntent pi = PendingIntent.getService(context, 0, activityIntent, PendingIntent.FLAG_UPDATE_CURRENT);
                 ActivityRecognition.ActivityRecognitionApi.removeActivityUpdates(gac, pi);
 
-                SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-                SharedPreferences.Editor editor = prefs.edit();
-                editor.remove(SettingsFragment.PREF_LAST_ACTIVITY);
-                editor.remove(SettingsFragment.PREF_LAST_CONFIDENCE);
-                editor.apply();
+                TrackingState.getInstance(context).clearLastActivity();
                 Log.i(TAG, "Canceled activity updates");
             }
         }
@@ -1385,7 +1311,7 @@ public class BackgroundService extends IntentService {
         boolean recognition = prefs.getBoolean(SettingsFragment.PREF_RECOGNITION_ENABLED, SettingsFragment.DEFAULT_RECOGNITION_ENABLED);
         boolean recognizeSteps = prefs.getBoolean(SettingsFragment.PREF_RECOGNITION_STEPS, SettingsFragment.DEFAULT_RECOGNITION_STEPS);
         boolean pref_unknown_steps = prefs.getBoolean(SettingsFragment.PREF_RECOGNITION_UNKNOWN_STEPS, SettingsFragment.DEFAULT_RECOGNITION_UNKNOWN_STEPS);
-        int activity = prefs.getInt(SettingsFragment.PREF_LAST_ACTIVITY, DetectedActivity.STILL);
+        int activity = TrackingState.getInstance(context).getLastActivity();
         boolean onfoot = (activity == DetectedActivity.ON_FOOT || activity == DetectedActivity.WALKING || activity == DetectedActivity.RUNNING);
         if (pref_unknown_steps && activity == DetectedActivity.UNKNOWN)
             onfoot = true;
@@ -1440,8 +1366,8 @@ public class BackgroundService extends IntentService {
         SharedPreferences.Editor editor = prefs.edit();
         editor.putInt(SettingsFragment.PREF_STATE, STATE_IDLE);
         editor.remove(SettingsFragment.PREF_LOCATION_TYPE);
-        editor.remove(SettingsFragment.PREF_BEST_LOCATION);
         editor.apply();
+        TrackingState.getInstance(context).setBestLocation(null);
         showStateNotification(context);
     }
 
@@ -1553,8 +1479,7 @@ public class BackgroundService extends IntentService {
     }
 
     private boolean isBetterLocation(Location prev, Location current) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-        boolean pref_altitude = prefs.getBoolean(SettingsFragment.PREF_ALTITUDE, SettingsFragment.DEFAULT_ALTITUDE);
+        boolean pref_altitude = TrackingSettings.get(this).altitude;
         return (prev == null ||
                 ((!pref_altitude || !prev.hasAltitude() || current.hasAltitude()) &&
                         (current.hasAccuracy() ? current.getAccuracy() : Float.MAX_VALUE) <
@@ -1562,23 +1487,22 @@ public class BackgroundService extends IntentService {
     }
 
     private void handleLocation(int locationType, Location location) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        TrackingSettings settings = TrackingSettings.get(this);
 
         // Filter nearby locations
-        int pref_nearby = Integer.parseInt(prefs.getString(SettingsFragment.PREF_NEARBY, SettingsFragment.DEFAULT_NEARBY));
-        Location lastLocation = LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_LAST_LOCATION, null));
+        Location lastLocation = readLastLocation();
         if (locationType == LOCATION_TRACKPOINT || locationType == LOCATION_WAYPOINT || locationType == LOCATION_AUTO ||
-                lastLocation == null || Util.distance(lastLocation, location) >= pref_nearby ||
-                (lastLocation.hasAccuracy() ? lastLocation.getAccuracy() : Float.MAX_VALUE) >
-                        (location.hasAccuracy() ? location.getAccuracy() : Float.MAX_VALUE)) {
+                getFilters(settings).periodic.accept(lastLocation, location)) {
             // New location
             Log.i(TAG, "New location=" + location + " type=" + locationType);
 
+            if (locationType == LOCATION_TRACKPOINT || locationType == LOCATION_PERIODIC)
+                smoothLocation(location, this);
+
             int altitude_type = (location.hasAltitude() ? ALTITUDE_GPS : ALTITUDE_NONE);
 
             // Derive altitude from pressure
-            boolean pressure_enabled = prefs.getBoolean(SettingsFragment.PREF_PRESSURE_ENABLED, SettingsFragment.DEFAULT_PRESSURE_ENABLED);
-            if (pressure_enabled) {
+            if (settings.pressure_enabled) {
                 float altitude = PressureService.getAltitude(location, this);
                 if (!Float.isNaN(altitude)) {
                     location.setAltitude(altitude);
@@ -1590,12 +1514,12 @@ public class BackgroundService extends IntentService {
             try {
                 if (!location.hasAltitude() && Util.isConnected(this)) {
                     if (locationType == LOCATION_WAYPOINT || locationType == LOCATION_AUTO) {
-                        if (prefs.getBoolean(SettingsFragment.PREF_ALTITUDE_WAYPOINT, SettingsFragment.DEFAULT_ALTITUDE_WAYPOINT)) {
+                        if (settings.altitude_waypoint) {
                             GoogleElevationApi.getElevation(location, this);
                             altitude_type = ALTITUDE_LOOKUP;
                         }
                     } else {
-                        if (prefs.getBoolean(SettingsFragment.PREF_ALTITUDE_TRACKPOINT, SettingsFragment.DEFAULT_ALTITUDE_TRACKPOINT)) {
+                        if (settings.altitude_trackpoint) {
                             GoogleElevationApi.getElevation(location, this);
                             altitude_type = ALTITUDE_LOOKUP;
                         }
@@ -1623,15 +1547,8 @@ public class BackgroundService extends IntentService {
             }
 
             // Persist new location
-            prefs.edit().putString(SettingsFragment.PREF_LAST_LOCATION, LocationSerializer.serialize(location)).apply();
-            DatabaseHelper dh = null;
-            try {
-                dh = new DatabaseHelper(this);
-                dh.insertLocation(location, altitude_type, waypointName).close();
-            } finally {
-                if (dh != null)
-                    dh.close();
-            }
+            TrackingState.getInstance(this).setLastLocation(location);
+            DatabaseHelper.getInstance(this).insertLocation(location, altitude_type, waypointName);
 
             // Feedback
             showStateNotification(this);
@@ -1645,104 +1562,61 @@ public class BackgroundService extends IntentService {
 
             if (locationType == LOCATION_TRACKPOINT || locationType == LOCATION_PERIODIC)
                 handleStationary(location);
-        } else
-            Log.i(TAG, "Filtered location=" + location);
+        }
     }
 
     private void handleStationary(Location location) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-
         // Get preferences
-        boolean enabled = prefs.getBoolean(SettingsFragment.PREF_AUTO_ENABLED, SettingsFragment.DEFAULT_AUTO_ENABLED);
-        int time = Integer.parseInt(prefs.getString(SettingsFragment.PREF_AUTO_TIME, SettingsFragment.DEFAULT_AUTO_TIME));
-        int distance = Integer.parseInt(prefs.getString(SettingsFragment.PREF_AUTO_DISTANCE, SettingsFragment.DEFAULT_AUTO_DISTANCE));
-        int duplicate = Integer.parseInt(prefs.getString(SettingsFragment.PREF_AUTO_DUPLICATE, SettingsFragment.DEFAULT_AUTO_DUPLICATE));
+        TrackingSettings settings = TrackingSettings.get(this);
+        boolean enabled = settings.auto_enabled;
+        int time = settings.auto_time;
+        int distance = settings.auto_distance;
+        int duplicate = settings.auto_duplicate;
 
         if (enabled) {
-            // Get last stationary
-            Location lastStationary = LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_LAST_STATIONARY, null));
-            if (lastStationary != null)
-                if (location.distanceTo(lastStationary) > distance) {
-                    // Check stationary time
-                    if (location.getTime() - lastStationary.getTime() >= time * 60 * 1000) {
-                        // Use averages
-                        lastStationary.setLatitude(prefs.getFloat(SettingsFragment.PREF_LAST_STATIONARY_LAT, (float) lastStationary.getLatitude()));
-                        lastStationary.setLongitude(prefs.getFloat(SettingsFragment.PREF_LAST_STATIONARY_LON, (float) lastStationary.getLongitude()));
-                        lastStationary.setAltitude(prefs.getFloat(SettingsFragment.PREF_LAST_STATIONARY_ALT, (float) lastStationary.getAltitude()));
-
-                        // Check if nearby waypoint
-                        boolean exists = false;
-                        if (duplicate > 0) {
-                            DatabaseHelper dh = null;
-                            Cursor cursor = null;
-                            try {
-                                dh = new DatabaseHelper(this);
-                                cursor = dh.getLocations(0, Long.MAX_VALUE, false, true, false, duplicate);
-                                int colLatitude = cursor.getColumnIndex("latitude");
-                                int colLongitude = cursor.getColumnIndex("longitude");
-                                while (cursor.moveToNext()) {
-                                    Location wpt = new Location("waypoint");
-                                    wpt.setLatitude(cursor.getDouble(colLatitude));
-                                    wpt.setLongitude(cursor.getDouble(colLongitude));
-                                    if (wpt.distanceTo(lastStationary) <= distance) {
-                                        Log.i(TAG, "Stationary exists name=" + cursor.getString(cursor.getColumnIndex("name")));
-                                        exists = true;
-                                        break;
-                                    }
-                                }
-                            } finally {
-                                if (cursor != null)
-                                    cursor.close();
-                                if (dh != null)
-                                    dh.close();
-                            }
+            StayDetector.Stay stay = TrackingState.getInstance(this).addStationary(location, distance, time * 60 * 1000L);
+            if (stay != null) {
+                Log.i(TAG, stay.toString());
+                if (stay.confidence < STAY_MIN_CONFIDENCE)
+                    return;
+
+                // Check if nearby waypoint
+                if (duplicate > 0) {
+                    DatabaseHelper dh = DatabaseHelper.getInstance(this);
+                    for (DatabaseHelper.NearbyWaypoint wpt : dh.getWaypointsWithin(stay.latitude, stay.longitude, distance))
+                        // Only the last duplicate waypoints count
+                        if (dh.getNewerWaypointCount(wpt.time, duplicate) < duplicate) {
+                            Log.i(TAG, "Stationary exists name=" + wpt.name);
+                            return;
                         }
-
-                        // Auto waypoint
-                        if (!exists)
-                            handleLocation(LOCATION_AUTO, lastStationary);
-                    }
-
-                    // Delete average
-                    SharedPreferences.Editor editor = prefs.edit();
-                    editor.remove(SettingsFragment.PREF_LAST_STATIONARY_AVG);
-                    editor.remove(SettingsFragment.PREF_LAST_STATIONARY_LAT);
-                    editor.remove(SettingsFragment.PREF_LAST_STATIONARY_LON);
-                    editor.remove(SettingsFragment.PREF_LAST_STATIONARY_ALT);
-                    editor.apply();
-                } else {
-                    int count = prefs.getInt(SettingsFragment.PREF_LAST_STATIONARY_AVG, 1);
-                    float lat = prefs.getFloat(SettingsFragment.PREF_LAST_STATIONARY_LAT, (float) lastStationary.getLatitude());
-                    float lon = prefs.getFloat(SettingsFragment.PREF_LAST_STATIONARY_LON, (float) lastStationary.getLongitude());
-                    float alt = prefs.getFloat(SettingsFragment.PREF_LAST_STATIONARY_ALT, (float) lastStationary.getAltitude());
-
-                    lat = (lat * count + (float) location.getLatitude()) / (count + 1);
-                    lon = (lon * count + (float) location.getLongitude()) / (count + 1);
-                    alt = (alt * count + (float) location.getAltitude()) / (count + 1);
-
-                    SharedPreferences.Editor editor = prefs.edit();
-                    editor.putInt(SettingsFragment.PREF_LAST_STATIONARY_AVG, count + 1);
-                    editor.putFloat(SettingsFragment.PREF_LAST_STATIONARY_LAT, lat);
-                    editor.putFloat(SettingsFragment.PREF_LAST_STATIONARY_LON, lon);
-                    editor.putFloat(SettingsFragment.PREF_LAST_STATIONARY_ALT, alt);
-                    editor.apply();
-
-                    location.setLatitude(lastStationary.getLatitude());
-                    location.setLongitude(lastStationary.getLongitude());
-                    location.setTime(lastStationary.getTime());
                 }
 
-            // Move on
-            prefs.edit().putString(SettingsFragment.PREF_LAST_STATIONARY, LocationSerializer.serialize(location)).apply();
+                // Auto waypoint at the centroid, at the time of arrival
+                Location stationary = new Location(location.getProvider());
+                stationary.setTime(stay.start);
+                stationary.setLatitude(stay.latitude);
+                stationary.setLongitude(stay.longitude);
+                if (!Double.isNaN(stay.altitude))
+                    stationary.setAltitude(stay.altitude);
+                stationary.setAccuracy((float) stay.radius);
+                handleLocation(LOCATION_AUTO, stationary);
+            }
         }
     }
 
+    private static void smoothLocation(Location location, Context context) {
+        if (TrackingSettings.get(context).smoothing)
+            synchronized (mKalmanFilter) {
+                mKalmanFilter.apply(location);
+                Log.i(TAG, "Smoothed location=" + location);
+            }
+    }
+
     private static void correctAltitude(Location location, Context context) {
         if (LocationManager.GPS_PROVIDER.equals(location.getProvider())) {
-            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-            if (prefs.getBoolean(SettingsFragment.PREF_CORRECTION_ENABLED, SettingsFragment.DEFAULT_CORRECTION_ENABLED))
+            if (TrackingSettings.get(context).correction_enabled)
                 try {
-                    double offset = getEGM96Offset(location, context);
+                    double offset = Geoid.getInstance(context).getOffset(location.getLatitude(), location.getLongitude());
                     Log.i(TAG, "Offset=" + offset);
                     location.setAltitude(location.getAltitude() - offset);
                     Log.i(TAG, "Corrected location=" + location);
@@ -1752,44 +1626,6 @@ public class BackgroundService extends IntentService {
         }
     }
 
-    private static double getEGM96Offset(Location location, Context context) throws IOException {
-        InputStream is = null;
-        try {
-            double lat = location.getLatitude();
-            double lon = location.getLongitude();
-
-            int y = (int) Math.floor((90 - lat) * 4);
-            int x = (int) Math.floor((lon >= 0 ? lon : lon + 360) * 4);
-            int p = ((y * 1440) + x) * 2;
-            int o;
-
-            if (mEGM96Pointer >= 0 && p == mEGM96Pointer)
-                o = mEGM96Offset;
-            else {
-                is = context.getAssets().open("WW15MGH.DAC");
-                is.skip(p);
-
-                ByteBuffer bb = ByteBuffer.allocate(2);
-                bb.order(ByteOrder.BIG_ENDIAN);
-                bb.put((byte) is.read());
-                bb.put((byte) is.read());
-                o = bb.getShort(0);
-
-                mEGM96Pointer = p;
-                mEGM96Offset = o;
-            }
-
-            return o / 100d;
-        } finally {
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (IOException ignored) {
-                }
-            }
-        }
-    }
-
     private static void showStateNotification(Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
 
@@ -1801,8 +1637,8 @@ public class BackgroundService extends IntentService {
 
         // Get state
         int state = prefs.getInt(SettingsFragment.PREF_STATE, STATE_IDLE);
-        int activityType = prefs.getInt(SettingsFragment.PREF_LAST_ACTIVITY, DetectedActivity.STILL);
-        Location lastLocation = LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_LAST_LOCATION, null));
+        int activityType = TrackingState.getInstance(context).getLastActivity();
+        Location lastLocation = getLastLocation(context);
 
         // Get title
         String activity = getActivityName(activityType, context);
@@ -1814,15 +1650,7 @@ public class BackgroundService extends IntentService {
             if (lastLocation.hasAltitude())
                 altitude = Long.toString(Math.round(lastLocation.getAltitude()));
         }
-        long steps;
-        DatabaseHelper db = null;
-        try {
-            db = new DatabaseHelper(context);
-            steps = db.getSteps(new Date().getTime());
-        } finally {
-            if (db != null)
-                db.close();
-        }
+        long steps = DatabaseHelper.getInstance(context).getSteps(new Date().getTime());
         String title = context.getString(R.string.msg_notification, activity, bearing, altitude, steps);
 
         // Get text
@@ -1839,7 +1667,7 @@ public class BackgroundService extends IntentService {
         else if (state == STATE_ACQUIRING)
             text = context.getString(R.string.msg_acquiring);
         else if (state == STATE_ACQUIRED) {
-            Location bestLocation = LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_BEST_LOCATION, null));
+            Location bestLocation = TrackingState.getInstance(context).getBestLocation();
             text = context.getString(R.string.msg_acquired,
                     SimpleDateFormat.getDateTimeInstance(SimpleDateFormat.SHORT, SimpleDateFormat.MEDIUM).format(new Date(bestLocation.getTime())),
                     getProviderName(bestLocation, context),
@@ -1935,7 +1763,7 @@ public class BackgroundService extends IntentService {
                 notificationBuilder.addAction(android.R.drawable.ic_menu_close_clear_cancel, context.getString(android.R.string.cancel), piStop);
 
             // Add accept action
-            Location bestLocation = LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_BEST_LOCATION, null));
+            Location bestLocation = TrackingState.getInstance(context).getBestLocation();
             boolean pressure = prefs.getBoolean(SettingsFragment.PREF_PRESSURE_ENABLED, SettingsFragment.DEFAULT_PRESSURE_ENABLED);
             pressure = (pressure ? prefs.getFloat(SettingsFragment.PREF_PRESSURE_VALUE, -1) >= 0 : true);
             if (bestLocation != null && pressure)
@@ -2332,13 +2160,14 @@ public class BackgroundService extends IntentService {
                 " extensions=" + extensions +
                 " from=" + SimpleDateFormat.getDateTimeInstance().format(new Date(from)) +
                 " to=" + SimpleDateFormat.getDateTimeInstance().format(new Date(to)));
-        DatabaseHelper dh = null;
-        Cursor trackPoints = null;
-        Cursor wayPoints = null;
+        DatabaseHelper.LocationPager trackPoints = null;
+        DatabaseHelper.LocationPager wayPoints = null;
         try {
-            dh = new DatabaseHelper(context);
-            trackPoints = dh.getLocations(from, to, true, false, true, 0);
-            wayPoints = dh.getLocations(from, to, false, true, true, 0);
+            // Export the trackpoints up to now
+            DatabaseHelper dh = DatabaseHelper.getInstance(context).flushLocations();
+            String[] columns = (gpx ? GPXFileWriter.COLUMNS : KMLFileWriter.COLUMNS);
+            trackPoints = dh.getLocationPager(columns, from, to, true, false);
+            wayPoints = dh.getLocationPager(columns, from, to, false, true);
             if (gpx)
                 GPXFileWriter.writeGPXFile(new File(fileName), trackName, extensions, trackPoints, wayPoints, context);
             else
@@ -2348,8 +2177,6 @@ public class BackgroundService extends IntentService {
                 wayPoints.close();
             if (trackPoints != null)
                 trackPoints.close();
-            if (dh != null)
-                dh.close();
         }
         return fileName;
     }
@@ -2359,12 +2186,13 @@ public class BackgroundService extends IntentService {
                 " from=" + SimpleDateFormat.getDateTimeInstance().format(new Date(from)) +
                 " to=" + SimpleDateFormat.getDateTimeInstance().format(new Date(to)));
 
-        DatabaseHelper dh = null;
-        Cursor cursor = null;
+        // Buffered trackpoints get an altitude too, this runs in the background
+        DatabaseHelper dh = DatabaseHelper.getInstance(context).flushLocations();
+        DatabaseHelper.LocationPager cursor = null;
         boolean first = true;
         try {
-            dh = new DatabaseHelper(context);
-            cursor = dh.getLocations(from, to, true, true, true, 0);
+            cursor = dh.getLocationPager(
+                    new String[]{"ID", "time", "provider", "latitude", "longitude", "altitude_type"}, from, to, true, true, false);
 
             int colID = cursor.getColumnIndex("ID");
             int colTime = cursor.getColumnIndex("time");
@@ -2403,43 +2231,72 @@ public class BackgroundService extends IntentService {
         } finally {
             if (cursor != null)
                 cursor.close();
-            if (dh != null)
-                dh.close();
         }
     }
 
-    // Serialization
-
-    public static class LocationSerializer implements JsonSerializer<Location> {
-        public JsonElement serialize(Location src, Type typeOfSrc, JsonSerializationContext context) {
-            JsonObject jObject = new JsonObject();
-
-            jObject.addProperty("Provider", src.getProvider());
-            jObject.addProperty("Time", src.getTime());
-            jObject.addProperty("Latitude", src.getLatitude());
-            jObject.addProperty("Longitude", src.getLongitude());
-
-            if (src.hasAltitude())
-                jObject.addProperty("Altitude", src.getAltitude());
+    // Location filters
+
+    // The filter chains of a tracking settings snapshot, which is replaced when the settings change
+    private static class Filters {
+        final TrackingSettings settings;
+        final LocationFilter update;
+        final LocationFilter acquireWaypoint;
+        final LocationFilter acquireTrackpoint;
+        final LocationFilter passive;
+        final LocationFilter passiveChange;
+        final LocationFilter periodic;
+
+        Filters(TrackingSettings settings) {
+            this.settings = settings;
+
+            update = new LocationFilter("update")
+                    .add(LocationFilter.accuracy("inaccurate", settings.inaccurate))
+                    .add(LocationFilter.order(false));
+
+            acquireWaypoint = new LocationFilter("acquire")
+                    .add(LocationFilter.altitude(settings.altitude))
+                    .add(LocationFilter.accuracy("accuracy", settings.wp_accuracy));
+            acquireTrackpoint = new LocationFilter("acquire")
+                    .add(LocationFilter.altitude(settings.altitude))
+                    .add(LocationFilter.accuracy("accuracy", settings.tp_accuracy));
+
+            passive = new LocationFilter("passive")
+                    .add(LocationFilter.accuracy("inaccurate", settings.passive_inaccurate))
+                    .add(LocationFilter.order(true));
+            passiveChange = new LocationFilter("passive")
+                    .add(LocationFilter.speed(FILTER_MAX_SPEED))
+                    .add(LocationFilter.nearby(settings.passive_nearby))
+                    .add(LocationFilter.anyOf("change",
+                            LocationFilter.bearingChange(settings.passive_bearing),
+                            LocationFilter.altitudeChange(settings.passive_altitude)));
+
+            periodic = new LocationFilter("periodic")
+                    .add(LocationFilter.nearby(settings.nearby));
+        }
+    }
 
-            if (src.hasSpeed())
-                jObject.addProperty("Speed", src.getSpeed());
+    // Intents are handled one at a time, so the chains are not shared between threads
+    private static Filters getFilters(TrackingSettings settings) {
+        Filters filters = mFilters;
+        if (filters == null || filters.settings != settings) {
+            filters = new Filters(settings);
+            mFilters = filters;
+        }
+        return filters;
+    }
 
-            if (src.hasAccuracy())
-                jObject.addProperty("Accuracy", src.getAccuracy());
+    // Serialization
 
-            if (src.hasBearing())
-                jObject.addProperty("Bearing", src.getBearing());
+    private Location readLastLocation() {
+        return (TrackingState.getInstance(this).getLastLocation(mLastLocation) ? mLastLocation : null);
+    }
 
-            return jObject;
-        }
+    private Location readBestLocation() {
+        return (TrackingState.getInstance(this).getBestLocation(mBestLocation) ? mBestLocation : null);
+    }
 
-        public static String serialize(Location location) {
-            GsonBuilder builder = new GsonBuilder();
-            builder.registerTypeAdapter(Location.class, new LocationSerializer());
-            Gson gson = builder.create();
-            return gson.toJson(location);
-        }
+    public static Location getLastLocation(Context context) {
+        return TrackingState.getInstance(context).getLastLocation();
     }
 
     public static class LocationDeserializer implements JsonDeserializer<Location> {
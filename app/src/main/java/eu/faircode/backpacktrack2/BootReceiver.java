@@ -3,8 +3,6 @@ package eu.faircode.backpacktrack2;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
-import android.preference.PreferenceManager;
 import android.util.Log;
 
 public class BootReceiver extends BroadcastReceiver {
@@ -15,8 +13,7 @@ public class BootReceiver extends BroadcastReceiver {
         Log.i(TAG, "Received " + intent);
 
         // Clear last step count
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        prefs.edit().remove(SettingsFragment.PREF_LAST_STEP_COUNT).apply();
+        TrackingState.getInstance(context).setLastStepCount(-1);
 
         // Restore proximity alerts
         try {
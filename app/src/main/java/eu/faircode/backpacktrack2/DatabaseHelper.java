@@ -5,15 +5,21 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.database.AbstractCursor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.location.Location;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.google.android.gms.location.DetectedActivity;
@@ -22,38 +28,145 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
+import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class DatabaseHelper extends SQLiteOpenHelper {
     private static final String TAG = "BPT2.Database";
 
     private static final String DB_NAME = "BackPackTrackII";
-    private static final int DB_VERSION = 27;
+    private static final int DB_VERSION = 36;
 
     private static HandlerThread hthread = null;
     private static Handler handler = null;
+    private static HandlerThread nthread = null;
+    private static Handler notifier = null;
 
     private final static int MSG_LOCATION_UPDATED = 1;
-
-    private static List<LocationChangedListener> mLocationChangedListeners = new ArrayList<LocationChangedListener>();
-    private static List<ActivityTypeChangedListener> mActivityTypeChangedListeners = new ArrayList<ActivityTypeChangedListener>();
-    private static List<ActivityDurationChangedListener> mActivityDurationChangedListeners = new ArrayList<ActivityDurationChangedListener>();
-    private static List<ActivityLogChangedListener> mActivityLogChangedListeners = new ArrayList<ActivityLogChangedListener>();
-    private static List<StepCountChangedListener> mStepCountChangedListeners = new ArrayList<StepCountChangedListener>();
-    private static List<WeatherChangedListener> mWeatherChangedListeners = new ArrayList<WeatherChangedListener>();
+    private final static int MSG_FLUSH_LOCATIONS = 2;
+    private final static int MSG_STEP_COUNT_UPDATED = 3;
+    private final static int MSG_REBUILD_TRACKDAYS = 4;
+
+    // Coalescing windows of frequent change notifications
+    private static final int LOCATION_UPDATED_DELAY = 2500; // milliseconds
+    private static final int STEP_COUNT_UPDATED_DELAY = 1000; // milliseconds
+    private static final int TRACKDAY_REBUILD_DELAY = 5000; // milliseconds
+
+    private static final int LOCATION_BATCH_SIZE = 20;
+    private static final int LOCATION_BATCH_DELAY = 30 * 1000; // milliseconds
+    private static final int LOCATION_PAGE_SIZE = 500;
+    private static final int RECENT_LOCATIONS = 100;
+    private static final int NEAREST_RADIUS = 1000; // meters
+    private static final int NEAREST_RADIUS_MAX = 20037509; // meters, half the circumference of the earth
+    private static final float MOVING_SPEED = 0.5f; // meters per second
+    private static final double ALTITUDE_HYSTERESIS = 5; // meters
+    private static final int ARCHIVE_SEGMENT_SIZE = 4000; // trackpoints
+    private static final int ARCHIVE_FORMAT = TrackSegment.FORMAT_DELTA;
+    private static final long GEOCODE_USED_INTERVAL = 24 * 3600 * 1000L; // milliseconds
+
+    // Track detail bucket sizes, each dividing a day
+    private static final long[] DETAIL_SIZES = new long[]{
+            60 * 1000L, 10 * 60 * 1000L, 3600 * 1000L, 6 * 3600 * 1000L, 24 * 3600 * 1000L};
+
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+    private static final int VACUUM_FREE_PERCENT = 10;
+    private static final int VACUUM_MAX_PAGES = 1024;
+
+    // Copy on write: registration happens on the UI thread, delivery on the notifier thread
+    private static List<LocationChangedListener> mLocationChangedListeners = new CopyOnWriteArrayList<LocationChangedListener>();
+    private static List<ActivityTypeChangedListener> mActivityTypeChangedListeners = new CopyOnWriteArrayList<ActivityTypeChangedListener>();
+    private static List<ActivityDurationChangedListener> mActivityDurationChangedListeners = new CopyOnWriteArrayList<ActivityDurationChangedListener>();
+    private static List<ActivityLogChangedListener> mActivityLogChangedListeners = new CopyOnWriteArrayList<ActivityLogChangedListener>();
+    private static List<StepCountChangedListener> mStepCountChangedListeners = new CopyOnWriteArrayList<StepCountChangedListener>();
+    private static List<WeatherChangedListener> mWeatherChangedListeners = new CopyOnWriteArrayList<WeatherChangedListener>();
+
+    // Latest step count per day, waiting for MSG_STEP_COUNT_UPDATED
+    private static final Map<Long, Integer> mStepCountUpdates = new HashMap<>();
+
+    private static DatabaseHelper mInstance = null;
+
+    // Writes are serialized per table, so unrelated tables do not wait for each other
+    private static final Object mLockLocation = new Object();
+    private static final Object mLockActivityType = new Object();
+    private static final Object mLockActivityDuration = new Object();
+    private static final Object mLockActivityLog = new Object();
+    private static final Object mLockStep = new Object();
+    private static final Object mLockWeather = new Object();
+    private static final Object mLockGeocode = new Object();
+    // Guards the dirty track days only, may be taken within mLockLocation and in onUpgrade
+    private static final Object mLockTrackDays = new Object();
 
     private Context mContext;
 
+    // Compiled statements, guarded by the table lock
+    private SQLiteStatement mStmtLocationInsert = null;
+    private SQLiteStatement mStmtLocationAltitude = null;
+    private SQLiteStatement mStmtLocationSent = null;
+    private SQLiteStatement mStmtTrackpointTime = null;
+    private SQLiteStatement mStmtActivityTypeInsert = null;
+    private SQLiteStatement mStmtActivityLogGet = null;
+    private SQLiteStatement mStmtActivityLogInsert = null;
+    private SQLiteStatement mStmtActivityLogUpdate = null;
+    private SQLiteStatement mStmtWeatherInsert = null;
+    private SQLiteStatement mStmtGeocodeUsed = null;
+    private SQLiteStatement mStmtGeocodeInsert = null;
+    private SQLiteStatement mStmtGeocodeTrim = null;
+    private SQLiteStatement mStmtStepIncrement = null;
+    private SQLiteStatement mStmtStepCreate = null;
+    private SQLiteStatement mStmtStepGet = null;
+    private SQLiteStatement mStmtActivityDurationCreate = null;
+    private Map<String, SQLiteStatement> mStmtActivityDurationIncrement = new HashMap<>();
+    private Map<String, SQLiteStatement> mStmtActivityDurationGet = new HashMap<>();
+    private final List<PendingLocation> mPendingLocations = new ArrayList<>();
+
+    // Last stored fixes by ID, so that getLocation right after an insert needs no query
+    private final Map<Long, PendingLocation> mRecentLocations = new LinkedHashMap<Long, PendingLocation>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, PendingLocation> eldest) {
+            return (size() > RECENT_LOCATIONS);
+        }
+    };
+
     static {
         hthread = new HandlerThread("DatabaseHelper");
         hthread.start();
         handler = new Handler(hthread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_FLUSH_LOCATIONS) {
+                    if (mInstance != null)
+                        mInstance.flushLocations();
+                } else if (msg.what == MSG_REBUILD_TRACKDAYS) {
+                    if (mInstance != null)
+                        try {
+                            // One month at a time, so that writers are not held up for long
+                            if (mInstance.rebuildDirtyTrackDays())
+                                handler.sendEmptyMessage(MSG_REBUILD_TRACKDAYS);
+                        } catch (Throwable ex) {
+                            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                        }
+                }
+            }
+        };
+
+        // Listeners run here, so that writers do not wait for them
+        nthread = new HandlerThread("DatabaseNotifier");
+        nthread.start();
+        notifier = new Handler(nthread.getLooper()) {
             @Override
             public void handleMessage(Message msg) {
                 handleChangedNotification(msg);
@@ -61,7 +174,14 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         };
     }
 
-    public DatabaseHelper(Context context) {
+    public static synchronized DatabaseHelper getInstance(Context context) {
+        // One helper/connection pool for the life of the process
+        if (mInstance == null)
+            mInstance = new DatabaseHelper(context.getApplicationContext());
+        return mInstance;
+    }
+
+    private DatabaseHelper(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
         mContext = context;
 
@@ -78,6 +198,20 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             Log.i(TAG, "Renaming " + oldName.getAbsolutePath() + " to " + newName.getAbsolutePath());
             oldName.renameTo(newName);
         }
+
+        // Readers should not block writers
+        setWriteAheadLoggingEnabled(true);
+
+        // Continue a rebuild interrupted by the end of the process
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        if (prefs.contains(SettingsFragment.PREF_TRACKDAY_DIRTY_FROM))
+            handler.sendEmptyMessageDelayed(MSG_REBUILD_TRACKDAYS, TRACKDAY_REBUILD_DELAY);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // Takes effect for new databases, existing ones are converted by the first vacuum
+        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
     }
 
     @Override
@@ -89,6 +223,11 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         createTableActivityLog(db);
         createTableStep(db);
         createTableWeather(db);
+        createIndexesWeather(db);
+        createTableTrackDay(db);
+        createTableArchive(db);
+        createTableTrackDetail(db);
+        createTableGeocode(db);
     }
 
     private void createTableLocation(SQLiteDatabase db) {
@@ -108,10 +247,36 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 ", hidden INTEGER NULL" +
                 ", deleted INTEGER NULL" +
                 ", sent INTEGER NULL" +
+                ", geohash TEXT NULL" +
                 ");");
-        db.execSQL("CREATE INDEX idx_location_time ON location(time)");
-        db.execSQL("CREATE INDEX idx_location_name ON location(name)");
-        db.execSQL("CREATE INDEX idx_location_sent ON location(sent)");
+        createIndexesLocation(db);
+    }
+
+    private void createIndexesLocation(SQLiteDatabase db) {
+        // Shaped after getLocations, getLocationPager, getWaypoints and getUnsentLocations
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_location_time_id ON location(time, ID)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_location_name_deleted_hidden ON location(name, deleted, hidden)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_location_sent_time ON location(sent, time)");
+        // Spatial lookups, only waypoints have a geohash
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_location_geohash ON location(geohash)");
+    }
+
+    private void updateGeoHashes(SQLiteDatabase db) {
+        SQLiteStatement stmt = db.compileStatement("UPDATE location SET geohash = ? WHERE ID = ?");
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("SELECT ID, latitude, longitude FROM location WHERE NOT name IS NULL", new String[0]);
+            while (cursor.moveToNext()) {
+                stmt.bindString(1, GeoHash.encode(cursor.getDouble(1), cursor.getDouble(2), GeoHash.PRECISION));
+                stmt.bindLong(2, cursor.getLong(0));
+                stmt.executeUpdateDelete();
+            }
+            Log.i(TAG, "Geohashed waypoints=" + cursor.getCount());
+        } finally {
+            if (cursor != null)
+                cursor.close();
+            stmt.close();
+        }
     }
 
     private void createTableActivityType(SQLiteDatabase db) {
@@ -134,7 +299,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 ", onbicycle INTEGER NOT NULL" +
                 ", invehicle INTEGER NOT NULL" +
                 ", unknown INTEGER NOT NULL" + ");");
-        db.execSQL("CREATE INDEX idx_activityduration_time ON activityduration(time)");
+        db.execSQL("CREATE UNIQUE INDEX idx_activityduration_time ON activityduration(time)");
     }
 
     private void createTableActivityLog(SQLiteDatabase db) {
@@ -154,7 +319,64 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
                 ", time INTEGER NOT NULL" +
                 ", count INTEGER NOT NULL" + ");");
-        db.execSQL("CREATE INDEX idx_step_time ON step(time)");
+        db.execSQL("CREATE UNIQUE INDEX idx_step_time ON step(time)");
+    }
+
+    private void createTableTrackDay(SQLiteDatabase db) {
+        Log.i(TAG, "Adding table trackday");
+        db.execSQL("CREATE TABLE trackday (" +
+                " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
+                ", time INTEGER NOT NULL" +
+                ", count INTEGER NOT NULL" +
+                ", distance REAL NOT NULL" +
+                ", moving INTEGER NOT NULL" +
+                ", ascent REAL NOT NULL" +
+                ", descent REAL NOT NULL" +
+                ", maxspeed REAL NULL" +
+                ", last_time INTEGER NOT NULL" +
+                ", last_latitude REAL NOT NULL" +
+                ", last_longitude REAL NOT NULL" +
+                ", reference_altitude REAL NULL" + ");");
+        db.execSQL("CREATE UNIQUE INDEX idx_trackday_time ON trackday(time)");
+    }
+
+    private void createTableTrackDetail(SQLiteDatabase db) {
+        Log.i(TAG, "Adding table trackdetail");
+        db.execSQL("CREATE TABLE trackdetail (" +
+                " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
+                ", level INTEGER NOT NULL" +
+                ", time INTEGER NOT NULL" +
+                ", count INTEGER NOT NULL" +
+                ", last_time INTEGER NOT NULL" +
+                ", latitude REAL NOT NULL" +
+                ", longitude REAL NOT NULL" +
+                ", altitude_sum REAL NOT NULL" +
+                ", altitude_count INTEGER NOT NULL" +
+                ", min_altitude REAL NULL" +
+                ", max_altitude REAL NULL" +
+                ", altitude_type INTEGER NULL" + ");");
+        db.execSQL("CREATE UNIQUE INDEX idx_trackdetail_level_time ON trackdetail(level, time)");
+    }
+
+    private void createTableArchive(SQLiteDatabase db) {
+        Log.i(TAG, "Adding table archive");
+        db.execSQL("CREATE TABLE archive (" +
+                " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
+                ", time_from INTEGER NOT NULL" +
+                ", time_to INTEGER NOT NULL" +
+                ", count INTEGER NOT NULL" +
+                ", data BLOB NOT NULL" + ");");
+        db.execSQL("CREATE INDEX idx_archive_time_from ON archive(time_from, ID)");
+    }
+
+    private void createTableGeocode(SQLiteDatabase db) {
+        Log.i(TAG, "Adding table geocode");
+        db.execSQL("CREATE TABLE geocode (" +
+                " geohash TEXT PRIMARY KEY" +
+                ", name TEXT NOT NULL" +
+                ", time INTEGER NOT NULL" +
+                ", used INTEGER NOT NULL" + ");");
+        db.execSQL("CREATE INDEX idx_geocode_used ON geocode(used)");
     }
 
     private void createTableWeather(SQLiteDatabase db) {
@@ -189,6 +411,11 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("CREATE INDEX idx_weather_station_id ON weather(station_id)");
     }
 
+    private void createIndexesWeather(SQLiteDatabase db) {
+        // Identity of a report, inserts of a known report are ignored
+        db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS idx_weather_time_station_provider ON weather(time, station_id, provider)");
+    }
+
     private boolean columnExists(SQLiteDatabase db, String table, String column) {
         Cursor cursor = null;
         try {
@@ -209,13 +436,18 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
         db.beginTransaction();
         try {
+            // Each step creates the schema of its own version, as the later steps expect it
             if (oldVersion < 2) {
                 createTableActivityType(db);
                 oldVersion = 2;
             }
 
             if (oldVersion < 3) {
-                createTableStep(db);
+                db.execSQL("CREATE TABLE step (" +
+                        " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
+                        ", time INTEGER NOT NULL" +
+                        ", count INTEGER NOT NULL" + ");");
+                db.execSQL("CREATE INDEX idx_step_time ON step(time)");
                 oldVersion = 3;
             }
 
@@ -232,7 +464,16 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             }
 
             if (oldVersion < 7) {
-                createTableActivityDuration(db);
+                db.execSQL("CREATE TABLE activityduration (" +
+                        " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
+                        ", time INTEGER NOT NULL" +
+                        ", still INTEGER NOT NULL" +
+                        ", walking INTEGER NOT NULL" +
+                        ", running INTEGER NOT NULL" +
+                        ", onbicycle INTEGER NOT NULL" +
+                        ", invehicle INTEGER NOT NULL" +
+                        ", unknown INTEGER NOT NULL" + ");");
+                db.execSQL("CREATE INDEX idx_activityduration_time ON activityduration(time)");
                 oldVersion = 7;
             }
 
@@ -241,7 +482,16 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 // Index activity_time not renamed
                 db.execSQL("ALTER TABLE activityduration RENAME TO activityduration_orig");
                 db.execSQL("DROP INDEX idx_activityduration_time");
-                createTableActivityDuration(db);
+                db.execSQL("CREATE TABLE activityduration (" +
+                        " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
+                        ", time INTEGER NOT NULL" +
+                        ", still INTEGER NOT NULL" +
+                        ", walking INTEGER NOT NULL" +
+                        ", running INTEGER NOT NULL" +
+                        ", onbicycle INTEGER NOT NULL" +
+                        ", invehicle INTEGER NOT NULL" +
+                        ", unknown INTEGER NOT NULL" + ");");
+                db.execSQL("CREATE INDEX idx_activityduration_time ON activityduration(time)");
                 db.execSQL(
                         "INSERT INTO activityduration (time, still, walking, running, onbicycle, invehicle, unknown)" +
                                 " SELECT time, still, onfoot, running, onbicycle, invehicle, unknown FROM activityduration_orig");
@@ -347,7 +597,26 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 db.execSQL("ALTER TABLE location RENAME TO location_orig");
                 db.execSQL("DROP INDEX idx_location_time");
                 db.execSQL("DROP INDEX idx_location_name");
-                createTableLocation(db);
+                db.execSQL("CREATE TABLE location (" +
+                        " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
+                        ", time INTEGER NOT NULL" +
+                        ", provider INTEGER NOT NULL" +
+                        ", latitude REAL NOT NULL" +
+                        ", longitude REAL NOT NULL" +
+                        ", altitude REAL NULL" +
+                        ", altitude_type INTEGER NULL" +
+                        ", speed REAL NULL" +
+                        ", bearing REAL NULL" +
+                        ", accuracy REAL NULL" +
+                        ", name TEXT" +
+                        ", proximity INTEGER NULL" +
+                        ", hidden INTEGER NULL" +
+                        ", deleted INTEGER NULL" +
+                        ", sent INTEGER NULL" +
+                        ");");
+                db.execSQL("CREATE INDEX idx_location_time ON location(time)");
+                db.execSQL("CREATE INDEX idx_location_name ON location(name)");
+                db.execSQL("CREATE INDEX idx_location_sent ON location(sent)");
                 db.execSQL("INSERT INTO location (ID, time, provider, latitude, longitude, altitude, altitude_type, speed, bearing, accuracy, name, proximity, hidden)" +
                         " SELECT ID, time, provider, latitude, longitude, altitude, altitude_type, speed, bearing, accuracy, name, proximity, hidden FROM location_orig");
                 db.execSQL("DROP TABLE location_orig");
@@ -357,7 +626,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             if (oldVersion < 26) {
                 if (!columnExists(db, "location", "sent")) {
                     db.execSQL("ALTER TABLE location ADD COLUMN sent INTEGER NULL");
-                    db.execSQL("CREATE INDEX idx_location_sent ON location(sent)");
+                    db.execSQL("CREATE INDEX IF NOT EXISTS idx_location_sent ON location(sent)");
                 }
                 oldVersion = 26;
             }
@@ -368,6 +637,80 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 oldVersion = 27;
             }
 
+            if (oldVersion < 28) {
+                // Merge duplicate days, so that the day can be a unique key
+                db.execSQL("UPDATE step SET count = (SELECT SUM(s.count) FROM step s WHERE s.time = step.time)" +
+                        " WHERE ID IN (SELECT MIN(ID) FROM step GROUP BY time HAVING COUNT(*) > 1)");
+                db.execSQL("DELETE FROM step WHERE ID NOT IN (SELECT MIN(ID) FROM step GROUP BY time)");
+                db.execSQL("DROP INDEX IF EXISTS idx_step_time");
+                db.execSQL("CREATE UNIQUE INDEX idx_step_time ON step(time)");
+
+                String merge = "";
+                for (String column : new String[]{"still", "walking", "running", "onbicycle", "invehicle", "unknown"})
+                    merge += (merge.length() == 0 ? "" : ", ") +
+                            column + " = (SELECT SUM(a." + column + ") FROM activityduration a WHERE a.time = activityduration.time)";
+                db.execSQL("UPDATE activityduration SET " + merge +
+                        " WHERE ID IN (SELECT MIN(ID) FROM activityduration GROUP BY time HAVING COUNT(*) > 1)");
+                db.execSQL("DELETE FROM activityduration WHERE ID NOT IN (SELECT MIN(ID) FROM activityduration GROUP BY time)");
+                db.execSQL("DROP INDEX IF EXISTS idx_activityduration_time");
+                db.execSQL("CREATE UNIQUE INDEX idx_activityduration_time ON activityduration(time)");
+                oldVersion = 28;
+            }
+
+            if (oldVersion < 29) {
+                db.execSQL("DROP INDEX IF EXISTS idx_location_time");
+                db.execSQL("DROP INDEX IF EXISTS idx_location_name");
+                db.execSQL("DROP INDEX IF EXISTS idx_location_sent");
+                db.execSQL("CREATE INDEX IF NOT EXISTS idx_location_time_deleted_name ON location(time, deleted, name)");
+                db.execSQL("CREATE INDEX IF NOT EXISTS idx_location_name_deleted_hidden ON location(name, deleted, hidden)");
+                db.execSQL("CREATE INDEX IF NOT EXISTS idx_location_sent_time ON location(sent, time)");
+                oldVersion = 29;
+            }
+
+            if (oldVersion < 30) {
+                db.execSQL("DROP INDEX IF EXISTS idx_location_time_deleted_name");
+                db.execSQL("CREATE INDEX IF NOT EXISTS idx_location_time_id ON location(time, ID)");
+                oldVersion = 30;
+            }
+
+            if (oldVersion < 31) {
+                if (!columnExists(db, "location", "geohash"))
+                    db.execSQL("ALTER TABLE location ADD COLUMN geohash TEXT NULL");
+                updateGeoHashes(db);
+                db.execSQL("CREATE INDEX IF NOT EXISTS idx_location_geohash ON location(geohash)");
+                oldVersion = 31;
+            }
+
+            if (oldVersion < 32) {
+                createTableTrackDay(db);
+                oldVersion = 32;
+            }
+
+            if (oldVersion < 33) {
+                createTableArchive(db);
+                oldVersion = 33;
+            }
+
+            if (oldVersion < 34) {
+                createTableTrackDetail(db);
+                // Scanning the history here could block the UI thread opening the database
+                invalidateTrackDays(Long.MIN_VALUE, Long.MAX_VALUE);
+                oldVersion = 34;
+            }
+
+            if (oldVersion < 35) {
+                // Rows without a provider are no weather markers, which the unique index does not cover
+                db.execSQL("DELETE FROM weather WHERE provider IS NOT NULL AND ID NOT IN" +
+                        " (SELECT MIN(ID) FROM weather WHERE provider IS NOT NULL GROUP BY time, station_id, provider)");
+                createIndexesWeather(db);
+                oldVersion = 35;
+            }
+
+            if (oldVersion < 36) {
+                createTableGeocode(db);
+                oldVersion = 36;
+            }
+
             db.setVersion(DB_VERSION);
 
             db.setTransactionSuccessful();
@@ -401,82 +744,162 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     }
 
     public DatabaseHelper insertLocation(Location location, int altitude_type, String name) {
-        long id;
-        synchronized (mContext.getApplicationContext()) {
-            SQLiteDatabase db = this.getWritableDatabase();
+        // Trackpoints are written behind in batches, waypoints are written immediately
+        boolean flush;
+        synchronized (mPendingLocations) {
+            PendingLocation pending = new PendingLocation(location, altitude_type, name);
+            mPendingLocations.add(pending);
+            flush = (name != null || mPendingLocations.size() >= LOCATION_BATCH_SIZE);
+        }
 
-            ContentValues cv = new ContentValues();
-            cv.put("time", location.getTime());
-            cv.put("provider", location.getProvider());
-            cv.put("latitude", location.getLatitude());
-            cv.put("longitude", location.getLongitude());
+        if (flush)
+            flushLocations();
+        else if (!handler.hasMessages(MSG_FLUSH_LOCATIONS))
+            handler.sendEmptyMessageDelayed(MSG_FLUSH_LOCATIONS, LOCATION_BATCH_DELAY);
 
-            if (location.hasAltitude())
-                cv.put("altitude", location.getAltitude());
-            else
-                cv.putNull("altitude");
+        return this;
+    }
 
-            cv.put("altitude_type", altitude_type);
+    public DatabaseHelper flushLocations() {
+        handler.removeMessages(MSG_FLUSH_LOCATIONS);
 
-            if (location.hasSpeed())
-                cv.put("speed", location.getSpeed());
-            else
-                cv.putNull("speed");
+        List<PendingLocation> batch = new ArrayList<>();
+        synchronized (mLockLocation) {
+            synchronized (mPendingLocations) {
+                batch.addAll(mPendingLocations);
+                mPendingLocations.clear();
+            }
+            if (batch.size() == 0)
+                return this;
 
-            if (location.hasBearing())
-                cv.put("bearing", location.getBearing());
-            else
-                cv.putNull("bearing");
+            SQLiteDatabase db = this.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                if (mStmtLocationInsert == null)
+                    mStmtLocationInsert = db.compileStatement(
+                            "INSERT INTO location (time, provider, latitude, longitude, altitude, altitude_type, speed, bearing, accuracy, name, geohash)" +
+                                    " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+                SQLiteStatement stmt = mStmtLocationInsert;
+                for (PendingLocation pending : batch) {
+                    Location location = pending.location;
+
+                    stmt.bindLong(1, location.getTime());
+                    bindString(stmt, 2, location.getProvider());
+                    stmt.bindDouble(3, location.getLatitude());
+                    stmt.bindDouble(4, location.getLongitude());
+
+                    if (location.hasAltitude())
+                        stmt.bindDouble(5, location.getAltitude());
+                    else
+                        stmt.bindNull(5);
+
+                    stmt.bindLong(6, pending.altitude_type);
+
+                    if (location.hasSpeed())
+                        stmt.bindDouble(7, location.getSpeed());
+                    else
+                        stmt.bindNull(7);
+
+                    if (location.hasBearing())
+                        stmt.bindDouble(8, location.getBearing());
+                    else
+                        stmt.bindNull(8);
+
+                    if (location.hasAccuracy())
+                        stmt.bindDouble(9, location.getAccuracy());
+                    else
+                        stmt.bindNull(9);
+
+                    bindString(stmt, 10, pending.name);
+
+                    if (pending.name == null)
+                        stmt.bindNull(11);
+                    else
+                        stmt.bindString(11, GeoHash.encode(location.getLatitude(), location.getLongitude(), GeoHash.PRECISION));
+
+                    pending.id = stmt.executeInsert();
+                    if (pending.id == -1)
+                        Log.e(TAG, "Insert location failed");
+                }
 
-            if (location.hasAccuracy())
-                cv.put("accuracy", location.getAccuracy());
-            else
-                cv.putNull("accuracy");
+                Set<Long> rebuilt = updateTrackDays(db, batch);
+                updateTrackDetails(db, batch, rebuilt);
 
-            if (name == null)
-                cv.putNull("name");
-            else
-                cv.put("name", name);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
 
-            id = db.insert("location", null, cv);
-            if (id == -1)
-                Log.e(TAG, "Insert location failed");
+            // Before releasing the lock, so that a concurrent edit cannot be overtaken by a stale fix
+            synchronized (mRecentLocations) {
+                for (PendingLocation pending : batch)
+                    if (pending.id != -1)
+                        mRecentLocations.put(pending.id, pending);
+            }
         }
 
-        if (id != -1) {
+        Log.i(TAG, "Flushed locations=" + batch.size());
+
+        // Fan out side effects once per batch
+        List<ContentValues> listLifeline = new ArrayList<>();
+        long[] ids = new long[batch.size()];
+        int count = 0;
+        Location last = null;
+        for (PendingLocation pending : batch)
+            if (pending.id != -1) {
+                ids[count++] = pending.id;
+                last = pending.location;
+                try {
+                    listLifeline.add(getLifelineLocation(pending.id, pending.name, pending.location));
+                } catch (JSONException ex) {
+                    Log.e(TAG, "Lifeline: " + ex.toString() + "\n" + Log.getStackTraceString(ex));
+                }
+            }
+
+        if (count > 0) {
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
             prefs.edit().putLong(SettingsFragment.PREF_LIFELINE_LAST, new Date().getTime()).apply();
 
+            long[] inserted = new long[count];
+            System.arraycopy(ids, 0, inserted, 0, count);
             Intent lifeline = new Intent(mContext, BackgroundService.class);
             lifeline.setAction(BackgroundService.ACTION_LIFELINE);
-            lifeline.putExtra(BackgroundService.EXTRA_ID, id);
+            lifeline.putExtra(BackgroundService.EXTRA_IDS, inserted);
             mContext.startService(lifeline);
 
-            try {
-                Uri uri = Uri.parse("content://eu.faircode.lifeline/event");
-                ContentProviderClient cclient = mContext.getContentResolver().acquireContentProviderClient(uri);
-                if (cclient != null) {
-                    Uri row = cclient.insert(uri, getLifelineLocation(id, name, location));
-                    cclient.release();
-                    Log.i(TAG, "Inserted uri=" + row);
+            final ContentValues[] values = listLifeline.toArray(new ContentValues[0]);
+            notifier.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Uri uri = Uri.parse("content://eu.faircode.lifeline/event");
+                        ContentProviderClient cclient = mContext.getContentResolver().acquireContentProviderClient(uri);
+                        if (cclient != null) {
+                            int rows = cclient.bulkInsert(uri, values);
+                            cclient.release();
+                            Log.i(TAG, "Inserted uri=" + uri + " rows=" + rows);
+                        }
+                    } catch (Throwable ex) {
+                        Log.e(TAG, "Lifeline: " + ex.toString() + "\n" + Log.getStackTraceString(ex));
+                    }
                 }
-            } catch (Throwable ex) {
-                Log.e(TAG, "Lifeline: " + ex.toString() + "\n" + Log.getStackTraceString(ex));
-            }
+            });
 
-            for (LocationChangedListener listener : mLocationChangedListeners)
-                try {
+            final Location location = last;
+            post(new Dispatch<LocationChangedListener>(mLocationChangedListeners) {
+                @Override
+                void deliver(LocationChangedListener listener) {
                     listener.onLocationAdded(location);
-                } catch (Throwable ex) {
-                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
                 }
+            });
         }
 
         return this;
     }
 
     public DatabaseHelper updateLocationName(long id, String name) {
-        synchronized (mContext.getApplicationContext()) {
+        synchronized (mLockLocation) {
+            forgetLocation(id);
             SQLiteDatabase db = this.getWritableDatabase();
             ContentValues cv = new ContentValues();
             cv.put("name", name);
@@ -491,13 +914,22 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     }
 
     public DatabaseHelper updateLocationTime(long id, long time) {
-        synchronized (mContext.getApplicationContext()) {
+        synchronized (mLockLocation) {
+            forgetLocation(id);
             SQLiteDatabase db = this.getWritableDatabase();
+            long previous = getTrackpointTime(db, id);
             ContentValues cv = new ContentValues();
             cv.put("time", time);
             cv.putNull("sent");
-            if (db.update("location", cv, "ID = ?", new String[]{Long.toString(id)}) != 1)
-                Log.e(TAG, "Update location failed");
+            if (db.update("location", cv, "ID = ?", new String[]{Long.toString(id)}) != 1) {
+                Log.e(TAG, "Update location failed id=" + id);
+                return this;
+            }
+            if (previous >= 0) {
+                invalidateTrackDay(previous);
+                if (getDay(time) != getDay(previous))
+                    invalidateTrackDay(time);
+            }
         }
 
         notifyLocationUpdated(id);
@@ -506,14 +938,23 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     }
 
     public DatabaseHelper updateLocationAltitude(long id, double altitude, int altitude_type) {
-        synchronized (mContext.getApplicationContext()) {
+        synchronized (mLockLocation) {
+            forgetLocation(id);
             SQLiteDatabase db = this.getWritableDatabase();
-            ContentValues cv = new ContentValues();
-            cv.put("altitude", altitude);
-            cv.put("altitude_type", altitude_type);
-            cv.putNull("sent");
-            if (db.update("location", cv, "ID = ?", new String[]{Long.toString(id)}) != 1)
-                Log.e(TAG, "Update location altitude failed");
+            if (mStmtLocationAltitude == null)
+                mStmtLocationAltitude = db.compileStatement(
+                        "UPDATE location SET altitude = ?, altitude_type = ?, sent = NULL WHERE ID = ?");
+            mStmtLocationAltitude.bindDouble(1, altitude);
+            mStmtLocationAltitude.bindLong(2, altitude_type);
+            mStmtLocationAltitude.bindLong(3, id);
+            if (mStmtLocationAltitude.executeUpdateDelete() != 1) {
+                Log.e(TAG, "Update location altitude failed id=" + id);
+                return this;
+            }
+
+            long time = getTrackpointTime(db, id);
+            if (time >= 0)
+                invalidateTrackDay(time);
         }
 
         notifyLocationUpdated(id);
@@ -522,7 +963,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     }
 
     public DatabaseHelper hideLocation(long id, boolean hidden) {
-        synchronized (mContext.getApplicationContext()) {
+        synchronized (mLockLocation) {
             SQLiteDatabase db = this.getWritableDatabase();
             ContentValues cv = new ContentValues();
             cv.put("hidden", hidden ? 1 : 0);
@@ -530,40 +971,31 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 Log.e(TAG, "Update location hidden failed");
         }
 
-        for (LocationChangedListener listener : mLocationChangedListeners)
-            try {
-                listener.onLocationUpdated();
-            } catch (Throwable ex) {
-                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-            }
+        postLocationUpdated();
 
         return this;
     }
 
     public DatabaseHelper sentLocation(long id, boolean sent) {
-        synchronized (mContext.getApplicationContext()) {
-            SQLiteDatabase db = this.getWritableDatabase();
-            ContentValues cv = new ContentValues();
+        synchronized (mLockLocation) {
+            if (mStmtLocationSent == null)
+                mStmtLocationSent = this.getWritableDatabase().compileStatement("UPDATE location SET sent = ? WHERE ID = ?");
             if (sent)
-                cv.put("sent", 1);
+                mStmtLocationSent.bindLong(1, 1);
             else
-                cv.putNull("sent");
-            if (db.update("location", cv, "ID = ?", new String[]{Long.toString(id)}) != 1)
+                mStmtLocationSent.bindNull(1);
+            mStmtLocationSent.bindLong(2, id);
+            if (mStmtLocationSent.executeUpdateDelete() != 1)
                 Log.e(TAG, "Update location sent failed");
         }
 
-        for (LocationChangedListener listener : mLocationChangedListeners)
-            try {
-                listener.onLocationUpdated();
-            } catch (Throwable ex) {
-                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-            }
+        postLocationUpdated();
 
         return this;
     }
 
     public DatabaseHelper setProximity(long id, long radius) {
-        synchronized (mContext.getApplicationContext()) {
+        synchronized (mLockLocation) {
             SQLiteDatabase db = this.getWritableDatabase();
             ContentValues cv = new ContentValues();
             if (radius <= 0)
@@ -579,34 +1011,41 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         return this;
     }
 
-    public DatabaseHelper deleteLocation(long id) {
-        synchronized (mContext.getApplicationContext()) {
+    public DatabaseHelper deleteLocation(final long id) {
+        synchronized (mLockLocation) {
+            forgetLocation(id);
             SQLiteDatabase db = this.getWritableDatabase();
             ContentValues cv = new ContentValues();
             cv.put("deleted", 1);
             cv.putNull("sent");
-            if (db.update("location", cv, "ID = ?", new String[]{Long.toString(id)}) != 1)
-                Log.e(TAG, "Update location deleted failed");
-        }
-
-        try {
-            Uri uri = Uri.parse("content://eu.faircode.lifeline/event");
-            ContentProviderClient cclient = mContext.getContentResolver().acquireContentProviderClient(uri);
-            if (cclient != null) {
-                int rows = cclient.delete(uri, "reference = ?", new String[]{Long.toString(id)});
-                cclient.release();
-                Log.i(TAG, "Delete uri=" + uri + " rows=" + rows);
+            if (db.update("location", cv, "ID = ?", new String[]{Long.toString(id)}) != 1) {
+                Log.e(TAG, "Update location deleted failed id=" + id);
+                return this;
             }
-        } catch (Throwable ex) {
-            Log.e(TAG, "Lifeline: " + ex.toString() + "\n" + Log.getStackTraceString(ex));
+
+            long time = getTrackpointTime(db, id);
+            if (time >= 0)
+                invalidateTrackDay(time);
         }
 
-        for (LocationChangedListener listener : mLocationChangedListeners)
-            try {
-                listener.onLocationDeleted(id);
-            } catch (Throwable ex) {
-                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+        notifier.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Uri uri = Uri.parse("content://eu.faircode.lifeline/event");
+                    ContentProviderClient cclient = mContext.getContentResolver().acquireContentProviderClient(uri);
+                    if (cclient != null) {
+                        int rows = cclient.delete(uri, "reference = ?", new String[]{Long.toString(id)});
+                        cclient.release();
+                        Log.i(TAG, "Delete uri=" + uri + " rows=" + rows);
+                    }
+                } catch (Throwable ex) {
+                    Log.e(TAG, "Lifeline: " + ex.toString() + "\n" + Log.getStackTraceString(ex));
+                }
             }
+        });
+
+        postLocationDeleted(id);
 
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
         prefs.edit().putLong(SettingsFragment.PREF_LIFELINE_LAST, new Date().getTime()).apply();
@@ -620,51 +1059,157 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     }
 
     public DatabaseHelper deleteTrackpoints(long from, long to) {
-        synchronized (mContext.getApplicationContext()) {
+        flushLocations();
+        synchronized (mLockLocation) {
             Log.i(TAG, "Delete from=" + from + " to=" + to);
+            synchronized (mRecentLocations) {
+                mRecentLocations.clear();
+            }
             SQLiteDatabase db = this.getWritableDatabase();
-            int rows = db.delete("location", "time >= ? AND time <= ? AND name IS NULL", new String[]{Long.toString(from), Long.toString(to)});
+            int rows = db.delete("location", "time >= ? AND time <= ? AND +name IS NULL", new String[]{Long.toString(from), Long.toString(to)});
             Log.i(TAG, rows + " trackpoints deleted");
+            rows += deleteArchivedTrackpoints(db, from, to);
+            if (rows > 0)
+                invalidateTrackDays(getDay(from), to == Long.MAX_VALUE ? to : getNextDay(getDay(to)));
         }
 
-        for (LocationChangedListener listener : mLocationChangedListeners)
-            try {
-                listener.onLocationDeleted(-1);
-            } catch (Throwable ex) {
-                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-            }
+        postLocationDeleted(-1);
 
         return this;
     }
 
     public Cursor getLocations(long from, long to, boolean trackpoints, boolean waypoints, boolean asc, int limit) {
+        return getLocations(null, from, to, trackpoints, waypoints, asc, limit);
+    }
+
+    // columns == null selects all columns and _id, as needed by the cursor adapters
+    // Archived trackpoints are merged in by time, their segments are decoded only when read
+    // Buffered trackpoints are not included, readers are told by onLocationAdded when they are flushed
+    public Cursor getLocations(String[] columns, long from, long to, boolean trackpoints, boolean waypoints, boolean asc, int limit) {
         SQLiteDatabase db = this.getReadableDatabase();
-        String query = "SELECT *, ID AS _id FROM location";
-        query += " WHERE time >= ? AND time <= ? AND deleted IS NULL";
+
+        String filter = "";
         if (trackpoints && !waypoints)
-            query += " AND name IS NULL";
+            filter = " AND +name IS NULL";
         if (!trackpoints && waypoints)
-            query += " AND NOT name IS NULL";
-        query += " ORDER BY time";
-        if (!asc)
-            query += " DESC";
+            filter = " AND NOT name IS NULL";
+
+        String query = "SELECT " + (columns == null ? "*, ID AS _id" : TextUtils.join(", ", columns)) + " FROM location";
+        query += " WHERE time >= ? AND time <= ? AND deleted IS NULL" + filter;
+        query += (asc ? " ORDER BY time, ID" : " ORDER BY time DESC, ID DESC");
         if (limit > 0)
             query += " LIMIT " + limit;
-        return db.rawQuery(query, new String[]{Long.toString(from), Long.toString(to)});
+        Cursor cursor = db.rawQuery(query, new String[]{Long.toString(from), Long.toString(to)});
+
+        if (trackpoints && isArchived(db, from, to))
+            return new ArchiveCursor(db, cursor, filter, from, to, asc, limit);
+        return cursor;
+    }
+
+    public LocationPager getLocationPager(String[] columns, long from, long to, boolean trackpoints, boolean waypoints) {
+        return getLocationPager(columns, from, to, trackpoints, waypoints, trackpoints);
+    }
+
+    // Archived trackpoints have no row in the location table and cannot be updated
+    // Buffered trackpoints are not included, writers flush them first where needed
+    public LocationPager getLocationPager(String[] columns, long from, long to, boolean trackpoints, boolean waypoints, boolean archived) {
+        return getLocationPager(this.getReadableDatabase(), columns, from, to, trackpoints, waypoints, archived);
+    }
+
+    private LocationPager getLocationPager(SQLiteDatabase db, String[] columns, long from, long to, boolean trackpoints, boolean waypoints, boolean archived) {
+        String query = "SELECT " + TextUtils.join(", ", columns) + ", time AS page_time, ID AS page_id FROM location";
+        query += " WHERE time >= ? AND time <= ? AND (time > ? OR ID > ?) AND deleted IS NULL";
+        if (trackpoints && !waypoints)
+            query += " AND +name IS NULL";
+        if (!trackpoints && waypoints)
+            query += " AND NOT name IS NULL";
+        query += " ORDER BY time, ID";
+        query += " LIMIT " + LOCATION_PAGE_SIZE;
+        return new LocationPager(db, query, columns, from, to, archived);
     }
 
     public Cursor getWaypoints() {
         SQLiteDatabase db = this.getReadableDatabase();
         String query = "SELECT ID AS _id, latitude, longitude, name";
         query += " FROM location";
-        query += " WHERE NOT name IS NULL AND (hidden IS NULL OR hidden = 0) AND deleted IS NULL";
+        // name >= '' is NOT NULL for text, but lets the name index skip all trackpoints
+        query += " WHERE name >= '' AND (hidden IS NULL OR hidden = 0) AND deleted IS NULL";
         query += " ORDER BY name";
         return db.rawQuery(query, new String[0]);
     }
 
-    public Cursor getUnsentLocations() {
+    // Waypoints within radius meters, nearest first
+    public List<NearbyWaypoint> getWaypointsWithin(double latitude, double longitude, double radius) {
+        // Range scans on the geohash prefixes of the cells covering the circle, or on all waypoints
+        List<String> cells = GeoHash.cover(latitude, longitude, radius);
+        if (cells.size() == 0)
+            cells.add("");
+
         SQLiteDatabase db = this.getReadableDatabase();
-        String query = "SELECT * FROM location";
+        List<NearbyWaypoint> result = new ArrayList<>();
+        float[] distance = new float[1];
+        for (String cell : cells) {
+            Cursor cursor = null;
+            try {
+                String query = "SELECT ID, time, name, latitude, longitude FROM location";
+                query += " WHERE geohash >= ? AND geohash < ? AND deleted IS NULL";
+                cursor = db.rawQuery(query, new String[]{cell, cell + GeoHash.UPPER});
+                while (cursor.moveToNext()) {
+                    double lat = cursor.getDouble(3);
+                    double lon = cursor.getDouble(4);
+                    Location.distanceBetween(latitude, longitude, lat, lon, distance);
+                    if (distance[0] <= radius)
+                        result.add(new NearbyWaypoint(cursor.getLong(0), cursor.getLong(1), cursor.getString(2), lat, lon, distance[0]));
+                }
+            } finally {
+                if (cursor != null)
+                    cursor.close();
+            }
+        }
+
+        Collections.sort(result, new Comparator<NearbyWaypoint>() {
+            @Override
+            public int compare(NearbyWaypoint wpt1, NearbyWaypoint wpt2) {
+                return Float.compare(wpt1.distance, wpt2.distance);
+            }
+        });
+        return result;
+    }
+
+    // Up to count waypoints, nearest first
+    public List<NearbyWaypoint> getNearestWaypoints(double latitude, double longitude, int count) {
+        // Widen the circle until it holds enough waypoints, the result within a circle is exact
+        double radius = NEAREST_RADIUS;
+        List<NearbyWaypoint> result = getWaypointsWithin(latitude, longitude, radius);
+        while (result.size() < count && radius < NEAREST_RADIUS_MAX) {
+            radius *= 4;
+            result = getWaypointsWithin(latitude, longitude, radius);
+        }
+        return (result.size() > count ? new ArrayList<>(result.subList(0, count)) : result);
+    }
+
+    // Number of waypoints after time, counting stops at max
+    public int getNewerWaypointCount(long time, int max) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        // Walks the waypoints on the name index, the unary plus keeps the planner off the time index,
+        // which would walk all later trackpoints
+        String query = "SELECT COUNT(*) FROM (SELECT ID FROM location";
+        query += " WHERE name >= '' AND deleted IS NULL AND +time > ?";
+        query += " LIMIT " + max + ")";
+        return (int) DatabaseUtils.longForQuery(db, query, new String[]{Long.toString(time)});
+    }
+
+    public Cursor getProximityWaypoints() {
+        SQLiteDatabase db = this.getReadableDatabase();
+        String query = "SELECT ID, latitude, longitude, proximity FROM location";
+        // geohash >= '' walks the waypoints only
+        query += " WHERE geohash >= '' AND proximity > 0 AND deleted IS NULL";
+        return db.rawQuery(query, new String[0]);
+    }
+
+    public Cursor getUnsentLocations(String[] columns) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        String query = "SELECT " + (columns == null ? "*" : TextUtils.join(", ", columns)) + " FROM location";
         query += " WHERE sent IS NULL";
         query += " ORDER BY time DESC";
         return db.rawQuery(query, new String[]{});
@@ -688,6 +1233,22 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     }
 
     public Location getLocation(long id) {
+        PendingLocation recent;
+        synchronized (mRecentLocations) {
+            recent = mRecentLocations.get(id);
+        }
+        if (recent != null) {
+            Location location = new Location(recent.name); // hack
+            location.setTime(recent.location.getTime());
+            location.setLatitude(recent.location.getLatitude());
+            location.setLongitude(recent.location.getLongitude());
+            if (recent.location.hasAltitude())
+                location.setAltitude(recent.location.getAltitude());
+            if (recent.location.hasAccuracy())
+                location.setAccuracy(recent.location.getAccuracy());
+            return location;
+        }
+
         SQLiteDatabase db = this.getReadableDatabase();
         String query = "SELECT * FROM location";
         query += " WHERE ID = " + id;
@@ -723,44 +1284,54 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
     // Activity
 
-    public DatabaseHelper insertActivityType(long time, int activity, int confidence) {
-        long id = -1;
-        synchronized (mContext.getApplicationContext()) {
+    public DatabaseHelper insertActivityTypes(final long time, final List<DetectedActivity> activities) {
+        boolean inserted = false;
+        synchronized (mLockActivityType) {
             SQLiteDatabase db = this.getWritableDatabase();
 
-            ContentValues cv = new ContentValues();
-            cv.put("time", time);
-            cv.put("activity", activity);
-            cv.put("confidence", confidence);
-
-            id = db.insert("activitytype", null, cv);
-            if (id == -1)
-                Log.e(TAG, "Insert activity type failed");
+            if (mStmtActivityTypeInsert == null)
+                mStmtActivityTypeInsert = db.compileStatement("INSERT INTO activitytype (time, activity, confidence) VALUES (?, ?, ?)");
+            SQLiteStatement stmt = mStmtActivityTypeInsert;
+            db.beginTransaction();
+            try {
+                for (DetectedActivity activity : activities) {
+                    stmt.bindLong(1, time);
+                    stmt.bindLong(2, activity.getType());
+                    stmt.bindLong(3, activity.getConfidence());
+                    if (stmt.executeInsert() == -1)
+                        Log.e(TAG, "Insert activity type failed");
+                    else
+                        inserted = true;
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
         }
 
-        if (id != -1)
-            for (ActivityTypeChangedListener listener : mActivityTypeChangedListeners)
-                try {
-                    listener.onActivityAdded(time, activity, confidence);
-                } catch (Throwable ex) {
-                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+        if (inserted)
+            post(new Dispatch<ActivityTypeChangedListener>(mActivityTypeChangedListeners) {
+                @Override
+                void deliver(ActivityTypeChangedListener listener) {
+                    listener.onActivitiesAdded(time, activities);
                 }
+            });
 
         return this;
     }
 
     public DatabaseHelper deleteActivityTypes() {
-        synchronized (mContext.getApplicationContext()) {
+        synchronized (mLockActivityType) {
             SQLiteDatabase db = this.getWritableDatabase();
             db.delete("activitytype", null, new String[]{});
         }
 
-        for (ActivityTypeChangedListener listener : mActivityTypeChangedListeners)
-            try {
+        post(new Dispatch<ActivityTypeChangedListener>(mActivityTypeChangedListeners) {
+            @Override
+            void deliver(ActivityTypeChangedListener listener) {
                 listener.onActivityDeleted(-1);
-            } catch (Throwable ex) {
-                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
             }
+        });
 
         return this;
     }
@@ -775,147 +1346,161 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
     // Activity duration
 
-    public DatabaseHelper updateActivity(long time, int activity, long duration) {
+    public DatabaseHelper updateActivity(final long time, final int activity, final long duration) {
         // Activity duration
-        int prev = -1;
-        long day = getDay(time);
+        final long day = getDay(time);
+        String column = getActivityColumn(activity);
 
-        String column;
-        synchronized (mContext.getApplicationContext()) {
+        boolean created = false;
+        long total = -1;
+        synchronized (mLockActivityDuration) {
             SQLiteDatabase db = this.getWritableDatabase();
 
-            switch (activity) {
-                case DetectedActivity.STILL:
-                    column = "still";
-                    break;
-                case DetectedActivity.ON_FOOT:
-                case DetectedActivity.WALKING:
-                    column = "walking";
-                    break;
-                case DetectedActivity.RUNNING:
-                    column = "running";
-                    break;
-                case DetectedActivity.ON_BICYCLE:
-                    column = "onbicycle";
-                    break;
-                case DetectedActivity.IN_VEHICLE:
-                    column = "invehicle";
-                    break;
-                default:
-                    column = "unknown";
-                    break;
-            }
-
-            Cursor c = null;
-            try {
-                c = db.query("activityduration", new String[]{column}, "time = ?", new String[]{Long.toString(day)}, null, null, null, null);
-                if (c.moveToFirst())
-                    prev = c.getInt(c.getColumnIndex(column));
-            } finally {
-                if (c != null)
-                    c.close();
+            // Increment existing day
+            int updated = 0;
+            if (duration > 0)
+                updated = incrementActivityDuration(db, column, day, duration);
+
+            // Create missing day
+            if (updated == 0) {
+                if (mStmtActivityDurationCreate == null)
+                    mStmtActivityDurationCreate = db.compileStatement(
+                            "INSERT OR IGNORE INTO activityduration (time, still, walking, running, onbicycle, invehicle, unknown)" +
+                                    " VALUES (?, 0, 0, 0, 0, 0, 0)");
+                mStmtActivityDurationCreate.bindLong(1, day);
+                created = (mStmtActivityDurationCreate.executeInsert() != -1);
+                if (created) {
+                    Log.i(TAG, "Created new day time=" + day);
+                    if (duration > 0 && incrementActivityDuration(db, column, day, duration) != 1)
+                        Log.e(TAG, "Update activity duration failed");
+                }
             }
 
-            if (prev < 0) {
-                Log.i(TAG, "Creating new day time=" + day);
-                ContentValues cv = new ContentValues();
-                cv.put("time", day);
-                cv.put("still", 0);
-                cv.put("walking", 0);
-                cv.put("running", 0);
-                cv.put("onbicycle", 0);
-                cv.put("invehicle", 0);
-                cv.put("unknown", 0);
-                if (db.insert("activityduration", null, cv) == -1)
-                    Log.e(TAG, "Insert activity duration failed");
-            }
-
-            if (duration > 0) {
-                ContentValues cv = new ContentValues();
-                cv.put(column, prev + duration);
-                if (db.update("activityduration", cv, "time = ?", new String[]{Long.toString(day)}) != 1)
-                    Log.e(TAG, "Update activity duration failed");
+            // Get total for listeners only
+            if (!created && updated > 0 && mActivityDurationChangedListeners.size() > 0) {
+                SQLiteStatement stmt = mStmtActivityDurationGet.get(column);
+                if (stmt == null) {
+                    stmt = db.compileStatement("SELECT " + column + " FROM activityduration WHERE time = ?");
+                    mStmtActivityDurationGet.put(column, stmt);
+                }
+                stmt.bindLong(1, day);
+                total = stmt.simpleQueryForLong();
             }
         }
 
-        if (prev < 0)
-            for (ActivityDurationChangedListener listener : mActivityDurationChangedListeners)
-                try {
+        if (created)
+            post(new Dispatch<ActivityDurationChangedListener>(mActivityDurationChangedListeners) {
+                @Override
+                void deliver(ActivityDurationChangedListener listener) {
                     listener.onActivityAdded(day);
-                } catch (Throwable ex) {
-                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
                 }
-        else if (duration > 0)
-            for (ActivityDurationChangedListener listener : mActivityDurationChangedListeners)
-                try {
-                    listener.onActivityUpdated(day, activity, prev + duration);
-                } catch (Throwable ex) {
-                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            });
+        else if (total >= 0) {
+            final long ftotal = total;
+            post(new Dispatch<ActivityDurationChangedListener>(mActivityDurationChangedListeners) {
+                @Override
+                void deliver(ActivityDurationChangedListener listener) {
+                    listener.onActivityUpdated(day, activity, ftotal);
                 }
+            });
+        }
 
         // Activity log
         long start = -1;
-        synchronized (mContext.getApplicationContext()) {
+        synchronized (mLockActivityLog) {
             SQLiteDatabase db = this.getWritableDatabase();
 
-            Cursor c = null;
+            if (mStmtActivityLogGet == null)
+                mStmtActivityLogGet = db.compileStatement("SELECT start FROM activitylog WHERE finish = ? AND activity = ?");
+            mStmtActivityLogGet.bindLong(1, time);
+            mStmtActivityLogGet.bindLong(2, activity);
             try {
-                c = db.query("activitylog", new String[]{"start"}, "finish = ? AND activity = ?",
-                        new String[]{Long.toString(time), Integer.toString(activity)}, null, null, null, null);
-                if (c.moveToFirst())
-                    start = c.getLong(c.getColumnIndex("start"));
-            } finally {
-                if (c != null)
-                    c.close();
+                start = mStmtActivityLogGet.simpleQueryForLong();
+            } catch (SQLiteDoneException ignored) {
+                // No rows
             }
 
             if (start < 0) {
-                ContentValues cv = new ContentValues();
-                cv.put("start", time);
-                cv.put("finish", time + duration);
-                cv.put("activity", activity);
-                if (db.insert("activitylog", null, cv) == -1)
+                if (mStmtActivityLogInsert == null)
+                    mStmtActivityLogInsert = db.compileStatement("INSERT INTO activitylog (start, finish, activity) VALUES (?, ?, ?)");
+                mStmtActivityLogInsert.bindLong(1, time);
+                mStmtActivityLogInsert.bindLong(2, time + duration);
+                mStmtActivityLogInsert.bindLong(3, activity);
+                if (mStmtActivityLogInsert.executeInsert() == -1)
                     Log.e(TAG, "Insert activity log failed");
             } else {
-                ContentValues cv = new ContentValues();
-                cv.put("finish", time + duration);
-                if (db.update("activitylog", cv, "start = ?", new String[]{Long.toString(start)}) != 1)
+                if (mStmtActivityLogUpdate == null)
+                    mStmtActivityLogUpdate = db.compileStatement("UPDATE activitylog SET finish = ? WHERE start = ?");
+                mStmtActivityLogUpdate.bindLong(1, time + duration);
+                mStmtActivityLogUpdate.bindLong(2, start);
+                if (mStmtActivityLogUpdate.executeUpdateDelete() != 1)
                     Log.e(TAG, "Update activity log failed");
             }
         }
 
         if (start < 0)
-            for (ActivityLogChangedListener listener : mActivityLogChangedListeners)
-                try {
+            post(new Dispatch<ActivityLogChangedListener>(mActivityLogChangedListeners) {
+                @Override
+                void deliver(ActivityLogChangedListener listener) {
                     listener.onActivityAdded(time, time + duration, activity);
-                } catch (Throwable ex) {
-                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
                 }
-        else
-            for (ActivityLogChangedListener listener : mActivityLogChangedListeners)
-                try {
-                    listener.onActivityUpdated(start, time + duration, activity);
-                } catch (Throwable ex) {
-                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            });
+        else {
+            final long fstart = start;
+            post(new Dispatch<ActivityLogChangedListener>(mActivityLogChangedListeners) {
+                @Override
+                void deliver(ActivityLogChangedListener listener) {
+                    listener.onActivityUpdated(fstart, time + duration, activity);
                 }
+            });
+        }
 
         return this;
     }
 
-    public DatabaseHelper deleteActivity(long id) {
+    private int incrementActivityDuration(SQLiteDatabase db, String column, long day, long duration) {
+        SQLiteStatement stmt = mStmtActivityDurationIncrement.get(column);
+        if (stmt == null) {
+            stmt = db.compileStatement("UPDATE activityduration SET " + column + " = " + column + " + ? WHERE time = ?");
+            mStmtActivityDurationIncrement.put(column, stmt);
+        }
+        stmt.bindLong(1, duration);
+        stmt.bindLong(2, day);
+        return stmt.executeUpdateDelete();
+    }
+
+    private static String getActivityColumn(int activity) {
+        switch (activity) {
+            case DetectedActivity.STILL:
+                return "still";
+            case DetectedActivity.ON_FOOT:
+            case DetectedActivity.WALKING:
+                return "walking";
+            case DetectedActivity.RUNNING:
+                return "running";
+            case DetectedActivity.ON_BICYCLE:
+                return "onbicycle";
+            case DetectedActivity.IN_VEHICLE:
+                return "invehicle";
+            default:
+                return "unknown";
+        }
+    }
+
+    public DatabaseHelper deleteActivity(final long id) {
         // This will not delete the activity log
-        synchronized (mContext.getApplicationContext()) {
+        synchronized (mLockActivityDuration) {
             SQLiteDatabase db = this.getWritableDatabase();
             if (db.delete("activityduration", "ID = ?", new String[]{Long.toString(id)}) != 1)
                 Log.e(TAG, "Delete activity duration failed");
         }
 
-        for (ActivityDurationChangedListener listener : mActivityDurationChangedListeners)
-            try {
+        post(new Dispatch<ActivityDurationChangedListener>(mActivityDurationChangedListeners) {
+            @Override
+            void deliver(ActivityDurationChangedListener listener) {
                 listener.onActivityDeleted(id);
-            } catch (Throwable ex) {
-                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
             }
+        });
 
         return this;
     }
@@ -940,55 +1525,617 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         return db.rawQuery(query, new String[]{Long.toString(to), Long.toString(from)});
     }
 
-    // Steps
+    // Archive
 
-    public DatabaseHelper updateSteps(long time, int delta) {
-        int count = -1;
-        long day = getDay(time);
+    // Moves trackpoints before the month of time into per month archive segments
+    public DatabaseHelper archiveTrackpoints(long time) {
+        flushLocations();
 
-        synchronized (mContext.getApplicationContext()) {
-            SQLiteDatabase db = this.getWritableDatabase();
+        // Trackpoints still to be sent to the lifeline stay
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        boolean lifeline = prefs.getBoolean(SettingsFragment.PREF_LIFELINE_ENABLED, SettingsFragment.DEFAULT_LIFELINE_ENABLED);
+        // The unary plus keeps the name and sent indexes out, the time index is the selective one
+        String archivable = "+name IS NULL" + (lifeline ? " AND NOT +sent IS NULL" : "");
 
-            Cursor c = null;
+        long before = getMonth(time);
+        int months = 0;
+        synchronized (mLockLocation) {
+            SQLiteDatabase db = this.getWritableDatabase();
             try {
-                c = db.query("step", new String[]{"count"}, "time = ?", new String[]{Long.toString(day)}, null, null, null, null);
-                if (c.moveToFirst())
-                    count = c.getInt(c.getColumnIndex("count"));
-            } finally {
-                if (c != null)
-                    c.close();
+                while (true) {
+                    long first;
+                    Cursor cursor = null;
+                    try {
+                        cursor = db.rawQuery("SELECT MIN(time) FROM location WHERE " + archivable + " AND time < ?",
+                                new String[]{Long.toString(before)});
+                        if (!cursor.moveToFirst() || cursor.isNull(0))
+                            break;
+                        first = cursor.getLong(0);
+                    } finally {
+                        if (cursor != null)
+                            cursor.close();
+                    }
+
+                    long month = getMonth(first);
+                    archiveMonth(db, archivable, month, getNextMonth(month));
+                    months++;
+                }
+            } catch (IOException ex) {
+                Log.e(TAG, "Archive: " + ex.toString() + "\n" + Log.getStackTraceString(ex));
             }
 
-            if (count < 0) {
-                Log.i(TAG, "Creating new day time=" + day);
-                ContentValues cv = new ContentValues();
-                cv.put("time", day);
-                cv.put("count", delta);
-                if (db.insert("step", null, cv) == -1)
-                    Log.e(TAG, "Insert step failed");
-            } else {
-                ContentValues cv = new ContentValues();
-                cv.put("count", count + delta);
-                if (db.update("step", cv, "time = ?", new String[]{Long.toString(day)}) != 1)
-                    Log.e(TAG, "Update step failed");
+            synchronized (mRecentLocations) {
+                mRecentLocations.clear();
+            }
+        }
+
+        Log.i(TAG, "Archived months=" + months + " before=" + SimpleDateFormat.getDateInstance().format(before));
+        if (months > 0)
+            postLocationUpdated();
+
+        return this;
+    }
+
+    private void archiveMonth(SQLiteDatabase db, String archivable, long from, long to) throws IOException {
+        db.beginTransaction();
+        try {
+            // Merge with trackpoints archived before, so that segments do not overlap
+            List<TrackSegment.Trackpoint> points = new ArrayList<>();
+            Cursor cursor = null;
+            try {
+                cursor = db.rawQuery("SELECT data FROM archive WHERE time_from >= ? AND time_from < ? ORDER BY time_from, ID",
+                        new String[]{Long.toString(from), Long.toString(to)});
+                while (cursor.moveToNext())
+                    points.addAll(TrackSegment.decode(cursor.getBlob(0)));
+            } finally {
+                if (cursor != null)
+                    cursor.close();
+            }
+            boolean merge = (points.size() > 0);
+
+            try {
+                String query = "SELECT ID, time, provider, latitude, longitude, altitude, altitude_type, speed, bearing, accuracy";
+                query += " FROM location";
+                query += " WHERE time >= ? AND time < ? AND " + archivable + " AND deleted IS NULL";
+                query += " ORDER BY time, ID";
+                cursor = db.rawQuery(query, new String[]{Long.toString(from), Long.toString(to)});
+                while (cursor.moveToNext()) {
+                    TrackSegment.Trackpoint point = new TrackSegment.Trackpoint();
+                    point.id = cursor.getLong(0);
+                    point.time = cursor.getLong(1);
+                    point.provider = cursor.getString(2);
+                    point.latitude = cursor.getDouble(3);
+                    point.longitude = cursor.getDouble(4);
+                    if (!cursor.isNull(5))
+                        point.altitude = cursor.getDouble(5);
+                    point.altitude_type = (cursor.isNull(6) ? 0 : cursor.getInt(6));
+                    if (!cursor.isNull(7))
+                        point.speed = cursor.getFloat(7);
+                    if (!cursor.isNull(8))
+                        point.bearing = cursor.getFloat(8);
+                    if (!cursor.isNull(9))
+                        point.accuracy = cursor.getFloat(9);
+                    points.add(point);
+                }
+            } finally {
+                if (cursor != null)
+                    cursor.close();
+            }
+
+            if (merge)
+                Collections.sort(points, new Comparator<TrackSegment.Trackpoint>() {
+                    @Override
+                    public int compare(TrackSegment.Trackpoint p1, TrackSegment.Trackpoint p2) {
+                        if (p1.time != p2.time)
+                            return (p1.time < p2.time ? -1 : 1);
+                        return (p1.id < p2.id ? -1 : (p1.id == p2.id ? 0 : 1));
+                    }
+                });
+
+            db.delete("archive", "time_from >= ? AND time_from < ?", new String[]{Long.toString(from), Long.toString(to)});
+            long start = SystemClock.elapsedRealtime();
+            long bytes = insertArchiveSegments(db, points);
+            long elapsed = SystemClock.elapsedRealtime() - start;
+
+            // Deleted trackpoints, which have been sent, are dropped
+            int rows = db.delete("location", "time >= ? AND time < ? AND " + archivable,
+                    new String[]{Long.toString(from), Long.toString(to)});
+
+            db.setTransactionSuccessful();
+            Log.i(TAG, "Archived month=" + SimpleDateFormat.getDateInstance().format(from) +
+                    " trackpoints=" + points.size() + " removed=" + rows +
+                    " bytes=" + bytes + " encode=" + elapsed + " ms");
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private long insertArchiveSegments(SQLiteDatabase db, List<TrackSegment.Trackpoint> points) throws IOException {
+        long bytes = 0;
+        for (int i = 0; i < points.size(); i += ARCHIVE_SEGMENT_SIZE) {
+            List<TrackSegment.Trackpoint> segment = points.subList(i, Math.min(i + ARCHIVE_SEGMENT_SIZE, points.size()));
+            ContentValues cv = new ContentValues();
+            cv.put("time_from", segment.get(0).time);
+            cv.put("time_to", segment.get(segment.size() - 1).time);
+            cv.put("count", segment.size());
+            byte[] data = TrackSegment.encode(segment, ARCHIVE_FORMAT);
+            cv.put("data", data);
+            if (db.insert("archive", null, cv) == -1)
+                throw new IOException("Insert archive segment failed");
+            bytes += data.length;
+        }
+        return bytes;
+    }
+
+    private int deleteArchivedTrackpoints(SQLiteDatabase db, long from, long to) {
+        int rows = 0;
+        Cursor cursor = null;
+        db.beginTransaction();
+        try {
+            cursor = db.rawQuery("SELECT ID, data FROM archive WHERE time_to >= ? AND time_from <= ?",
+                    new String[]{Long.toString(from), Long.toString(to)});
+            while (cursor.moveToNext()) {
+                List<TrackSegment.Trackpoint> points = TrackSegment.decode(cursor.getBlob(1));
+                List<TrackSegment.Trackpoint> keep = new ArrayList<>();
+                for (TrackSegment.Trackpoint point : points)
+                    if (point.time < from || point.time > to)
+                        keep.add(point);
+                rows += points.size() - keep.size();
+
+                db.delete("archive", "ID = ?", new String[]{Long.toString(cursor.getLong(0))});
+                insertArchiveSegments(db, keep);
+            }
+            db.setTransactionSuccessful();
+        } catch (IOException ex) {
+            Log.e(TAG, "Archive: " + ex.toString() + "\n" + Log.getStackTraceString(ex));
+            rows = 0;
+        } finally {
+            if (cursor != null)
+                cursor.close();
+            db.endTransaction();
+        }
+        Log.i(TAG, rows + " archived trackpoints deleted");
+        return rows;
+    }
+
+    private boolean isArchived(SQLiteDatabase db, long from, long to) {
+        return (DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM archive WHERE time_to >= ? AND time_from <= ?",
+                new String[]{Long.toString(from), Long.toString(to)}) > 0);
+    }
+
+    // Track days
+
+    // Extends the daily statistics with flushed trackpoints, a day receiving an older trackpoint is rebuilt
+    // Returns the rebuilt days, which include the track detail of the batch already
+    private Set<Long> updateTrackDays(SQLiteDatabase db, List<PendingLocation> batch) {
+        TrackDay current = null;
+        Set<Long> rebuild = new HashSet<>();
+        for (PendingLocation pending : batch) {
+            if (pending.id == -1 || pending.name != null)
+                continue;
+
+            Location location = pending.location;
+            long day = getDay(location.getTime());
+            if (rebuild.contains(day))
+                continue;
+
+            if (current == null || current.time != day) {
+                if (current != null)
+                    saveTrackDay(db, current);
+                current = getTrackDay(db, day);
+            }
+
+            if (location.getTime() < current.last_time) {
+                rebuild.add(day);
+                current = null;
+            } else
+                current.add(location.getTime(), location.getLatitude(), location.getLongitude(),
+                        location.hasAltitude() ? location.getAltitude() : Double.NaN,
+                        location.hasSpeed() ? location.getSpeed() : Float.NaN);
+        }
+
+        if (current != null)
+            saveTrackDay(db, current);
+
+        for (long day : rebuild)
+            rebuildTrackDay(db, day);
+
+        return rebuild;
+    }
+
+    private void invalidateTrackDay(long time) {
+        long day = getDay(time);
+        invalidateTrackDays(day, getNextDay(day));
+    }
+
+    // Marks the days in [from, to) to be rebuilt in the background, persistently
+    private void invalidateTrackDays(long from, long to) {
+        synchronized (mLockTrackDays) {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+            long dirtyFrom = prefs.getLong(SettingsFragment.PREF_TRACKDAY_DIRTY_FROM, Long.MAX_VALUE);
+            long dirtyTo = prefs.getLong(SettingsFragment.PREF_TRACKDAY_DIRTY_TO, Long.MIN_VALUE);
+            if (from < dirtyFrom || to > dirtyTo)
+                prefs.edit()
+                        .putLong(SettingsFragment.PREF_TRACKDAY_DIRTY_FROM, Math.min(dirtyFrom, from))
+                        .putLong(SettingsFragment.PREF_TRACKDAY_DIRTY_TO, Math.max(dirtyTo, to))
+                        .apply();
+        }
+
+        // Later changes postpone the rebuild, so that a series of edits is rebuilt once
+        handler.removeMessages(MSG_REBUILD_TRACKDAYS);
+        handler.sendEmptyMessageDelayed(MSG_REBUILD_TRACKDAYS, TRACKDAY_REBUILD_DELAY);
+    }
+
+    // Rebuilds the first month of the marked days, returns if there is more to do
+    private boolean rebuildDirtyTrackDays() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        synchronized (mLockLocation) {
+            long from;
+            long to;
+            synchronized (mLockTrackDays) {
+                if (!prefs.contains(SettingsFragment.PREF_TRACKDAY_DIRTY_FROM))
+                    return false;
+                from = prefs.getLong(SettingsFragment.PREF_TRACKDAY_DIRTY_FROM, Long.MAX_VALUE);
+                to = prefs.getLong(SettingsFragment.PREF_TRACKDAY_DIRTY_TO, Long.MIN_VALUE);
+            }
+
+            // Days before the first trackpoint are only cleared
+            SQLiteDatabase db = this.getWritableDatabase();
+            long first = getFirstTrackpointTime(db, from, to);
+            long end = (first < 0 ? to : Math.min(to, getNextMonth(getMonth(first))));
+            Log.i(TAG, "Rebuilding track days from=" + from + " to=" + end + " dirty to=" + to);
+            rebuildTrackDays(db, from, end, true);
+
+            // Edits hold the location lock, so only the upgrade can have marked days meanwhile
+            synchronized (mLockTrackDays) {
+                long dirtyFrom = prefs.getLong(SettingsFragment.PREF_TRACKDAY_DIRTY_FROM, Long.MAX_VALUE);
+                long dirtyTo = prefs.getLong(SettingsFragment.PREF_TRACKDAY_DIRTY_TO, Long.MIN_VALUE);
+                long next = (dirtyFrom < from ? dirtyFrom : end);
+                if (next >= dirtyTo) {
+                    prefs.edit()
+                            .remove(SettingsFragment.PREF_TRACKDAY_DIRTY_FROM)
+                            .remove(SettingsFragment.PREF_TRACKDAY_DIRTY_TO)
+                            .apply();
+                    Log.i(TAG, "Rebuilt dirty track days");
+                } else
+                    prefs.edit().putLong(SettingsFragment.PREF_TRACKDAY_DIRTY_FROM, next).apply();
+                return (next < dirtyTo);
+            }
+        }
+    }
+
+    // Time of the first trackpoint in [from, to), hot or archived, -1 if none
+    private long getFirstTrackpointTime(SQLiteDatabase db, long from, long to) {
+        String[] args = new String[]{Long.toString(from), Long.toString(to)};
+        long first = -1;
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("SELECT MIN(time) FROM location WHERE time >= ? AND time < ? AND +name IS NULL AND deleted IS NULL", args);
+            if (cursor.moveToFirst() && !cursor.isNull(0))
+                first = cursor.getLong(0);
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+
+        cursor = null;
+        try {
+            cursor = db.rawQuery("SELECT MIN(time_from) FROM archive WHERE time_to >= ? AND time_from < ?", args);
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                long archived = Math.max(from, cursor.getLong(0));
+                if (first < 0 || archived < first)
+                    first = archived;
             }
+        } finally {
+            if (cursor != null)
+                cursor.close();
         }
+        return first;
+    }
+
+    private void rebuildTrackDay(SQLiteDatabase db, long time) {
+        long day = getDay(time);
+        rebuildTrackDays(db, day, getNextDay(day), true);
+    }
 
-        for (StepCountChangedListener listener : mStepCountChangedListeners)
+    // Recomputes the days and track detail in [from, to) from the trackpoints, from and to are day boundaries
+    private void rebuildTrackDays(SQLiteDatabase db, long from, long to, boolean archived) {
+        db.beginTransaction();
+        try {
+            int days = db.delete("trackday", "time >= ? AND time < ?", new String[]{Long.toString(from), Long.toString(to)});
+            db.delete("trackdetail", "time >= ? AND time < ?", new String[]{Long.toString(from), Long.toString(to)});
+
+            LocationPager cursor = null;
             try {
-                if (count < 0)
-                    listener.onStepCountAdded(day, delta);
+                cursor = getLocationPager(db, new String[]{"time", "latitude", "longitude", "altitude", "speed", "altitude_type"},
+                        from, to - 1, true, false, archived);
+                TrackDay current = null;
+                TrackDetail[] details = new TrackDetail[DETAIL_SIZES.length];
+                while (cursor.moveToNext()) {
+                    long time = cursor.getLong(0);
+                    long day = getDay(time);
+                    if (current == null || current.time != day) {
+                        if (current != null)
+                            saveTrackDay(db, current);
+                        current = new TrackDay(day);
+                    }
+                    double latitude = cursor.getDouble(1);
+                    double longitude = cursor.getDouble(2);
+                    double altitude = (cursor.isNull(3) ? Double.NaN : cursor.getDouble(3));
+                    current.add(time, latitude, longitude, altitude, cursor.isNull(4) ? Float.NaN : cursor.getFloat(4));
+
+                    int altitude_type = (cursor.isNull(5) ? BackgroundService.ALTITUDE_NONE : cursor.getInt(5));
+                    for (int level = 0; level < DETAIL_SIZES.length; level++) {
+                        long bucket = getDetailTime(day, time, level);
+                        if (details[level] == null || details[level].time != bucket) {
+                            if (details[level] != null)
+                                saveTrackDetail(db, details[level]);
+                            details[level] = new TrackDetail(level, bucket);
+                        }
+                        details[level].add(time, latitude, longitude, altitude, altitude_type);
+                    }
+                }
+                if (current != null)
+                    saveTrackDay(db, current);
+                for (TrackDetail detail : details)
+                    if (detail != null)
+                        saveTrackDetail(db, detail);
+            } finally {
+                if (cursor != null)
+                    cursor.close();
+            }
+
+            db.setTransactionSuccessful();
+            Log.i(TAG, "Rebuilt track days, deleted=" + days);
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private TrackDay getTrackDay(SQLiteDatabase db, long day) {
+        TrackDay trackDay = new TrackDay(day);
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("SELECT * FROM trackday WHERE time = ?", new String[]{Long.toString(day)});
+            if (cursor.moveToFirst()) {
+                trackDay.id = cursor.getLong(cursor.getColumnIndex("ID"));
+                trackDay.count = cursor.getInt(cursor.getColumnIndex("count"));
+                trackDay.distance = cursor.getDouble(cursor.getColumnIndex("distance"));
+                trackDay.moving = cursor.getLong(cursor.getColumnIndex("moving"));
+                trackDay.ascent = cursor.getDouble(cursor.getColumnIndex("ascent"));
+                trackDay.descent = cursor.getDouble(cursor.getColumnIndex("descent"));
+                int colMaxSpeed = cursor.getColumnIndex("maxspeed");
+                trackDay.maxspeed = (cursor.isNull(colMaxSpeed) ? Float.NaN : cursor.getFloat(colMaxSpeed));
+                trackDay.last_time = cursor.getLong(cursor.getColumnIndex("last_time"));
+                trackDay.last_latitude = cursor.getDouble(cursor.getColumnIndex("last_latitude"));
+                trackDay.last_longitude = cursor.getDouble(cursor.getColumnIndex("last_longitude"));
+                int colReference = cursor.getColumnIndex("reference_altitude");
+                trackDay.reference_altitude = (cursor.isNull(colReference) ? Double.NaN : cursor.getDouble(colReference));
+            }
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        return trackDay;
+    }
+
+    private void saveTrackDay(SQLiteDatabase db, TrackDay trackDay) {
+        ContentValues cv = new ContentValues();
+        cv.put("time", trackDay.time);
+        cv.put("count", trackDay.count);
+        cv.put("distance", trackDay.distance);
+        cv.put("moving", trackDay.moving);
+        cv.put("ascent", trackDay.ascent);
+        cv.put("descent", trackDay.descent);
+        if (Float.isNaN(trackDay.maxspeed))
+            cv.putNull("maxspeed");
+        else
+            cv.put("maxspeed", trackDay.maxspeed);
+        cv.put("last_time", trackDay.last_time);
+        cv.put("last_latitude", trackDay.last_latitude);
+        cv.put("last_longitude", trackDay.last_longitude);
+        if (Double.isNaN(trackDay.reference_altitude))
+            cv.putNull("reference_altitude");
+        else
+            cv.put("reference_altitude", trackDay.reference_altitude);
+
+        if (trackDay.id < 0) {
+            trackDay.id = db.insert("trackday", null, cv);
+            if (trackDay.id == -1)
+                Log.e(TAG, "Insert track day failed");
+        } else if (db.update("trackday", cv, "ID = ?", new String[]{Long.toString(trackDay.id)}) != 1)
+            Log.e(TAG, "Update track day failed");
+    }
+
+    // Time of a trackpoint, -1 for waypoints
+    private long getTrackpointTime(SQLiteDatabase db, long id) {
+        if (mStmtTrackpointTime == null)
+            mStmtTrackpointTime = db.compileStatement("SELECT time FROM location WHERE ID = ? AND name IS NULL");
+        mStmtTrackpointTime.bindLong(1, id);
+        try {
+            return mStmtTrackpointTime.simpleQueryForLong();
+        } catch (SQLiteDoneException ignored) {
+            return -1;
+        }
+    }
+
+    // Totals over the days starting in [from, to]
+    public Cursor getTrackTotals(long from, long to) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        String query = "SELECT COUNT(*) AS days, SUM(count) AS count, SUM(distance) AS distance, SUM(moving) AS moving";
+        query += ", SUM(ascent) AS ascent, SUM(descent) AS descent, MAX(maxspeed) AS maxspeed";
+        query += " FROM trackday";
+        query += " WHERE time >= ? AND time <= ?";
+        return db.rawQuery(query, new String[]{Long.toString(from), Long.toString(to)});
+    }
+
+    // Track detail
+
+    // Adds flushed trackpoints to the buckets of each level, which does not depend on their order
+    private void updateTrackDetails(SQLiteDatabase db, List<PendingLocation> batch, Set<Long> rebuilt) {
+        Map<String, TrackDetail> details = new LinkedHashMap<>();
+        for (PendingLocation pending : batch) {
+            if (pending.id == -1 || pending.name != null)
+                continue;
+
+            Location location = pending.location;
+            long time = location.getTime();
+            long day = getDay(time);
+            if (rebuilt.contains(day))
+                continue;
+            for (int level = 0; level < DETAIL_SIZES.length; level++) {
+                long bucket = getDetailTime(day, time, level);
+                String key = level + ":" + bucket;
+                TrackDetail detail = details.get(key);
+                if (detail == null) {
+                    detail = getTrackDetail(db, level, bucket);
+                    details.put(key, detail);
+                }
+                detail.add(time, location.getLatitude(), location.getLongitude(),
+                        location.hasAltitude() ? location.getAltitude() : Double.NaN, pending.altitude_type);
+            }
+        }
+
+        for (TrackDetail detail : details.values())
+            saveTrackDetail(db, detail);
+    }
+
+    private long getDetailTime(long day, long time, int level) {
+        long size = DETAIL_SIZES[level];
+        return day + (time - day) / size * size;
+    }
+
+    private TrackDetail getTrackDetail(SQLiteDatabase db, int level, long time) {
+        TrackDetail detail = new TrackDetail(level, time);
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("SELECT * FROM trackdetail WHERE level = ? AND time = ?",
+                    new String[]{Integer.toString(level), Long.toString(time)});
+            if (cursor.moveToFirst()) {
+                detail.id = cursor.getLong(cursor.getColumnIndex("ID"));
+                detail.count = cursor.getInt(cursor.getColumnIndex("count"));
+                detail.last_time = cursor.getLong(cursor.getColumnIndex("last_time"));
+                detail.latitude = cursor.getDouble(cursor.getColumnIndex("latitude"));
+                detail.longitude = cursor.getDouble(cursor.getColumnIndex("longitude"));
+                detail.altitude_sum = cursor.getDouble(cursor.getColumnIndex("altitude_sum"));
+                detail.altitude_count = cursor.getInt(cursor.getColumnIndex("altitude_count"));
+                int colMin = cursor.getColumnIndex("min_altitude");
+                int colMax = cursor.getColumnIndex("max_altitude");
+                int colType = cursor.getColumnIndex("altitude_type");
+                detail.min_altitude = (cursor.isNull(colMin) ? Double.NaN : cursor.getDouble(colMin));
+                detail.max_altitude = (cursor.isNull(colMax) ? Double.NaN : cursor.getDouble(colMax));
+                detail.altitude_type = (cursor.isNull(colType) ? BackgroundService.ALTITUDE_NONE : cursor.getInt(colType));
+            }
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        return detail;
+    }
+
+    private void saveTrackDetail(SQLiteDatabase db, TrackDetail detail) {
+        ContentValues cv = new ContentValues();
+        cv.put("level", detail.level);
+        cv.put("time", detail.time);
+        cv.put("count", detail.count);
+        cv.put("last_time", detail.last_time);
+        cv.put("latitude", detail.latitude);
+        cv.put("longitude", detail.longitude);
+        cv.put("altitude_sum", detail.altitude_sum);
+        cv.put("altitude_count", detail.altitude_count);
+        if (Double.isNaN(detail.min_altitude))
+            cv.putNull("min_altitude");
+        else
+            cv.put("min_altitude", detail.min_altitude);
+        if (Double.isNaN(detail.max_altitude))
+            cv.putNull("max_altitude");
+        else
+            cv.put("max_altitude", detail.max_altitude);
+        cv.put("altitude_type", detail.altitude_type);
+
+        if (detail.id < 0) {
+            detail.id = db.insert("trackdetail", null, cv);
+            if (detail.id == -1)
+                Log.e(TAG, "Insert track detail failed");
+        } else if (db.update("trackdetail", cv, "ID = ?", new String[]{Long.toString(detail.id)}) != 1)
+            Log.e(TAG, "Update track detail failed");
+    }
+
+    // The track in [from, to] in about the requested number of points:
+    // the trackpoints themselves when there are not too many, else the last position
+    // and average altitude of the buckets of the finest level which fits
+    public Cursor getTrackDetail(long from, long to, int points) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        String[] columns = new String[]{"time", "latitude", "longitude", "altitude", "altitude_type"};
+
+        long count = DatabaseUtils.longForQuery(db, "SELECT IFNULL(SUM(count), 0) FROM trackday WHERE time >= ? AND time <= ?",
+                new String[]{Long.toString(getDay(from)), Long.toString(to)});
+        if (count <= points)
+            return getLocations(columns, from, to, true, false, true, points);
+
+        int level = 0;
+        while (level < DETAIL_SIZES.length - 1 && (to - from) / DETAIL_SIZES[level] > points)
+            level++;
+        Log.i(TAG, "Track detail level=" + level + " trackpoints=" + count + " points=" + points);
+
+        String query = "SELECT last_time AS time, latitude, longitude";
+        query += ", CASE WHEN altitude_count > 0 THEN altitude_sum / altitude_count END AS altitude";
+        query += ", altitude_type, count, min_altitude, max_altitude";
+        query += " FROM trackdetail";
+        query += " WHERE level = ? AND time > ? AND time <= ? AND last_time >= ?";
+        query += " ORDER BY time";
+        return db.rawQuery(query, new String[]{Integer.toString(level),
+                Long.toString(from - DETAIL_SIZES[level]), Long.toString(to), Long.toString(from)});
+    }
+
+    // Steps
+
+    public DatabaseHelper updateSteps(long time, int delta) {
+        long day = getDay(time);
+
+        boolean created = false;
+        int count = -1;
+        synchronized (mLockStep) {
+            SQLiteDatabase db = this.getWritableDatabase();
+
+            // Increment existing day
+            if (mStmtStepIncrement == null)
+                mStmtStepIncrement = db.compileStatement("UPDATE step SET count = count + ? WHERE time = ?");
+            mStmtStepIncrement.bindLong(1, delta);
+            mStmtStepIncrement.bindLong(2, day);
+
+            // Create missing day
+            if (mStmtStepIncrement.executeUpdateDelete() == 0) {
+                if (mStmtStepCreate == null)
+                    mStmtStepCreate = db.compileStatement("INSERT OR IGNORE INTO step (time, count) VALUES (?, ?)");
+                mStmtStepCreate.bindLong(1, day);
+                mStmtStepCreate.bindLong(2, delta);
+                created = (mStmtStepCreate.executeInsert() != -1);
+                if (created)
+                    Log.i(TAG, "Created new day time=" + day);
                 else
-                    listener.onStepCountUpdated(day, count + delta);
-            } catch (Throwable ex) {
-                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                    Log.e(TAG, "Update step failed");
+            }
+
+            // Get count for listeners only
+            if (!created && mStepCountChangedListeners.size() > 0) {
+                if (mStmtStepGet == null)
+                    mStmtStepGet = db.compileStatement("SELECT count FROM step WHERE time = ?");
+                mStmtStepGet.bindLong(1, day);
+                count = (int) mStmtStepGet.simpleQueryForLong();
             }
+        }
+
+        if (created)
+            postStepCountAdded(day, delta);
+        else if (count >= 0)
+            postStepCountUpdated(day, count);
 
         return this;
     }
 
     public DatabaseHelper updateSteps(long id, long time, int value) {
-        synchronized (mContext.getApplicationContext()) {
+        synchronized (mLockStep) {
             SQLiteDatabase db = this.getWritableDatabase();
             ContentValues cv = new ContentValues();
             cv.put("count", value);
@@ -996,29 +2143,24 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 Log.e(TAG, "Update step failed");
         }
 
-        for (StepCountChangedListener listener : mStepCountChangedListeners)
-            try {
-                listener.onStepCountUpdated(time, value);
-            } catch (Throwable ex) {
-                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-            }
+        postStepCountUpdated(time, value);
 
         return this;
     }
 
-    public DatabaseHelper deleteStep(long id) {
-        synchronized (mContext.getApplicationContext()) {
+    public DatabaseHelper deleteStep(final long id) {
+        synchronized (mLockStep) {
             SQLiteDatabase db = this.getWritableDatabase();
             if (db.delete("step", "ID = ?", new String[]{Long.toString(id)}) != 1)
                 Log.e(TAG, "Delete step failed");
         }
 
-        for (StepCountChangedListener listener : mStepCountChangedListeners)
-            try {
+        post(new Dispatch<StepCountChangedListener>(mStepCountChangedListeners) {
+            @Override
+            void deliver(StepCountChangedListener listener) {
                 listener.onStepDeleted(id);
-            } catch (Throwable ex) {
-                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
             }
+        });
 
         return this;
     }
@@ -1051,169 +2193,153 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
     // Weather
 
-    public boolean insertWeather(Weather weather, Location location) {
-        long id = -1;
-        synchronized (mContext.getApplicationContext()) {
+    public boolean insertWeather(final Weather weather, Location location) {
+        long id;
+        synchronized (mLockWeather) {
             SQLiteDatabase db = this.getWritableDatabase();
+            id = bindWeather(db, weather, location).executeInsert();
+            if (id == -1)
+                Log.i(TAG, "Known " + weather);
+            else
+                Log.i(TAG, "Stored " + weather);
+        }
 
-            Cursor c = null;
+        if (id == -1)
+            return false;
+
+        if (location != null && "fio".equals(weather.provider))
             try {
-                c = db.query("weather", new String[]{"ID"}, "time = ? AND station_id = ?",
-                        new String[]{Long.toString(weather.time), Long.toString(weather.station_id)}, null, null, null, null);
-                if (c.getCount() != 0)
-                    return false;
-            } finally {
-                if (c != null)
-                    c.close();
-            }
+                ContentValues cv = new ContentValues();
+                cv.put("time", weather.time);
+                cv.put("source", mContext.getPackageName());
+                cv.put("type", "darksky");
+                cv.put("data", weather.rawData);
+                cv.put("reference", Long.toString(id));
 
-            ContentValues cv = new ContentValues();
-            cv.put("time", weather.time);
-            cv.put("provider", weather.provider);
-            cv.put("station_id", weather.station_id);
-            cv.put("station_type", weather.station_type);
-            cv.put("station_name", weather.station_name);
-
-            if (weather.station_location == null) {
-                cv.putNull("station_latitude");
-                cv.putNull("station_longitude");
-            } else {
-                cv.put("station_latitude", weather.station_location.getLatitude());
-                cv.put("station_longitude", weather.station_location.getLongitude());
+                Uri uri = Uri.parse("content://eu.faircode.lifeline/event");
+                ContentProviderClient cclient = mContext.getContentResolver().acquireContentProviderClient(uri);
+                if (cclient != null) {
+                    Uri row = cclient.insert(uri, cv);
+                    cclient.release();
+                    Log.i(TAG, "Inserted uri=" + row);
+                }
+            } catch (Throwable ex) {
+                Log.e(TAG, "Lifeline: " + ex.toString() + "\n" + Log.getStackTraceString(ex));
             }
 
-            if (location == null) {
-                cv.putNull("latitude");
-                cv.putNull("longitude");
-            } else {
-                cv.put("latitude", location.getLatitude());
-                cv.put("longitude", location.getLongitude());
+        post(new Dispatch<WeatherChangedListener>(mWeatherChangedListeners) {
+            @Override
+            void deliver(WeatherChangedListener listener) {
+                listener.onWeatherAdded(weather.time, weather.station_id);
             }
+        });
 
-            if (Double.isNaN(weather.temperature))
-                cv.putNull("temperature");
-            else
-                cv.put("temperature", weather.temperature);
-
-            if (Double.isNaN(weather.humidity))
-                cv.putNull("humidity");
-            else
-                cv.put("humidity", weather.humidity);
-
-            if (Double.isNaN(weather.pressure))
-                cv.putNull("pressure");
-            else
-                cv.put("pressure", weather.pressure);
-
-            if (Double.isNaN(weather.wind_speed))
-                cv.putNull("wind_speed");
-            else
-                cv.put("wind_speed", weather.wind_speed);
-
-            if (Double.isNaN(weather.wind_gust))
-                cv.putNull("wind_gust");
-            else
-                cv.put("wind_gust", weather.wind_gust);
-
-            if (Double.isNaN(weather.wind_direction))
-                cv.putNull("wind_direction");
-            else
-                cv.put("wind_direction", weather.wind_direction);
-
-            if (Double.isNaN(weather.visibility))
-                cv.putNull("visibility");
-            else
-                cv.put("visibility", weather.visibility);
-
-            if (Double.isNaN(weather.rain_1h))
-                cv.putNull("rain_1h");
-            else
-                cv.put("rain_1h", weather.rain_1h);
-
-            if (Double.isNaN(weather.rain_today))
-                cv.putNull("rain_today");
-            else
-                cv.put("rain_today", weather.rain_today);
-
-            if (Double.isNaN(weather.rain_probability))
-                cv.putNull("rain_probability");
-            else
-                cv.put("rain_probability", weather.rain_probability);
-
-            if (Double.isNaN(weather.clouds))
-                cv.putNull("clouds");
-            else
-                cv.put("clouds", weather.clouds);
-
-            if (Double.isNaN(weather.ozone))
-                cv.putNull("ozone");
-            else
-                cv.put("ozone", weather.ozone);
-
-            if (weather.icon == null)
-                cv.putNull("icon");
-            else
-                cv.put("icon", weather.icon);
+        return true;
+    }
 
-            if (weather.summary == null)
-                cv.putNull("summary");
-            else
-                cv.put("summary", weather.summary);
+    // Stores a list of reports, like an hourly or daily forecast, in one transaction
+    // Forecasts are not forwarded to the lifeline
+    public int insertWeather(List<Weather> listWeather, Location location) {
+        int count = 0;
+        long from = Long.MAX_VALUE;
+        long to = Long.MIN_VALUE;
+        synchronized (mLockWeather) {
+            SQLiteDatabase db = this.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (Weather weather : listWeather)
+                    if (bindWeather(db, weather, location).executeInsert() != -1) {
+                        count++;
+                        from = Math.min(from, weather.time);
+                        to = Math.max(to, weather.time);
+                    }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
 
-            cv.put("created", new Date().getTime());
+        Log.i(TAG, "Stored weather " + count + "/" + listWeather.size());
 
-            id = db.insert("weather", null, cv);
-            if (id == -1)
-                Log.e(TAG, "Insert weather failed");
-            else
-                Log.i(TAG, "Stored " + weather);
+        if (count > 0) {
+            final long fFrom = from;
+            final long fTo = to;
+            final int fCount = count;
+            post(new Dispatch<WeatherChangedListener>(mWeatherChangedListeners) {
+                @Override
+                void deliver(WeatherChangedListener listener) {
+                    listener.onWeatherBatchAdded(fFrom, fTo, fCount);
+                }
+            });
         }
 
-        if (id != -1) {
-            if (location != null && "fio".equals(weather.provider))
-                try {
-                    ContentValues cv = new ContentValues();
-                    cv.put("time", weather.time);
-                    cv.put("source", mContext.getPackageName());
-                    cv.put("type", "darksky");
-                    cv.put("data", weather.rawData);
-                    cv.put("reference", Long.toString(id));
+        return count;
+    }
 
-                    Uri uri = Uri.parse("content://eu.faircode.lifeline/event");
-                    ContentProviderClient cclient = mContext.getContentResolver().acquireContentProviderClient(uri);
-                    if (cclient != null) {
-                        Uri row = cclient.insert(uri, cv);
-                        cclient.release();
-                        Log.i(TAG, "Inserted uri=" + row);
-                    }
-                } catch (Throwable ex) {
-                    Log.e(TAG, "Lifeline: " + ex.toString() + "\n" + Log.getStackTraceString(ex));
-                }
+    private SQLiteStatement bindWeather(SQLiteDatabase db, Weather weather, Location location) {
+        if (mStmtWeatherInsert == null)
+            mStmtWeatherInsert = db.compileStatement(
+                    "INSERT OR IGNORE INTO weather (time, provider, station_id, station_type, station_name" +
+                            ", station_latitude, station_longitude, latitude, longitude" +
+                            ", temperature, humidity, pressure, wind_speed, wind_gust, wind_direction" +
+                            ", visibility, rain_1h, rain_today, rain_probability, clouds, ozone" +
+                            ", icon, summary, created)" +
+                            " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        SQLiteStatement stmt = mStmtWeatherInsert;
+
+        stmt.bindLong(1, weather.time);
+        bindString(stmt, 2, weather.provider);
+        stmt.bindLong(3, weather.station_id);
+        stmt.bindLong(4, weather.station_type);
+        bindString(stmt, 5, weather.station_name);
+
+        if (weather.station_location == null) {
+            stmt.bindNull(6);
+            stmt.bindNull(7);
+        } else {
+            stmt.bindDouble(6, weather.station_location.getLatitude());
+            stmt.bindDouble(7, weather.station_location.getLongitude());
+        }
 
-            for (WeatherChangedListener listener : mWeatherChangedListeners)
-                try {
-                    listener.onWeatherAdded(weather.time, weather.station_id);
-                } catch (Throwable ex) {
-                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-                }
+        if (location == null) {
+            stmt.bindNull(8);
+            stmt.bindNull(9);
+        } else {
+            stmt.bindDouble(8, location.getLatitude());
+            stmt.bindDouble(9, location.getLongitude());
         }
 
-        return true;
+        bindDouble(stmt, 10, weather.temperature);
+        bindDouble(stmt, 11, weather.humidity);
+        bindDouble(stmt, 12, weather.pressure);
+        bindDouble(stmt, 13, weather.wind_speed);
+        bindDouble(stmt, 14, weather.wind_gust);
+        bindDouble(stmt, 15, weather.wind_direction);
+        bindDouble(stmt, 16, weather.visibility);
+        bindDouble(stmt, 17, weather.rain_1h);
+        bindDouble(stmt, 18, weather.rain_today);
+        bindDouble(stmt, 19, weather.rain_probability);
+        bindDouble(stmt, 20, weather.clouds);
+        bindDouble(stmt, 21, weather.ozone);
+        bindString(stmt, 22, weather.icon);
+        bindString(stmt, 23, weather.summary);
+        stmt.bindLong(24, new Date().getTime());
+        return stmt;
     }
 
-    public DatabaseHelper deleteWeather(long id) {
-        synchronized (mContext.getApplicationContext()) {
+    public DatabaseHelper deleteWeather(final long id) {
+        synchronized (mLockWeather) {
             SQLiteDatabase db = this.getWritableDatabase();
             if (db.delete("weather", "ID = ?", new String[]{Long.toString(id)}) != 1)
                 Log.e(TAG, "Delete weather failed");
         }
 
-        for (WeatherChangedListener listener : mWeatherChangedListeners)
-            try {
+        post(new Dispatch<WeatherChangedListener>(mWeatherChangedListeners) {
+            @Override
+            void deliver(WeatherChangedListener listener) {
                 listener.onWeatherDeleted(id);
-            } catch (Throwable ex) {
-                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
             }
+        });
 
         return this;
     }
@@ -1228,17 +2354,144 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         return db.rawQuery(query, new String[]{Long.toString(from), Long.toString(to)});
     }
 
+    // Geocode
+
+    // Cached name of a geohash cell fetched at or after since, marks the cell as used
+    // The use is recorded once per interval only, which is precise enough for dropping the least recently used cells
+    public Geocode getGeocode(String geohash, long since) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = null;
+        Geocode geocode = null;
+        long used = 0;
+        try {
+            cursor = db.rawQuery("SELECT name, time, used FROM geocode WHERE geohash = ? AND time >= ?",
+                    new String[]{geohash, Long.toString(since)});
+            if (cursor.moveToFirst()) {
+                geocode = new Geocode(geohash, cursor.getString(0), cursor.getLong(1));
+                used = cursor.getLong(2);
+            }
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+
+        long now = new Date().getTime();
+        if (geocode != null && used + GEOCODE_USED_INTERVAL < now)
+            synchronized (mLockGeocode) {
+                if (mStmtGeocodeUsed == null)
+                    mStmtGeocodeUsed = this.getWritableDatabase().compileStatement("UPDATE geocode SET used = ? WHERE geohash = ?");
+                mStmtGeocodeUsed.bindLong(1, now);
+                mStmtGeocodeUsed.bindString(2, geohash);
+                mStmtGeocodeUsed.executeUpdateDelete();
+            }
+
+        return geocode;
+    }
+
+    // Stores the name of a geohash cell, dropping expired and least recently used cells beyond max
+    public DatabaseHelper insertGeocode(String geohash, String name, long time, long expired, int max) {
+        synchronized (mLockGeocode) {
+            SQLiteDatabase db = this.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                if (mStmtGeocodeInsert == null)
+                    mStmtGeocodeInsert = db.compileStatement("INSERT OR REPLACE INTO geocode (geohash, name, time, used) VALUES (?, ?, ?, ?)");
+                mStmtGeocodeInsert.bindString(1, geohash);
+                mStmtGeocodeInsert.bindString(2, name);
+                mStmtGeocodeInsert.bindLong(3, time);
+                mStmtGeocodeInsert.bindLong(4, time);
+                mStmtGeocodeInsert.executeInsert();
+
+                if (mStmtGeocodeTrim == null)
+                    mStmtGeocodeTrim = db.compileStatement(
+                            "DELETE FROM geocode WHERE time < ?" +
+                                    " OR used < (SELECT used FROM geocode ORDER BY used DESC LIMIT 1 OFFSET ?)");
+                mStmtGeocodeTrim.bindLong(1, expired);
+                mStmtGeocodeTrim.bindLong(2, max - 1);
+                int deleted = mStmtGeocodeTrim.executeUpdateDelete();
+                if (deleted > 0)
+                    Log.i(TAG, "Dropped geocodes=" + deleted);
+
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        return this;
+    }
+
     // Utility
 
     public DatabaseHelper vacuum() {
         SQLiteDatabase db = this.getWritableDatabase();
-        Log.i(TAG, "Running vacuum");
-        db.execSQL("VACUUM");
+
+        long mode = DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null);
+        if (mode != AUTO_VACUUM_INCREMENTAL) {
+            // One time full vacuum to switch to incremental mode
+            Log.i(TAG, "Running vacuum auto_vacuum=" + mode);
+            db.execSQL("VACUUM");
+        } else {
+            long free = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+            long pages = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+            Log.i(TAG, "Free pages=" + free + "/" + pages);
+            if (free * 100 > pages * VACUUM_FREE_PERCENT) {
+                Log.i(TAG, "Running incremental vacuum pages=" + Math.min(free, VACUUM_MAX_PAGES));
+                // Pages are freed while stepping through the result
+                Cursor cursor = null;
+                try {
+                    cursor = db.rawQuery("PRAGMA incremental_vacuum(" + VACUUM_MAX_PAGES + ")", null);
+                    while (cursor.moveToNext()) ;
+                } finally {
+                    if (cursor != null)
+                        cursor.close();
+                }
+            }
+        }
+
+        // Keep index statistics current for the query planner
+        Log.i(TAG, "Running analyze");
+        db.execSQL("ANALYZE");
+
         return this;
     }
 
     // Helper methods
 
+    private static void bindString(SQLiteStatement stmt, int index, String value) {
+        if (value == null)
+            stmt.bindNull(index);
+        else
+            stmt.bindString(index, value);
+    }
+
+    private static void bindDouble(SQLiteStatement stmt, int index, double value) {
+        if (Double.isNaN(value))
+            stmt.bindNull(index);
+        else
+            stmt.bindDouble(index, value);
+    }
+
+    private long getMonth(long ms) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(getDay(ms));
+        calendar.set(Calendar.DAY_OF_MONTH, 1);
+        return calendar.getTimeInMillis();
+    }
+
+    private long getNextMonth(long month) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(month);
+        calendar.add(Calendar.MONTH, 1);
+        return calendar.getTimeInMillis();
+    }
+
+    private long getNextDay(long day) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(day);
+        calendar.add(Calendar.DAY_OF_MONTH, 1);
+        return calendar.getTimeInMillis();
+    }
+
     private long getDay(long ms) {
         Calendar calendar = Calendar.getInstance();
         calendar.setTimeInMillis(ms);
@@ -1299,11 +2552,8 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         mWeatherChangedListeners.remove(listener);
     }
 
-    private void notifyLocationUpdated(long id) {
-        Message msg = handler.obtainMessage();
-        msg.what = MSG_LOCATION_UPDATED;
-        msg.obj = (Long) id;
-        handler.sendMessage(msg);
+    private void notifyLocationUpdated(final long id) {
+        postLocationUpdated();
 
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
         prefs.edit().putLong(SettingsFragment.PREF_LIFELINE_LAST, new Date().getTime()).apply();
@@ -1313,38 +2563,727 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         lifeline.putExtra(BackgroundService.EXTRA_ID, id);
         mContext.startService(lifeline);
 
-        try {
-            Uri uri = Uri.parse("content://eu.faircode.lifeline/event");
-            ContentProviderClient cclient = mContext.getContentResolver().acquireContentProviderClient(uri);
-            if (cclient != null) {
-                Location location = getLocation(id);
-                Uri row = cclient.insert(uri, getLifelineLocation(id, location.getProvider(), location));
-                cclient.release();
-                Log.i(TAG, "Updated uri=" + row);
+        notifier.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Uri uri = Uri.parse("content://eu.faircode.lifeline/event");
+                    ContentProviderClient cclient = mContext.getContentResolver().acquireContentProviderClient(uri);
+                    if (cclient != null) {
+                        Location location = getLocation(id);
+                        if (location != null) {
+                            Uri row = cclient.insert(uri, getLifelineLocation(id, location.getProvider(), location));
+                            Log.i(TAG, "Updated uri=" + row);
+                        }
+                        cclient.release();
+                    }
+                } catch (Throwable ex) {
+                    Log.e(TAG, "Lifeline: " + ex.toString() + "\n" + Log.getStackTraceString(ex));
+                }
             }
-        } catch (Throwable ex) {
-            Log.e(TAG, "Lifeline: " + ex.toString() + "\n" + Log.getStackTraceString(ex));
+        });
+    }
+
+    private static void post(Dispatch<?> dispatch) {
+        if (dispatch.listeners.size() > 0)
+            notifier.post(dispatch);
+    }
+
+    private static void postLocationUpdated() {
+        // First update opens the window, later ones join it
+        if (!notifier.hasMessages(MSG_LOCATION_UPDATED))
+            notifier.sendEmptyMessageDelayed(MSG_LOCATION_UPDATED, LOCATION_UPDATED_DELAY);
+    }
+
+    private static void postLocationDeleted(final long id) {
+        post(new Dispatch<LocationChangedListener>(mLocationChangedListeners) {
+            @Override
+            void deliver(LocationChangedListener listener) {
+                listener.onLocationDeleted(id);
+            }
+        });
+    }
+
+    private static void postStepCountAdded(final long time, final int count) {
+        post(new Dispatch<StepCountChangedListener>(mStepCountChangedListeners) {
+            @Override
+            void deliver(StepCountChangedListener listener) {
+                listener.onStepCountAdded(time, count);
+            }
+        });
+    }
+
+    private static void postStepCountUpdated(long time, int count) {
+        // Only the last count of a day within the window is delivered
+        synchronized (mStepCountUpdates) {
+            mStepCountUpdates.put(time, count);
         }
+        if (!notifier.hasMessages(MSG_STEP_COUNT_UPDATED))
+            notifier.sendEmptyMessageDelayed(MSG_STEP_COUNT_UPDATED, STEP_COUNT_UPDATED_DELAY);
     }
 
     private static void handleChangedNotification(Message msg) {
-        // Batch notifications
-        try {
-            Thread.sleep(2500);
-            if (handler.hasMessages(msg.what))
-                handler.removeMessages(msg.what);
-        } catch (InterruptedException ignored) {
+        if (msg.what == MSG_LOCATION_UPDATED) {
+            new Dispatch<LocationChangedListener>(mLocationChangedListeners) {
+                @Override
+                void deliver(LocationChangedListener listener) {
+                    listener.onLocationUpdated();
+                }
+            }.run();
+        } else if (msg.what == MSG_STEP_COUNT_UPDATED) {
+            Map<Long, Integer> updates;
+            synchronized (mStepCountUpdates) {
+                updates = new HashMap<>(mStepCountUpdates);
+                mStepCountUpdates.clear();
+            }
+            for (final Map.Entry<Long, Integer> update : updates.entrySet())
+                new Dispatch<StepCountChangedListener>(mStepCountChangedListeners) {
+                    @Override
+                    void deliver(StepCountChangedListener listener) {
+                        listener.onStepCountUpdated(update.getKey(), update.getValue());
+                    }
+                }.run();
         }
+    }
 
-        // Notify listeners
-        if (msg.what == MSG_LOCATION_UPDATED) {
-            for (LocationChangedListener listener : mLocationChangedListeners)
+    private static abstract class Dispatch<L> implements Runnable {
+        final List<L> listeners;
+
+        Dispatch(List<L> listeners) {
+            this.listeners = listeners;
+        }
+
+        abstract void deliver(L listener);
+
+        @Override
+        public void run() {
+            for (L listener : listeners)
                 try {
-                    listener.onLocationUpdated();
+                    deliver(listener);
                 } catch (Throwable ex) {
                     Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
                 }
+        }
+    }
 
+    // Walks a time range in pages keyed on (time, ID), so that memory use does not grow with the history,
+    // merging in archived trackpoints one segment at a time
+    public static class LocationPager {
+        private SQLiteDatabase db;
+        private String query;
+        private String[] columns;
+        private long lastTime;
+        private long lastId = -1;
+        private long from;
+        private long to;
+        private Cursor cursor = null;
+        private boolean started = false;
+        private boolean hotDone = false;
+        private boolean done = false;
+
+        private boolean archived;
+        private long segmentFrom;
+        private long segmentId = -1;
+        private List<TrackSegment.Trackpoint> segment = null;
+        private int segmentIndex = 0;
+        private TrackSegment.Trackpoint point = null;
+        private boolean fromArchive = false;
+
+        private LocationPager(SQLiteDatabase db, String query, String[] columns, long from, long to, boolean archived) {
+            this.db = db;
+            this.query = query;
+            this.columns = columns;
+            this.lastTime = from;
+            this.from = from;
+            this.to = to;
+            this.archived = archived;
+            this.segmentFrom = Long.MIN_VALUE;
+        }
+
+        public boolean moveToNext() {
+            if (done)
+                return false;
+
+            if (!started) {
+                started = true;
+                nextHot();
+                nextArchived();
+            } else if (fromArchive)
+                nextArchived();
+            else
+                nextHot();
+
+            if (cursor == null && point == null) {
+                close();
+                return false;
+            }
+
+            fromArchive = (point != null && (cursor == null ||
+                    point.time < lastTime || (point.time == lastTime && point.id < lastId)));
+            return true;
+        }
+
+        private void nextHot() {
+            if (hotDone)
+                return;
+
+            if (cursor != null) {
+                if (cursor.moveToNext()) {
+                    lastTime = cursor.getLong(columns.length);
+                    lastId = cursor.getLong(columns.length + 1);
+                    return;
+                }
+
+                boolean last = (cursor.getCount() < LOCATION_PAGE_SIZE);
+                cursor.close();
+                cursor = null;
+                if (last) {
+                    hotDone = true;
+                    return;
+                }
+            }
+
+            cursor = db.rawQuery(query, new String[]{
+                    Long.toString(lastTime), Long.toString(to), Long.toString(lastTime), Long.toString(lastId)});
+            if (cursor.moveToNext()) {
+                lastTime = cursor.getLong(columns.length);
+                lastId = cursor.getLong(columns.length + 1);
+            } else {
+                cursor.close();
+                cursor = null;
+                hotDone = true;
+            }
+        }
+
+        private void nextArchived() {
+            point = null;
+            while (archived) {
+                while (segment != null && segmentIndex < segment.size()) {
+                    TrackSegment.Trackpoint candidate = segment.get(segmentIndex++);
+                    if (candidate.time >= from && candidate.time <= to) {
+                        point = candidate;
+                        return;
+                    }
+                }
+
+                // Next segment overlapping the range
+                segment = null;
+                segmentIndex = 0;
+                Cursor c = null;
+                try {
+                    String query = "SELECT ID, time_from, data FROM archive";
+                    query += " WHERE time_to >= ? AND time_from <= ? AND time_from >= ? AND (time_from > ? OR ID > ?)";
+                    query += " ORDER BY time_from, ID LIMIT 1";
+                    c = db.rawQuery(query, new String[]{Long.toString(from), Long.toString(to),
+                            Long.toString(segmentFrom), Long.toString(segmentFrom), Long.toString(segmentId)});
+                    if (c.moveToNext()) {
+                        segmentId = c.getLong(0);
+                        segmentFrom = c.getLong(1);
+                        segment = TrackSegment.decode(c.getBlob(2));
+                    } else
+                        archived = false;
+                } catch (IOException ex) {
+                    Log.e(TAG, "Archive: " + ex.toString() + "\n" + Log.getStackTraceString(ex));
+                } finally {
+                    if (c != null)
+                        c.close();
+                }
+            }
+        }
+
+        public int getColumnIndex(String column) {
+            for (int i = 0; i < columns.length; i++)
+                if (columns[i].equals(column))
+                    return i;
+            return -1;
+        }
+
+        private Object get(int column) {
+            if (fromArchive)
+                return point.get(columns[column]);
+            switch (cursor.getType(column)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    return null;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    return cursor.getLong(column);
+                case Cursor.FIELD_TYPE_FLOAT:
+                    return cursor.getDouble(column);
+                case Cursor.FIELD_TYPE_BLOB:
+                    return cursor.getBlob(column);
+                default:
+                    return cursor.getString(column);
+            }
+        }
+
+        public boolean isNull(int column) {
+            return (fromArchive ? point.get(columns[column]) == null : cursor.isNull(column));
+        }
+
+        public int getInt(int column) {
+            return (fromArchive ? ((Number) point.get(columns[column])).intValue() : cursor.getInt(column));
+        }
+
+        public long getLong(int column) {
+            return (fromArchive ? ((Number) point.get(columns[column])).longValue() : cursor.getLong(column));
+        }
+
+        public float getFloat(int column) {
+            return (fromArchive ? ((Number) point.get(columns[column])).floatValue() : cursor.getFloat(column));
+        }
+
+        public double getDouble(int column) {
+            return (fromArchive ? ((Number) point.get(columns[column])).doubleValue() : cursor.getDouble(column));
+        }
+
+        public String getString(int column) {
+            if (fromArchive) {
+                Object value = point.get(columns[column]);
+                return (value == null ? null : value.toString());
+            } else
+                return cursor.getString(column);
+        }
+
+        public void close() {
+            done = true;
+            segment = null;
+            point = null;
+            if (cursor != null) {
+                cursor.close();
+                cursor = null;
+            }
+        }
+    }
+
+    // Merges archived trackpoints by (time, ID) into a cursor on the location table
+    // Rows are planned from the archive metadata as runs of hot or archived rows, newest first for descending reads,
+    // so that a limit stops the planning early, segments are decoded when their rows are read
+    private static class ArchiveCursor extends AbstractCursor {
+        private static final int SEGMENT_CACHE_SIZE = 2;
+
+        private SQLiteDatabase db;
+        private Cursor hot;
+        private String filter;
+        private String[] names;
+        private int count = 0;
+        private List<Run> runs = new ArrayList<>();
+        private Map<Long, List<TrackSegment.Trackpoint>> segments;
+        private TrackSegment.Trackpoint point = null;
+
+        // A segment of -1 means hot rows, by cursor position
+        private static class Run {
+            int start;
+            long segment;
+            int index;
+            int step;
+            int length;
+        }
+
+        private ArchiveCursor(SQLiteDatabase db, Cursor hot, String filter, long from, long to, boolean asc, int limit) {
+            this.db = db;
+            this.hot = hot;
+            this.filter = filter;
+            this.names = hot.getColumnNames();
+            this.segments = new LinkedHashMap<Long, List<TrackSegment.Trackpoint>>(SEGMENT_CACHE_SIZE + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, List<TrackSegment.Trackpoint>> eldest) {
+                    return (size() > SEGMENT_CACHE_SIZE);
+                }
+            };
+            plan(from, to, asc, limit > 0 ? limit : Integer.MAX_VALUE);
+        }
+
+        private void plan(long from, long to, boolean asc, int limit) {
+            // Segments overlapping the range, grouped when they overlap each other
+            List<List<long[]>> clusters = new ArrayList<>();
+            Cursor cursor = null;
+            try {
+                cursor = db.rawQuery("SELECT ID, time_from, time_to, count FROM archive WHERE time_to >= ? AND time_from <= ? ORDER BY time_from, ID",
+                        new String[]{Long.toString(from), Long.toString(to)});
+                long clusterTo = Long.MIN_VALUE;
+                while (cursor.moveToNext()) {
+                    long[] segment = new long[]{cursor.getLong(0), cursor.getLong(1), cursor.getLong(2), cursor.getLong(3)};
+                    if (clusters.isEmpty() || segment[1] > clusterTo)
+                        clusters.add(new ArrayList<long[]>());
+                    clusters.get(clusters.size() - 1).add(segment);
+                    clusterTo = Math.max(clusterTo, segment[2]);
+                }
+            } finally {
+                if (cursor != null)
+                    cursor.close();
+            }
+            if (!asc)
+                Collections.reverse(clusters);
+
+            int hotUsed = 0;
+            for (List<long[]> cluster : clusters) {
+                long clusterFrom = cluster.get(0)[1];
+                long clusterTo = Long.MIN_VALUE;
+                for (long[] segment : cluster)
+                    clusterTo = Math.max(clusterTo, segment[2]);
+                long cf = Math.max(clusterFrom, from);
+                long ct = Math.min(clusterTo, to);
+
+                // Hot rows before the cluster
+                int before = (asc
+                        ? (cf > from ? countHot(from, cf - 1, hotUsed + limit - count) : 0)
+                        : (ct < to ? countHot(ct + 1, to, hotUsed + limit - count) : 0));
+                addRun(-1, hotUsed, 1, before - hotUsed, limit);
+                hotUsed = before;
+                if (count >= limit)
+                    break;
+
+                // A single segment within the range without hot rows is planned without decoding it
+                List<long[]> inside = getHot(cf, ct);
+                if (inside.isEmpty() && cluster.size() == 1 && clusterFrom >= from && clusterTo <= to) {
+                    long[] segment = cluster.get(0);
+                    int length = (int) segment[3];
+                    addRun(segment[0], asc ? 0 : length - 1, asc ? 1 : -1, length, limit);
+                    continue;
+                }
+
+                // Else merge the rows in the range precisely
+                List<long[]> merged = new ArrayList<>(inside);
+                for (long[] segment : cluster) {
+                    List<TrackSegment.Trackpoint> points = getSegment(segment[0]);
+                    if (points != null)
+                        for (int i = 0; i < points.size(); i++) {
+                            TrackSegment.Trackpoint trackpoint = points.get(i);
+                            if (trackpoint.time >= from && trackpoint.time <= to)
+                                merged.add(new long[]{trackpoint.time, trackpoint.id, segment[0], i});
+                        }
+                }
+                Collections.sort(merged, new Comparator<long[]>() {
+                    @Override
+                    public int compare(long[] r1, long[] r2) {
+                        if (r1[0] != r2[0])
+                            return (r1[0] < r2[0] ? -1 : 1);
+                        return (r1[1] < r2[1] ? -1 : (r1[1] == r2[1] ? 0 : 1));
+                    }
+                });
+                if (!asc)
+                    Collections.reverse(merged);
+                for (long[] row : merged)
+                    if (row[2] < 0)
+                        addRun(-1, hotUsed++, 1, 1, limit);
+                    else
+                        addRun(row[2], (int) row[3], asc ? 1 : -1, 1, limit);
+                if (count >= limit)
+                    break;
+            }
+
+            // Hot rows after the last cluster
+            addRun(-1, hotUsed, 1, hot.getCount() - hotUsed, limit);
+        }
+
+        private void addRun(long segment, int index, int step, int length, int limit) {
+            length = Math.min(length, limit - count);
+            if (length <= 0)
+                return;
+
+            Run last = (runs.size() > 0 ? runs.get(runs.size() - 1) : null);
+            if (last != null && last.segment == segment && last.step == step && last.index + last.step * last.length == index)
+                last.length += length;
+            else {
+                Run run = new Run();
+                run.start = count;
+                run.segment = segment;
+                run.index = index;
+                run.step = step;
+                run.length = length;
+                runs.add(run);
+            }
+            count += length;
+        }
+
+        private int countHot(long from, long to, int limit) {
+            String query = "SELECT COUNT(*) FROM (SELECT ID FROM location";
+            query += " WHERE time >= ? AND time <= ? AND deleted IS NULL" + filter;
+            query += " LIMIT " + limit + ")";
+            return (int) DatabaseUtils.longForQuery(db, query, new String[]{Long.toString(from), Long.toString(to)});
+        }
+
+        // Time and ID of the hot rows in a range, hot rows are marked with segment -1
+        private List<long[]> getHot(long from, long to) {
+            List<long[]> result = new ArrayList<>();
+            Cursor cursor = null;
+            try {
+                String query = "SELECT time, ID FROM location";
+                query += " WHERE time >= ? AND time <= ? AND deleted IS NULL" + filter;
+                query += " ORDER BY time, ID";
+                cursor = db.rawQuery(query, new String[]{Long.toString(from), Long.toString(to)});
+                while (cursor.moveToNext())
+                    result.add(new long[]{cursor.getLong(0), cursor.getLong(1), -1, 0});
+            } finally {
+                if (cursor != null)
+                    cursor.close();
+            }
+            return result;
+        }
+
+        private List<TrackSegment.Trackpoint> getSegment(long id) {
+            List<TrackSegment.Trackpoint> points = segments.get(id);
+            if (points == null) {
+                Cursor cursor = null;
+                try {
+                    cursor = db.rawQuery("SELECT data FROM archive WHERE ID = ?", new String[]{Long.toString(id)});
+                    if (cursor.moveToNext()) {
+                        points = TrackSegment.decode(cursor.getBlob(0));
+                        segments.put(id, points);
+                    }
+                } catch (IOException ex) {
+                    Log.e(TAG, "Archive: " + ex.toString() + "\n" + Log.getStackTraceString(ex));
+                } finally {
+                    if (cursor != null)
+                        cursor.close();
+                }
+            }
+            return points;
+        }
+
+        @Override
+        public boolean onMove(int oldPosition, int newPosition) {
+            int lo = 0;
+            int hi = runs.size() - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) / 2;
+                if (runs.get(mid).start <= newPosition)
+                    lo = mid;
+                else
+                    hi = mid - 1;
+            }
+            Run run = runs.get(lo);
+            int index = run.index + run.step * (newPosition - run.start);
+
+            if (run.segment < 0) {
+                point = null;
+                return hot.moveToPosition(index);
+            }
+
+            List<TrackSegment.Trackpoint> points = getSegment(run.segment);
+            point = (points == null || index >= points.size() ? null : points.get(index));
+            return (point != null);
+        }
+
+        @Override
+        public int getCount() {
+            return count;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return names;
+        }
+
+        private Number getNumber(int column) {
+            Number value = (Number) point.get(names[column]);
+            return (value == null ? 0 : value);
+        }
+
+        @Override
+        public String getString(int column) {
+            if (point == null)
+                return hot.getString(column);
+            Object value = point.get(names[column]);
+            return (value == null ? null : value.toString());
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (point == null ? hot.getShort(column) : getNumber(column).shortValue());
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (point == null ? hot.getInt(column) : getNumber(column).intValue());
+        }
+
+        @Override
+        public long getLong(int column) {
+            return (point == null ? hot.getLong(column) : getNumber(column).longValue());
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (point == null ? hot.getFloat(column) : getNumber(column).floatValue());
+        }
+
+        @Override
+        public double getDouble(int column) {
+            return (point == null ? hot.getDouble(column) : getNumber(column).doubleValue());
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            return (point == null ? hot.getBlob(column) : null);
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return (point == null ? hot.isNull(column) : point.get(names[column]) == null);
+        }
+
+        @Override
+        public int getType(int column) {
+            if (point == null)
+                return hot.getType(column);
+            Object value = point.get(names[column]);
+            if (value == null)
+                return Cursor.FIELD_TYPE_NULL;
+            if (value instanceof Float || value instanceof Double)
+                return Cursor.FIELD_TYPE_FLOAT;
+            if (value instanceof Number)
+                return Cursor.FIELD_TYPE_INTEGER;
+            return Cursor.FIELD_TYPE_STRING;
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            hot.close();
+            segments.clear();
+            point = null;
+        }
+    }
+
+    private void forgetLocation(long id) {
+        synchronized (mRecentLocations) {
+            mRecentLocations.remove(id);
+        }
+    }
+
+    private static class PendingLocation {
+        Location location;
+        int altitude_type;
+        String name;
+        long id = -1;
+
+        PendingLocation(Location location, int altitude_type, String name) {
+            this.location = new Location(location);
+            this.altitude_type = altitude_type;
+            this.name = name;
+        }
+    }
+
+    // Daily statistics, last_* and reference_altitude allow extending a day without reading its trackpoints
+    private static class TrackDay {
+        long id = -1;
+        long time;
+        int count = 0;
+        double distance = 0; // meters
+        long moving = 0; // milliseconds
+        double ascent = 0; // meters
+        double descent = 0; // meters
+        float maxspeed = Float.NaN; // meters per second
+        long last_time = -1;
+        double last_latitude;
+        double last_longitude;
+        double reference_altitude = Double.NaN;
+        final float[] results = new float[1]; // reused per trackpoint
+
+        TrackDay(long time) {
+            this.time = time;
+        }
+
+        void add(long time, double latitude, double longitude, double altitude, float speed) {
+            if (count > 0) {
+                Location.distanceBetween(last_latitude, last_longitude, latitude, longitude, results);
+                distance += results[0];
+                long elapsed = time - last_time;
+                if (elapsed > 0 && results[0] / (elapsed / 1000f) >= MOVING_SPEED)
+                    moving += elapsed;
+            }
+
+            // Count climbs from the last reference altitude only, to filter out altitude noise
+            if (!Double.isNaN(altitude))
+                if (Double.isNaN(reference_altitude))
+                    reference_altitude = altitude;
+                else if (Math.abs(altitude - reference_altitude) >= ALTITUDE_HYSTERESIS) {
+                    if (altitude > reference_altitude)
+                        ascent += altitude - reference_altitude;
+                    else
+                        descent += reference_altitude - altitude;
+                    reference_altitude = altitude;
+                }
+
+            if (!Float.isNaN(speed) && (Float.isNaN(maxspeed) || speed > maxspeed))
+                maxspeed = speed;
+
+            count++;
+            last_time = time;
+            last_latitude = latitude;
+            last_longitude = longitude;
+        }
+    }
+
+    // Trackpoints of one time bucket of a level, keeping the most recent position
+    private static class TrackDetail {
+        long id = -1;
+        int level;
+        long time;
+        int count = 0;
+        long last_time = -1;
+        double latitude;
+        double longitude;
+        double altitude_sum = 0;
+        int altitude_count = 0;
+        double min_altitude = Double.NaN;
+        double max_altitude = Double.NaN;
+        int altitude_type = BackgroundService.ALTITUDE_NONE;
+
+        TrackDetail(int level, long time) {
+            this.level = level;
+            this.time = time;
+        }
+
+        void add(long time, double latitude, double longitude, double altitude, int altitude_type) {
+            if (!Double.isNaN(altitude)) {
+                altitude_sum += altitude;
+                altitude_count++;
+                if (Double.isNaN(min_altitude) || altitude < min_altitude)
+                    min_altitude = altitude;
+                if (Double.isNaN(max_altitude) || altitude > max_altitude)
+                    max_altitude = altitude;
+            }
+
+            if (time >= last_time) {
+                last_time = time;
+                this.latitude = latitude;
+                this.longitude = longitude;
+                if (!Double.isNaN(altitude))
+                    this.altitude_type = altitude_type;
+            }
+
+            count++;
+        }
+    }
+
+    public static class Geocode {
+        public final String geohash;
+        public final String name;
+        public final long time; // fetched
+
+        public Geocode(String geohash, String name, long time) {
+            this.geohash = geohash;
+            this.name = name;
+            this.time = time;
+        }
+    }
+
+    public static class NearbyWaypoint {
+        public final long id;
+        public final long time;
+        public final String name;
+        public final double latitude;
+        public final double longitude;
+        public final float distance; // meters
+
+        NearbyWaypoint(long id, long time, String name, double latitude, double longitude, float distance) {
+            this.id = id;
+            this.time = time;
+            this.name = name;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.distance = distance;
         }
     }
 
@@ -1357,7 +3296,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     }
 
     public interface ActivityTypeChangedListener {
-        void onActivityAdded(long time, int activity, int confidence);
+        void onActivitiesAdded(long time, List<DetectedActivity> activities);
 
         void onActivityDeleted(long id);
     }
@@ -1387,6 +3326,8 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     public interface WeatherChangedListener {
         void onWeatherAdded(long time, long station_id);
 
+        void onWeatherBatchAdded(long from, long to, int count);
+
         void onWeatherDeleted(long id);
     }
 }
\ No newline at end of file
@@ -13,7 +13,6 @@ import java.util.List;
 import java.util.Locale;
 
 import android.content.Context;
-import android.database.Cursor;
 
 import org.jdom2.Attribute;
 import org.jdom2.Namespace;
@@ -31,6 +30,10 @@ public class GPXFileWriter {
     private static final DecimalFormat DF = new DecimalFormat("0.##", new DecimalFormatSymbols(Locale.ROOT));
     private static final SimpleDateFormat SDF = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.getDefault());
 
+    // Location columns read by the writer
+    public static final String[] COLUMNS = new String[]{
+            "time", "provider", "latitude", "longitude", "altitude", "speed", "bearing", "accuracy", "name"};
+
     public static void writeGeonames(List<Geonames.Geoname> names, File target, Context context) throws IOException {
         Document doc = new Document();
         Element gpx = new Element("gpx", NS);
@@ -104,7 +107,7 @@ public class GPXFileWriter {
         }
     }
 
-    public static void writeGPXFile(File target, String trackName, boolean extensions, Cursor cTrackPoints, Cursor cWayPoints, Context context)
+    public static void writeGPXFile(File target, String trackName, boolean extensions, DatabaseHelper.LocationPager cTrackPoints, DatabaseHelper.LocationPager cWayPoints, Context context)
             throws IOException {
 
         Document doc = new Document();
@@ -135,14 +138,14 @@ public class GPXFileWriter {
         // xmllint --noout --schema gpx.xsd BackPackTrack.gpx
     }
 
-    private static Collection<Element> getWayPoints(boolean extensions, Cursor c, Namespace bpt2, Context context) {
+    private static Collection<Element> getWayPoints(boolean extensions, DatabaseHelper.LocationPager c, Namespace bpt2, Context context) {
         Collection<Element> wpts = new ArrayList<>();
         while (c.moveToNext())
             wpts.add(getPoint(c, "wpt", extensions, bpt2, context));
         return wpts;
     }
 
-    private static Element getTrackpoints(String trackName, boolean extensions, Cursor c, Namespace bpt2, Context context) {
+    private static Element getTrackpoints(String trackName, boolean extensions, DatabaseHelper.LocationPager c, Namespace bpt2, Context context) {
         Element trk = new Element("trk", NS);
         trk.addContent(new Element("name", NS).addContent(trackName));
         Element trkseg = new Element("trkseg", NS);
@@ -152,7 +155,7 @@ public class GPXFileWriter {
         return trk;
     }
 
-    private static Element getPoint(Cursor c, String name, boolean extensions, Namespace bpt2, Context context) {
+    private static Element getPoint(DatabaseHelper.LocationPager c, String name, boolean extensions, Namespace bpt2, Context context) {
         int colLatitude = c.getColumnIndex("latitude");
         int colLongitude = c.getColumnIndex("longitude");
         int colAltitude = c.getColumnIndex("altitude");
@@ -177,7 +180,7 @@ public class GPXFileWriter {
         return wpt;
     }
 
-    private static Element getExtensions(Cursor c, Namespace bpt2, Context context) {
+    private static Element getExtensions(DatabaseHelper.LocationPager c, Namespace bpt2, Context context) {
         int colProvider = c.getColumnIndex("provider");
         int colSpeed = c.getColumnIndex("speed");
         int colBearing = c.getColumnIndex("bearing");
@@ -0,0 +1,102 @@
+package eu.faircode.backpacktrack2;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+// https://en.wikipedia.org/wiki/Geohash
+// Nearby points share a prefix, so a prefix is a range of an ordinary index
+public class GeoHash {
+    private static final String BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+    private static final double METERS_PER_DEGREE = 110574; // latitude, at the equator (smallest)
+
+    public static final int PRECISION = 9; // about 5 x 5 m
+    public static final String UPPER = "{"; // sorts after all base 32 characters
+
+    public static String encode(double latitude, double longitude, int precision) {
+        longitude = normalize(longitude);
+
+        double minLat = -90, maxLat = 90;
+        double minLon = -180, maxLon = 180;
+        StringBuilder sb = new StringBuilder(precision);
+        boolean even = true;
+        int bits = 0;
+        int ch = 0;
+        while (sb.length() < precision) {
+            if (even) {
+                double mid = (minLon + maxLon) / 2;
+                if (longitude >= mid) {
+                    ch = (ch << 1) | 1;
+                    minLon = mid;
+                } else {
+                    ch = ch << 1;
+                    maxLon = mid;
+                }
+            } else {
+                double mid = (minLat + maxLat) / 2;
+                if (latitude >= mid) {
+                    ch = (ch << 1) | 1;
+                    minLat = mid;
+                } else {
+                    ch = ch << 1;
+                    maxLat = mid;
+                }
+            }
+            even = !even;
+
+            if (++bits == 5) {
+                sb.append(BASE32.charAt(ch));
+                bits = 0;
+                ch = 0;
+            }
+        }
+        return sb.toString();
+    }
+
+    // Prefixes of the cells covering a circle, empty if the circle is too large to narrow down
+    public static List<String> cover(double latitude, double longitude, double radius) {
+        List<String> result = new ArrayList<>();
+
+        double dlat = radius / METERS_PER_DEGREE;
+        double maxabs = Math.abs(latitude) + dlat;
+        if (maxabs >= 90)
+            return result;
+        double dlon = dlat / Math.cos(Math.toRadians(maxabs));
+
+        // Use the longest prefix with cells at least as large as the bounding box,
+        // so that the box spans at most two cells in each direction
+        int precision = PRECISION;
+        while (precision > 0 && (cellHeight(precision) < 2 * dlat || cellWidth(precision) < 2 * dlon))
+            precision--;
+        if (precision == 0)
+            return result;
+
+        double south = Math.max(-90, latitude - dlat);
+        double north = Math.min(90, latitude + dlat);
+        Set<String> cells = new LinkedHashSet<>();
+        cells.add(encode(south, longitude - dlon, precision));
+        cells.add(encode(south, longitude + dlon, precision));
+        cells.add(encode(north, longitude - dlon, precision));
+        cells.add(encode(north, longitude + dlon, precision));
+        result.addAll(cells);
+        return result;
+    }
+
+    private static double cellHeight(int precision) {
+        return 180 / Math.pow(2, (5 * precision) / 2);
+    }
+
+    private static double cellWidth(int precision) {
+        return 360 / Math.pow(2, (5 * precision + 1) / 2);
+    }
+
+    private static double normalize(double longitude) {
+        longitude = longitude % 360;
+        if (longitude >= 180)
+            longitude -= 360;
+        else if (longitude < -180)
+            longitude += 360;
+        return longitude;
+    }
+}
@@ -9,32 +9,98 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 public class GeocoderEx {
+    private Context context;
     private Geocoder geocoder;
 
     private static final String TAG = "BPT2.Geocoder";
 
+    // Reverse geocoded names are cached by geohash cell, in memory and in the database
+    private static final int CACHE_PRECISION = 8; // about 40 x 20 m
+    private static final long CACHE_TTL = 30 * 24 * 3600 * 1000L; // milliseconds
+    private static final int CACHE_MAX = 2000; // cells in the database
+    private static final int CACHE_MEMORY = 100; // cells in memory
+
+    private static final Map<String, DatabaseHelper.Geocode> mCache = new LinkedHashMap<String, DatabaseHelper.Geocode>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, DatabaseHelper.Geocode> eldest) {
+            return (size() > CACHE_MEMORY);
+        }
+    };
+
     public static boolean isPresent() {
         return Geocoder.isPresent();
     }
 
     public GeocoderEx(Context context) {
+        this.context = context;
         this.geocoder = new Geocoder(context, Locale.getDefault());
     }
 
     public String reverseGeocode(Location location) {
         if (location == null)
             return null;
+
+        long now = new Date().getTime();
+        String geohash = GeoHash.encode(location.getLatitude(), location.getLongitude(), CACHE_PRECISION);
+        String name = getCached(geohash, now - CACHE_TTL);
+        if (name != null) {
+            Log.i(TAG, "Cached geohash=" + geohash + " name=" + name);
+            return name;
+        }
+
         try {
             List<AddressEx> listAddress = getFromLocation(location, 1);
-            return (listAddress.size() == 0 ? null : listAddress.get(0).name);
+            name = (listAddress.size() == 0 ? null : listAddress.get(0).name);
         } catch (IOException ex) {
             Log.w(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
             return null;
         }
+
+        // Failures and unknown places are not cached, so that they are retried
+        if (!TextUtils.isEmpty(name)) {
+            synchronized (mCache) {
+                mCache.put(geohash, new DatabaseHelper.Geocode(geohash, name, now));
+            }
+            try {
+                DatabaseHelper.getInstance(context).insertGeocode(geohash, name, now, now - CACHE_TTL, CACHE_MAX);
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            }
+        }
+
+        return name;
+    }
+
+    // Memory hits do not mark the cell as used in the database, which only needs to be roughly LRU
+    private String getCached(String geohash, long since) {
+        synchronized (mCache) {
+            DatabaseHelper.Geocode cached = mCache.get(geohash);
+            if (cached != null) {
+                if (cached.time >= since)
+                    return cached.name;
+                mCache.remove(geohash);
+            }
+        }
+
+        try {
+            DatabaseHelper.Geocode geocode = DatabaseHelper.getInstance(context).getGeocode(geohash, since);
+            if (geocode == null)
+                return null;
+            synchronized (mCache) {
+                mCache.put(geohash, geocode);
+            }
+            return geocode.name;
+        } catch (Throwable ex) {
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            return null;
+        }
     }
 
     public List<AddressEx> getFromLocation(Location location, int results) throws IOException {
@@ -0,0 +1,117 @@
+package eu.faircode.backpacktrack2;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+// EGM96 geoid heights above the WGS84 ellipsoid in cm, big endian shorts,
+// on a 15' grid from 90N to 90S and from 0E eastwards
+// The asset is copied once to a file, which is memory mapped read only, so lookups need no I/O or locking
+public class Geoid {
+    private static final String TAG = "BPT2.Geoid";
+
+    private static final String ASSET_NAME = "WW15MGH.DAC";
+    private static final int ROWS = 721;
+    private static final int COLUMNS = 1440;
+    private static final int CELLS_PER_DEGREE = 4;
+    private static final int SIZE = ROWS * COLUMNS * 2; // bytes
+
+    private static volatile Geoid mInstance = null;
+
+    private final ShortBuffer mGrid;
+
+    public static Geoid getInstance(Context context) throws IOException {
+        Geoid geoid = mInstance;
+        if (geoid == null)
+            synchronized (Geoid.class) {
+                if (mInstance == null)
+                    mInstance = new Geoid(context.getApplicationContext());
+                geoid = mInstance;
+            }
+        return geoid;
+    }
+
+    private Geoid(Context context) throws IOException {
+        File file = new File(context.getFilesDir(), ASSET_NAME);
+        if (!file.exists() || file.length() != SIZE)
+            copyAsset(context, file);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            mGrid = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, SIZE).asShortBuffer();
+        } finally {
+            // The mapping stays valid after closing the file
+            raf.close();
+        }
+        Log.i(TAG, "Mapped " + file + " size=" + SIZE);
+    }
+
+    private static void copyAsset(Context context, File file) throws IOException {
+        Log.i(TAG, "Copying " + ASSET_NAME + " to " + file);
+        File tmp = new File(file.getPath() + ".tmp");
+        InputStream is = null;
+        OutputStream os = null;
+        try {
+            is = context.getAssets().open(ASSET_NAME);
+            os = new FileOutputStream(tmp);
+            byte[] buffer = new byte[65536];
+            int length;
+            while ((length = is.read(buffer)) > 0)
+                os.write(buffer, 0, length);
+        } finally {
+            if (is != null)
+                try {
+                    is.close();
+                } catch (IOException ignored) {
+                }
+            if (os != null)
+                os.close();
+        }
+
+        if (tmp.length() != SIZE || !tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Copy " + ASSET_NAME + " failed");
+        }
+    }
+
+    // Geoid height in meters, bilinearly interpolated between the four surrounding grid points
+    public double getOffset(double latitude, double longitude) {
+        double y = (90 - latitude) * CELLS_PER_DEGREE;
+        if (y < 0)
+            y = 0;
+        else if (y > ROWS - 1)
+            y = ROWS - 1;
+        int y0 = Math.min((int) y, ROWS - 2);
+        double dy = y - y0;
+
+        double x = (longitude % 360) * CELLS_PER_DEGREE;
+        if (x < 0)
+            x += COLUMNS;
+        int x0 = (int) x;
+        double dx = x - x0;
+        x0 %= COLUMNS;
+        int x1 = (x0 + 1) % COLUMNS; // wraps at the antimeridian
+
+        int row0 = y0 * COLUMNS;
+        int row1 = row0 + COLUMNS;
+        double top = mGrid.get(row0 + x0) * (1 - dx) + mGrid.get(row0 + x1) * dx;
+        double bottom = mGrid.get(row1 + x0) * (1 - dx) + mGrid.get(row1 + x1) * dx;
+        return (top * (1 - dy) + bottom * dy) / 100d;
+    }
+
+    // For correcting whole tracks
+    public double[] getOffsets(double[] latitudes, double[] longitudes) {
+        double[] offsets = new double[latitudes.length];
+        for (int i = 0; i < latitudes.length; i++)
+            offsets[i] = getOffset(latitudes[i], longitudes[i]);
+        return offsets;
+    }
+}
@@ -1,7 +1,6 @@
 package eu.faircode.backpacktrack2;
 
 import android.content.Context;
-import android.database.Cursor;
 
 import org.jdom2.Attribute;
 import org.jdom2.Document;
@@ -26,8 +25,12 @@ public class KMLFileWriter {
     private static final DecimalFormat DF = new DecimalFormat("0.##", new DecimalFormatSymbols(Locale.ROOT));
     private static final SimpleDateFormat SDF = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.getDefault());
 
+    // Location columns read by the writer
+    public static final String[] COLUMNS = new String[]{
+            "time", "provider", "latitude", "longitude", "altitude", "speed", "bearing", "accuracy", "name"};
+
     // Main logic
-    public static void writeKMLFile(File target, String trackName, boolean extensions, Cursor cTrackPoints, Cursor cWayPoints, Context context)
+    public static void writeKMLFile(File target, String trackName, boolean extensions, DatabaseHelper.LocationPager cTrackPoints, DatabaseHelper.LocationPager cWayPoints, Context context)
             throws IOException {
 
         // https://developers.google.com/kml/documentation/kmlreference
@@ -85,7 +88,7 @@ public class KMLFileWriter {
         // xmllint --noout --schema kml22gx.xsd BackPackTrack.kml
     }
 
-    private static Element getTrackpoints(String trackName, boolean extensions, Cursor c, Namespace gx, Context context) {
+    private static Element getTrackpoints(String trackName, boolean extensions, DatabaseHelper.LocationPager c, Namespace gx, Context context) {
         int colLatitude = c.getColumnIndex("latitude");
         int colLongitude = c.getColumnIndex("longitude");
         int colAltitude = c.getColumnIndex("altitude");
@@ -163,7 +166,7 @@ public class KMLFileWriter {
         return placemark;
     }
 
-    private static Collection<Element> getWayPoints(boolean extensions, Cursor c, Namespace gx, Context context) {
+    private static Collection<Element> getWayPoints(boolean extensions, DatabaseHelper.LocationPager c, Namespace gx, Context context) {
         Collection<Element> placemarks = new ArrayList<>();
 
         int colLatitude = c.getColumnIndex("latitude");
@@ -211,7 +214,7 @@ public class KMLFileWriter {
         return placemarks;
     }
 
-    private static Element getExtensions(Cursor c, Context context) {
+    private static Element getExtensions(DatabaseHelper.LocationPager c, Context context) {
         int colProvider = c.getColumnIndex("provider");
         int colSpeed = c.getColumnIndex("speed");
         int colBearing = c.getColumnIndex("bearing");
@@ -0,0 +1,138 @@
+package eu.faircode.backpacktrack2;
+
+import android.location.Location;
+
+// Constant velocity Kalman filter for a stream of fixes, with the reported accuracy as measurement noise
+// Position is filtered in meters east and north of the first fix, altitude separately,
+// each as an independent position/velocity pair, so that a fix needs no allocations
+public class KalmanFilter {
+    private static final double METERS_PER_DEGREE = 111320;
+    private static final double VERTICAL_ACCURACY = 1.5; // times horizontal accuracy
+    private static final double UNKNOWN_ACCURACY = 100; // meters
+
+    private final double acceleration; // process noise, meters per second squared
+    private final long gap; // milliseconds
+
+    private final Axis east = new Axis();
+    private final Axis north = new Axis();
+    private final Axis up = new Axis();
+
+    private boolean started = false;
+    private long time;
+    private long altitudeTime;
+    private double latitude0;
+    private double longitude0;
+    private double scale; // meters per degree longitude
+
+    private static class Axis {
+        boolean started = false;
+        double position;
+        double velocity;
+        double p00, p01, p11; // covariance
+
+        void reset(double z, double r) {
+            started = true;
+            position = z;
+            velocity = 0;
+            p00 = r;
+            p01 = 0;
+            p11 = r;
+        }
+
+        void predict(double dt, double q) {
+            position += velocity * dt;
+            double dt2 = dt * dt;
+            p00 += 2 * dt * p01 + dt2 * p11 + q * dt2 * dt2 / 4;
+            p01 += dt * p11 + q * dt2 * dt / 2;
+            p11 += q * dt2;
+        }
+
+        void update(double z, double r) {
+            double s = p00 + r;
+            double k0 = p00 / s;
+            double k1 = p01 / s;
+            double y = z - position;
+            position += k0 * y;
+            velocity += k1 * y;
+            p11 -= k1 * p01;
+            p01 -= k0 * p01;
+            p00 -= k0 * p00;
+        }
+    }
+
+    // A fix after a gap restarts the filter
+    public KalmanFilter(double acceleration, long gap) {
+        this.acceleration = acceleration;
+        this.gap = gap;
+    }
+
+    public void reset() {
+        started = false;
+        up.started = false;
+    }
+
+    // Replaces position, altitude and speed of the fix by the filtered values
+    public void apply(Location location) {
+        float accuracy = (location.hasAccuracy() ? location.getAccuracy() : Float.NaN);
+        update(location.getTime(), location.getLatitude(), location.getLongitude(),
+                location.hasAltitude() ? location.getAltitude() : Double.NaN, accuracy);
+
+        location.setLatitude(getLatitude());
+        location.setLongitude(getLongitude());
+        if (location.hasAltitude())
+            location.setAltitude(getAltitude());
+        location.setSpeed(getSpeed());
+    }
+
+    // A fix without an accuracy (NaN or not positive) is trusted least
+    public void update(long time, double latitude, double longitude, double altitude, float accuracy) {
+        double sigma = (accuracy > 0 ? Math.max(accuracy, 1) : UNKNOWN_ACCURACY);
+        double r = sigma * sigma;
+        double dt = (time - this.time) / 1000d;
+        if (!started || dt <= 0 || time - this.time > gap) {
+            started = true;
+            latitude0 = latitude;
+            longitude0 = longitude;
+            scale = METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude));
+            east.reset(0, r);
+            north.reset(0, r);
+            if (Double.isNaN(altitude))
+                up.started = false;
+            else {
+                up.reset(altitude, r * VERTICAL_ACCURACY * VERTICAL_ACCURACY);
+                altitudeTime = time;
+            }
+        } else {
+            double q = acceleration * acceleration;
+            east.predict(dt, q);
+            east.update((longitude - longitude0) * scale, r);
+            north.predict(dt, q);
+            north.update((latitude - latitude0) * METERS_PER_DEGREE, r);
+            if (!Double.isNaN(altitude)) {
+                if (up.started && time - altitudeTime <= gap) {
+                    up.predict((time - altitudeTime) / 1000d, q);
+                    up.update(altitude, r * VERTICAL_ACCURACY * VERTICAL_ACCURACY);
+                } else
+                    up.reset(altitude, r * VERTICAL_ACCURACY * VERTICAL_ACCURACY);
+                altitudeTime = time;
+            }
+        }
+        this.time = time;
+    }
+
+    public double getLatitude() {
+        return latitude0 + north.position / METERS_PER_DEGREE;
+    }
+
+    public double getLongitude() {
+        return longitude0 + east.position / scale;
+    }
+
+    public double getAltitude() {
+        return (up.started ? up.position : Double.NaN);
+    }
+
+    public float getSpeed() {
+        return (float) Math.sqrt(east.velocity * east.velocity + north.velocity * north.velocity);
+    }
+}
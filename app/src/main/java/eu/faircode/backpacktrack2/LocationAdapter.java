@@ -1,10 +1,8 @@
 package eu.faircode.backpacktrack2;
 
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.location.Location;
-import android.preference.PreferenceManager;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -43,8 +41,7 @@ public class LocationAdapter extends CursorAdapter {
     }
 
     public void init() {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
-        lastLocation = BackgroundService.LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_LAST_LOCATION, null));
+        lastLocation = BackgroundService.getLastLocation(mContext);
     }
 
     @Override
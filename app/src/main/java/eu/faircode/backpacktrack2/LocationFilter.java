@@ -0,0 +1,264 @@
+package eu.faircode.backpacktrack2;
+
+import android.location.Location;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Chain of stages deciding whether a fix is accepted, compared to the last accepted fix
+// Chains are meant to be built once, counters are kept by chain and stage name across chains
+public class LocationFilter {
+    private static final String TAG = "BPT2.Filter";
+
+    public interface Stage {
+        String getName();
+
+        boolean accept(Location last, Location location);
+    }
+
+    public static class Counter {
+        public long accepted = 0;
+        public long rejected = 0;
+        public long nanos = 0;
+    }
+
+    private static final Map<String, Counter> mCounters = new LinkedHashMap<>();
+
+    private final String name;
+    private final List<Stage> stages = new ArrayList<>();
+    private final List<String> keys = new ArrayList<>();
+    private final List<Counter> counters = new ArrayList<>();
+
+    public LocationFilter(String name) {
+        this.name = name;
+    }
+
+    public LocationFilter add(Stage stage) {
+        String key = name + "." + stage.getName();
+        Counter counter;
+        synchronized (mCounters) {
+            counter = mCounters.get(key);
+            if (counter == null) {
+                counter = new Counter();
+                mCounters.put(key, counter);
+            }
+        }
+        stages.add(stage);
+        keys.add(key);
+        counters.add(counter);
+        return this;
+    }
+
+    public boolean accept(Location last, Location location) {
+        return accept(last, location, counters, mCounters, true);
+    }
+
+    private boolean accept(Location last, Location location, List<Counter> counters, Object lock, boolean log) {
+        for (int i = 0; i < stages.size(); i++) {
+            long start = System.nanoTime();
+            boolean accepted = stages.get(i).accept(last, location);
+            long elapsed = System.nanoTime() - start;
+
+            Counter counter = counters.get(i);
+            synchronized (lock) {
+                if (accepted)
+                    counter.accepted++;
+                else
+                    counter.rejected++;
+                counter.nanos += elapsed;
+            }
+
+            if (!accepted) {
+                if (log)
+                    Log.i(TAG, "Filtered by " + keys.get(i) + " location=" + location);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Runs a recorded stream of fixes through the chain, each compared to the last accepted one,
+    // for example to tune thresholds offline, counting in separate counters
+    public static Map<String, Counter> replay(LocationFilter filter, List<Location> locations) {
+        Map<String, Counter> result = new LinkedHashMap<>();
+        List<Counter> counters = new ArrayList<>();
+        for (String key : filter.keys) {
+            Counter counter = result.get(key);
+            if (counter == null) {
+                counter = new Counter();
+                result.put(key, counter);
+            }
+            counters.add(counter);
+        }
+
+        Location last = null;
+        for (Location location : locations)
+            if (filter.accept(last, location, counters, result, false))
+                last = location;
+
+        return result;
+    }
+
+    public static String getStatistics() {
+        return getStatistics(mCounters);
+    }
+
+    public static String getStatistics(Map<String, Counter> counters) {
+        StringBuilder sb = new StringBuilder();
+        synchronized (counters) {
+            for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+                Counter counter = entry.getValue();
+                long total = counter.accepted + counter.rejected;
+                sb.append(entry.getKey())
+                        .append(" accepted=").append(counter.accepted)
+                        .append(" rejected=").append(counter.rejected)
+                        .append(" avg=").append(total == 0 ? 0 : counter.nanos / total / 1000).append(" us\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    // Stages
+
+    // Rejects fixes without accuracy or less accurate than max meters
+    public static Stage accuracy(final String name, final int max) {
+        return new Stage() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public boolean accept(Location last, Location location) {
+                return (location.hasAccuracy() && location.getAccuracy() <= max);
+            }
+        };
+    }
+
+    // Rejects fixes not newer than the last fix and, if required, without a last fix
+    public static Stage order(final boolean required) {
+        return new Stage() {
+            @Override
+            public String getName() {
+                return "order";
+            }
+
+            @Override
+            public boolean accept(Location last, Location location) {
+                return (last == null ? !required : location.getTime() > last.getTime());
+            }
+        };
+    }
+
+    // Rejects fixes without altitude, if required
+    public static Stage altitude(final boolean required) {
+        return new Stage() {
+            @Override
+            public String getName() {
+                return "altitude";
+            }
+
+            @Override
+            public boolean accept(Location last, Location location) {
+                return (!required || location.hasAltitude());
+            }
+        };
+    }
+
+    // Rejects fixes within min meters of the last fix, unless more accurate
+    public static Stage nearby(final int min) {
+        return new Stage() {
+            @Override
+            public String getName() {
+                return "nearby";
+            }
+
+            @Override
+            public boolean accept(Location last, Location location) {
+                return (last == null || Util.distance(last, location) >= min ||
+                        (last.hasAccuracy() ? last.getAccuracy() : Float.MAX_VALUE) >
+                                (location.hasAccuracy() ? location.getAccuracy() : Float.MAX_VALUE));
+            }
+        };
+    }
+
+    // Rejects fixes implying a speed above max meters per second since the last fix
+    public static Stage speed(final float max) {
+        return new Stage() {
+            @Override
+            public String getName() {
+                return "speed";
+            }
+
+            @Override
+            public boolean accept(Location last, Location location) {
+                long elapsed = (last == null ? 0 : location.getTime() - last.getTime());
+                return (elapsed <= 0 || Util.distance(last, location) / (elapsed / 1000d) <= max);
+            }
+        };
+    }
+
+    // Accepts fixes with a bearing differing more than min degrees from the last bearing
+    public static Stage bearingChange(final int min) {
+        return new Stage() {
+            @Override
+            public String getName() {
+                return "bearing_change";
+            }
+
+            @Override
+            public boolean accept(Location last, Location location) {
+                if (!location.hasBearing())
+                    return false;
+                if (last == null || !last.hasBearing())
+                    return true;
+                return (getBearingChange(last, location) > min);
+            }
+        };
+    }
+
+    // Accepts fixes with an altitude differing more than min meters from the last altitude
+    public static Stage altitudeChange(final int min) {
+        return new Stage() {
+            @Override
+            public String getName() {
+                return "altitude_change";
+            }
+
+            @Override
+            public boolean accept(Location last, Location location) {
+                if (!location.hasAltitude())
+                    return false;
+                if (last == null || !last.hasAltitude())
+                    return true;
+                return (Math.abs(last.getAltitude() - location.getAltitude()) > min);
+            }
+        };
+    }
+
+    // Accepts fixes accepted by any of the stages
+    public static Stage anyOf(final String name, final Stage... stages) {
+        return new Stage() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public boolean accept(Location last, Location location) {
+                for (Stage stage : stages)
+                    if (stage.accept(last, location))
+                        return true;
+                return false;
+            }
+        };
+    }
+
+    public static float getBearingChange(Location last, Location location) {
+        float change = Math.abs(last.getBearing() - location.getBearing());
+        return (change > 180 ? 360 - change : change);
+    }
+}
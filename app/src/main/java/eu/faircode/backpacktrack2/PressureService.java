@@ -33,11 +33,9 @@ public class PressureService extends Service {
     private SensorEventListener pressureListener = new SensorEventListener() {
         @Override
         public void onSensorChanged(SensorEvent sensorEvent) {
-            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(PressureService.this);
-
             // Get pressure value
             float hpa = sensorEvent.values[0];
-            float offset = Float.parseFloat(prefs.getString(SettingsFragment.PREF_PRESSURE_OFFSET, SettingsFragment.DEFAULT_PRESSURE_OFFSET));
+            float offset = TrackingSettings.get(PressureService.this).pressure_offset;
             hpa += offset;
             Log.i(TAG, "Pressure " + hpa + "mb offset=" + offset);
 
@@ -122,14 +120,15 @@ public class PressureService extends Service {
     public static float getAltitude(Location location, Context context) {
         // Get settings
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        int maxage = Integer.parseInt(prefs.getString(SettingsFragment.PREF_PRESSURE_MAXAGE, SettingsFragment.DEFAULT_PRESSURE_MAXAGE));
-        int maxdist = Integer.parseInt(prefs.getString(SettingsFragment.PREF_PRESSURE_MAXDIST, SettingsFragment.DEFAULT_PRESSURE_MAXDIST));
-        boolean invehicle = prefs.getBoolean(SettingsFragment.PREF_PRESSURE_INVEHICLE, SettingsFragment.DEFAULT_PRESSURE_INVEHICLE);
+        TrackingSettings settings = TrackingSettings.get(context);
+        int maxage = settings.pressure_maxage;
+        int maxdist = settings.pressure_maxdist;
+        boolean invehicle = settings.pressure_invehicle;
 
         Log.i(TAG, "Get altitude location=" + location + " maxage=" + maxage + " maxdist=" + maxdist + " vehicle=" + invehicle);
 
         // Check last activity
-        int lastActivity = prefs.getInt(SettingsFragment.PREF_LAST_ACTIVITY, DetectedActivity.STILL);
+        int lastActivity = TrackingState.getInstance(context).getLastActivity();
         if (lastActivity == DetectedActivity.IN_VEHICLE && !invehicle) {
             Log.i(TAG, "No altitude from pressure in vehicle");
             return Float.NaN;
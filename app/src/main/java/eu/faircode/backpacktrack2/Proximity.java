@@ -33,7 +33,7 @@ public class Proximity {
             } else
                 lm.addProximityAlert(latitude, longitude, radius, -1, pi);
 
-            new DatabaseHelper(context).setProximity(id, radius).close();
+            DatabaseHelper.getInstance(context).setProximity(id, radius);
         }
     }
 
@@ -42,37 +42,30 @@ public class Proximity {
                 context.checkSelfPermission(android.Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED) {
             Log.i(TAG, "Restoring proximity alerts");
             LocationManager lm = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
-            DatabaseHelper db = null;
+            Cursor cursor = null;
             try {
-                db = new DatabaseHelper(context);
-                Cursor cursor = null;
-                try {
-                    cursor = db.getLocations(0, Long.MAX_VALUE, false, true, true, 0);
-                    int colID = cursor.getColumnIndex("ID");
-                    int colLatitude = cursor.getColumnIndex("latitude");
-                    int colLongitude = cursor.getColumnIndex("longitude");
-                    int colProximity = cursor.getColumnIndex("proximity");
-                    while (cursor.moveToNext()) {
-                        long id = cursor.getLong(colID);
-                        double latitude = cursor.getDouble(colLatitude);
-                        double longitude = cursor.getDouble(colLongitude);
-                        long radius = cursor.getLong(colProximity);
-                        if (radius > 0) {
-                            Intent proximity = new Intent(context, BackgroundService.class);
-                            proximity.setAction(BackgroundService.ACTION_PROXIMITY);
-                            proximity.putExtra(BackgroundService.EXTRA_WAYPOINT, id);
-                            PendingIntent pi = PendingIntent.getService(context, 100 + (int) id, proximity, PendingIntent.FLAG_UPDATE_CURRENT);
-                            Log.i(TAG, "Restoring proximity alert waypoint=" + id);
-                            lm.addProximityAlert(latitude, longitude, radius, -1, pi);
-                        }
+                cursor = DatabaseHelper.getInstance(context).getProximityWaypoints();
+                int colID = cursor.getColumnIndex("ID");
+                int colLatitude = cursor.getColumnIndex("latitude");
+                int colLongitude = cursor.getColumnIndex("longitude");
+                int colProximity = cursor.getColumnIndex("proximity");
+                while (cursor.moveToNext()) {
+                    long id = cursor.getLong(colID);
+                    double latitude = cursor.getDouble(colLatitude);
+                    double longitude = cursor.getDouble(colLongitude);
+                    long radius = cursor.getLong(colProximity);
+                    if (radius > 0) {
+                        Intent proximity = new Intent(context, BackgroundService.class);
+                        proximity.setAction(BackgroundService.ACTION_PROXIMITY);
+                        proximity.putExtra(BackgroundService.EXTRA_WAYPOINT, id);
+                        PendingIntent pi = PendingIntent.getService(context, 100 + (int) id, proximity, PendingIntent.FLAG_UPDATE_CURRENT);
+                        Log.i(TAG, "Restoring proximity alert waypoint=" + id);
+                        lm.addProximityAlert(latitude, longitude, radius, -1, pi);
                     }
-                } finally {
-                    if (cursor != null)
-                        cursor.close();
                 }
             } finally {
-                if (db != null)
-                    db.close();
+                if (cursor != null)
+                    cursor.close();
             }
         }
     }
@@ -65,6 +65,7 @@ import com.google.android.gms.common.GooglePlayServicesNotAvailableException;
 import com.google.android.gms.common.GooglePlayServicesRepairableException;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.location.ActivityRecognition;
+import com.google.android.gms.location.DetectedActivity;
 import com.google.android.gms.location.places.Place;
 import com.google.android.gms.location.places.ui.PlacePicker;
 import com.google.android.gms.maps.model.LatLng;
@@ -88,6 +89,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class SettingsFragment extends PreferenceFragment implements SharedPreferences.OnSharedPreferenceChangeListener {
@@ -120,6 +122,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
     public static final String PREF_NEARBY = "pref_nearby";
     public static final String PREF_MINTIME = "pref_mintime";
     public static final String PREF_MINDIST = "pref_mindist";
+    public static final String PREF_SMOOTHING = "pref_smoothing";
 
     public static final String PREF_PASSIVE_ENABLED = "pref_passive_enabled";
     public static final String PREF_PASSIVE_BEARING = "pref_passive_bearing";
@@ -197,6 +200,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
     public static final String PREF_PRECIPITATION = "pref_precipitation";
 
     public static final String PREF_GRAPH_HISTORY = "pref_graph_history";
+    public static final String PREF_ARCHIVE_AGE = "pref_archive_age";
 
     public static final String PREF_WIKI_BASE_URL = "pref_wiki_base_url";
     public static final String PREF_WIKI_RADIUS = "pref_wiki_radius";
@@ -234,6 +238,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
     public static final String DEFAULT_NEARBY = "100"; // meters
     public static final String DEFAULT_MINTIME = "1"; // seconds
     public static final String DEFAULT_MINDIST = "0"; // meters
+    public static final boolean DEFAULT_SMOOTHING = false;
 
     public static final boolean DEFAULT_PASSIVE_ENABLED = true;
     public static final String DEFAULT_PASSIVE_BEARING = "30"; // degrees
@@ -299,6 +304,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
     public static final String DEFAULT_PRECIPITATION = "mm";
 
     public static final String DEFAULT_GRAPH_HISTORY = "30"; // days
+    public static final String DEFAULT_ARCHIVE_AGE = "0"; // days, never
     public static final String DEFAULT_WIKI_BASE_URL = "https://en.wikipedia.org,https://en.wikivoyage.org";
     public static final String DEFAULT_WIKI_RADIUS = "10"; // km
     public static final String DEFAULT_WIKI_RESULTS = "25";
@@ -340,6 +346,10 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
 
     public static final String PREF_GCM_TOKEN = "pref_gcm_token";
 
+    // Days of the track statistics to be rebuilt in the background
+    public static final String PREF_TRACKDAY_DIRTY_FROM = "pref_trackday_dirty_from";
+    public static final String PREF_TRACKDAY_DIRTY_TO = "pref_trackday_dirty_to";
+
     // Remember last values
     public static final String PREF_LAST_ACTIVITY = "pref_last_activity";
     public static final String PREF_LAST_CONFIDENCE = "pref_last_confidence";
@@ -381,6 +391,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
     private static final int ACTIVITY_PICKPLACE = 1;
     private static final int GEOCODER_RESULTS = 5;
     private static final long DAY_MS = 24L * 3600L * 1000L;
+    private static final int GRAPH_MAX_POINTS = 2000;
 
     private static final int ACTIVITY_PLAY_SERVICES = 2;
 
@@ -410,7 +421,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
 
         addPreferencesFromResource(R.xml.preferences);
 
-        db = new DatabaseHelper(getActivity());
+        db = DatabaseHelper.getInstance(getActivity());
 
         // Shared geo point
         Uri data = getActivity().getIntent().getData();
@@ -469,9 +480,6 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
         for (AlertDialog dialog : dialogs)
             if (dialog.isShowing())
                 dialog.dismiss();
-
-        if (db != null)
-            db.close();
     }
 
     @Override
@@ -601,6 +609,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
         updateTitle(prefs, PREF_PRECIPITATION);
 
         updateTitle(prefs, PREF_GRAPH_HISTORY);
+        updateTitle(prefs, PREF_ARCHIVE_AGE);
         updateTitle(prefs, PREF_WIKI_BASE_URL);
         updateTitle(prefs, PREF_WIKI_RADIUS);
         updateTitle(prefs, PREF_WIKI_RESULTS);
@@ -726,7 +735,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
 
         final float ref_pressure = prefs.getFloat(SettingsFragment.PREF_PRESSURE_REF_VALUE, 0);
         final long ref_time = prefs.getLong(SettingsFragment.PREF_PRESSURE_REF_TIME, 0);
-        final Location lastLocation = BackgroundService.LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_LAST_LOCATION, null));
+        final Location lastLocation = BackgroundService.getLastLocation(getActivity());
 
         // Handle pressure reading test
         pref_pressure_test.setEnabled(ref_pressure != 0 && ref_time != 0 && lastLocation != null);
@@ -870,7 +879,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
 
             // Reset activity
         else if (PREF_RECOGNITION_ENABLED.equals(key))
-            prefs.edit().remove(PREF_LAST_ACTIVITY).apply();
+            TrackingState.getInstance(getActivity()).clearLastActivity();
 
         else if (PREF_WEATHER_API.equals(key)) {
             findPreference(PREF_WEATHER_FORECAST).setEnabled("fio".equals(prefs.getString(key, DEFAULT_WEATHER_API)));
@@ -921,19 +930,8 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
 
         if (PREF_AUTO_ENABLED.equals(key))
             if (prefs.getBoolean(key, DEFAULT_AUTO_ENABLED)) {
-                SharedPreferences.Editor editor = prefs.edit();
-                editor.remove(SettingsFragment.PREF_LAST_STATIONARY_AVG);
-                editor.remove(SettingsFragment.PREF_LAST_STATIONARY_LAT);
-                editor.remove(SettingsFragment.PREF_LAST_STATIONARY_LON);
-                editor.remove(SettingsFragment.PREF_LAST_STATIONARY_ALT);
-
-                Location lastLocation = BackgroundService.LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_LAST_LOCATION, null));
-                if (lastLocation == null)
-                    editor.remove(SettingsFragment.PREF_LAST_STATIONARY);
-                else
-                    editor.putString(SettingsFragment.PREF_LAST_STATIONARY, BackgroundService.LocationSerializer.serialize(lastLocation));
-
-                editor.apply();
+                TrackingState state = TrackingState.getInstance(getActivity());
+                state.resetStationary(state.getLastLocation());
             }
 
         if (PREF_PRIVACY.equals(key) ||
@@ -999,7 +997,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
 
         // Initialize step counting
         long time = new Date().getTime();
-        new DatabaseHelper(context).updateSteps(time, 0).close();
+        DatabaseHelper.getInstance(context).updateSteps(time, 0);
 
         // Update widgets
         StepCountWidget.updateWidgets(context);
@@ -1239,7 +1237,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
                                                 altitude_type |= BackgroundService.ALTITUDE_KEEP;
 
                                             // Persist location
-                                            new DatabaseHelper(getActivity()).insertLocation(location, altitude_type, name).close();
+                                            DatabaseHelper.getInstance(getActivity()).insertLocation(location, altitude_type, name);
                                             return null;
                                         }
 
@@ -1304,7 +1302,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
                         altitude_type |= BackgroundService.ALTITUDE_KEEP;
 
                     // Persist location
-                    new DatabaseHelper(getActivity()).insertLocation(location, altitude_type, name.toString()).close();
+                    DatabaseHelper.getInstance(getActivity()).insertLocation(location, altitude_type, name.toString());
                     return null;
                 }
 
@@ -1525,6 +1523,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
 
         // Reference controls
         final GraphView graph = (GraphView) viewHistory.findViewById(R.id.gvLocation);
+        final TextView tvTrackTotals = (TextView) viewHistory.findViewById(R.id.tvTrackTotals);
         ImageView ivViewDay = (ImageView) viewHistory.findViewById(R.id.ivViewDay);
         ImageView ivViewWeek = (ImageView) viewHistory.findViewById(R.id.ivViewWeek);
         final ListView lv = (ListView) viewHistory.findViewById(R.id.lvLocationHistory);
@@ -1579,7 +1578,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
                                 new AsyncTask<Object, Object, Object>() {
                                     @Override
                                     protected Object doInBackground(Object... objects) {
-                                        new DatabaseHelper(getActivity()).updateLocationAltitude(id, altitude, altitude_type ^ BackgroundService.ALTITUDE_KEEP);
+                                        DatabaseHelper.getInstance(getActivity()).updateLocationAltitude(id, altitude, altitude_type ^ BackgroundService.ALTITUDE_KEEP);
                                         return null;
                                     }
                                 }.execute();
@@ -1716,7 +1715,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
                                             public void onClick(DialogInterface dialog, int which) {
                                                 new AsyncTask<Object, Object, Object>() {
                                                     protected Object doInBackground(Object... params) {
-                                                        new DatabaseHelper(getActivity()).deleteLocation(id).close();
+                                                        DatabaseHelper.getInstance(getActivity()).deleteLocation(id);
                                                         return null;
                                                     }
 
@@ -1765,6 +1764,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
 
         // Show altitude graph
         showAltitudeGraph(graph);
+        showTrackTotals(tvTrackTotals);
 
         // Fill list
         Cursor cursor = db.getLocations(0, Long.MAX_VALUE, true, true, false, 0);
@@ -1796,6 +1796,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
                         adapter.changeCursor(cursor);
                         adapter.init(); // Possible new last location
                         showAltitudeGraph(graph);
+                        showTrackTotals(tvTrackTotals);
                     }
                 });
             }
@@ -1820,6 +1821,34 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
         alertDialog.getWindow().clearFlags(WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE | WindowManager.LayoutParams.FLAG_ALT_FOCUSABLE_IM);
     }
 
+    // Totals over the graph history from the daily statistics
+    private void showTrackTotals(TextView tv) {
+        SharedPreferences prefs = getPreferenceScreen().getSharedPreferences();
+        long now = new Date().getTime();
+        int history = Integer.parseInt(prefs.getString(PREF_GRAPH_HISTORY, DEFAULT_GRAPH_HISTORY));
+
+        Cursor cursor = null;
+        try {
+            cursor = db.getTrackTotals(now - history * DAY_MS, now);
+            int days = (cursor.moveToFirst() ? cursor.getInt(cursor.getColumnIndex("days")) : 0);
+            if (days > 0) {
+                double distance = cursor.getDouble(cursor.getColumnIndex("distance"));
+                long moving = cursor.getLong(cursor.getColumnIndex("moving"));
+                double ascent = cursor.getDouble(cursor.getColumnIndex("ascent"));
+                double descent = cursor.getDouble(cursor.getColumnIndex("descent"));
+                long hours = TimeUnit.MILLISECONDS.toHours(moving);
+                long minutes = TimeUnit.MILLISECONDS.toMinutes(moving - hours * 3600 * 1000);
+                tv.setText(getString(R.string.msg_track_totals, days, distance / 1000,
+                        hours + ":" + (minutes < 10 ? "0" : "") + minutes, Math.round(ascent), Math.round(descent)));
+                tv.setVisibility(View.VISIBLE);
+            } else
+                tv.setVisibility(View.GONE);
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+    }
+
     private void showAltitudeGraph(GraphView graph) {
         SharedPreferences prefs = getPreferenceScreen().getSharedPreferences();
 
@@ -1833,7 +1862,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
         long now = new Date().getTime();
         int history = Integer.parseInt(prefs.getString(PREF_GRAPH_HISTORY, DEFAULT_GRAPH_HISTORY));
         long viewport = prefs.getLong(PREF_LAST_LOCATION_VIEWPORT, 7 * DAY_MS);
-        Cursor cursor = db.getLocations(now - history * DAY_MS, now, true, true, true, 0);
+        Cursor cursor = db.getTrackDetail(now - history * DAY_MS, now, GRAPH_MAX_POINTS);
 
         int colTime = cursor.getColumnIndex("time");
         int colAltitude = cursor.getColumnIndex("altitude");
@@ -2042,7 +2071,13 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
                                 return true;
 
                             case R.id.menu_delete:
-                                db.deleteActivity(activity_id);
+                                new AsyncTask<Object, Object, Object>() {
+                                    @Override
+                                    protected Object doInBackground(Object... objects) {
+                                        db.deleteActivity(activity_id);
+                                        return null;
+                                    }
+                                }.execute();
                                 return true;
 
                             default:
@@ -2339,7 +2374,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
                             public void onClick(DialogInterface dialog, int which) {
                                 new AsyncTask<Object, Object, Object>() {
                                     protected Object doInBackground(Object... params) {
-                                        new DatabaseHelper(getActivity()).deleteActivityTypes().close();
+                                        DatabaseHelper.getInstance(getActivity()).deleteActivityTypes();
                                         return null;
                                     }
                                 }.execute();
@@ -2365,7 +2400,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
         // Live updates
         final DatabaseHelper.ActivityTypeChangedListener listener = new DatabaseHelper.ActivityTypeChangedListener() {
             @Override
-            public void onActivityAdded(long time, int activity, int confidence) {
+            public void onActivitiesAdded(long time, List<DetectedActivity> activities) {
                 update();
             }
 
@@ -2489,15 +2524,33 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
                     public boolean onMenuItemClick(MenuItem item) {
                         switch (item.getItemId()) {
                             case R.id.menu_delete:
-                                db.deleteStep(step_id);
+                                new AsyncTask<Object, Object, Object>() {
+                                    @Override
+                                    protected Object doInBackground(Object... objects) {
+                                        db.deleteStep(step_id);
+                                        return null;
+                                    }
+                                }.execute();
                                 return true;
 
                             case R.id.menu_plus100:
-                                db.updateSteps(step_id, step_time, step_count + 100);
+                                new AsyncTask<Object, Object, Object>() {
+                                    @Override
+                                    protected Object doInBackground(Object... objects) {
+                                        db.updateSteps(step_id, step_time, step_count + 100);
+                                        return null;
+                                    }
+                                }.execute();
                                 return true;
 
                             case R.id.menu_min100:
-                                db.updateSteps(step_id, step_time, step_count - 100);
+                                new AsyncTask<Object, Object, Object>() {
+                                    @Override
+                                    protected Object doInBackground(Object... objects) {
+                                        db.updateSteps(step_id, step_time, step_count - 100);
+                                        return null;
+                                    }
+                                }.execute();
                                 return true;
 
                             default:
@@ -2757,7 +2810,13 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
                                 return true;
 
                             case R.id.menu_delete:
-                                db.deleteWeather(weather_id);
+                                new AsyncTask<Object, Object, Object>() {
+                                    @Override
+                                    protected Object doInBackground(Object... objects) {
+                                        db.deleteWeather(weather_id);
+                                        return null;
+                                    }
+                                }.execute();
                                 return true;
 
                             default:
@@ -2788,6 +2847,11 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
                 update();
             }
 
+            @Override
+            public void onWeatherBatchAdded(long from, long to, int count) {
+                update();
+            }
+
             @Override
             public void onWeatherDeleted(long id) {
                 update();
@@ -3158,7 +3222,9 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
         @Override
         protected Object doInBackground(Object... params) {
             try {
-                return DarkSky.getWeatherByLocation(apikey_fio, location, type, cache, context);
+                List<Weather> listWeather = DarkSky.getWeatherByLocation(apikey_fio, location, type, cache, context);
+                DatabaseHelper.getInstance(context).insertWeather(listWeather, location);
+                return listWeather;
             } catch (Throwable ex) {
                 Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
                 return ex;
@@ -3190,7 +3256,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
 
     private void weather_forecast() {
         final SharedPreferences prefs = getPreferenceScreen().getSharedPreferences();
-        final Location location = BackgroundService.LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_LAST_LOCATION, null));
+        final Location location = BackgroundService.getLastLocation(getActivity());
 
         if (location == null) {
             Toast.makeText(getActivity(), R.string.msg_locunknown, Toast.LENGTH_SHORT).show();
@@ -3215,7 +3281,6 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
         TextView tvPoweredBy = (TextView) viewForecast.findViewById(R.id.tvPoweredBy);
 
         // Create waypoint adapter
-        DatabaseHelper dh = new DatabaseHelper(getActivity());
         final SimpleCursorAdapter adapter = new SimpleCursorAdapter(
                 getActivity(),
                 android.R.layout.simple_spinner_item,
@@ -3224,7 +3289,6 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
                 new int[]{android.R.id.text1},
                 0);
         adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
-        dh.close();
 
         spWaypoint.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
             @Override
@@ -3235,7 +3299,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
                     location.setLatitude(cursor.getDouble(cursor.getColumnIndex("latitude")));
                     location.setLongitude(cursor.getDouble(cursor.getColumnIndex("longitude")));
                 } else {
-                    Location lastLocation = BackgroundService.LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_LAST_LOCATION, null));
+                    Location lastLocation = BackgroundService.getLastLocation(getActivity());
                     location.setLatitude(lastLocation.getLatitude());
                     location.setLongitude(lastLocation.getLongitude());
                 }
@@ -3248,7 +3312,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
             public void onNothingSelected(AdapterView<?> adapterView) {
                 prefs.edit().putLong(PREF_LAST_FORECAST_WAYPOINT, -1).apply();
 
-                Location lastLocation = BackgroundService.LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_LAST_LOCATION, null));
+                Location lastLocation = BackgroundService.getLastLocation(getActivity());
                 location.setLatitude(lastLocation.getLatitude());
                 location.setLongitude(lastLocation.getLongitude());
 
@@ -3661,9 +3725,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
         } else if (PREF_LIFELINE_METERED_INTERVAL.equals(key))
             pref.setTitle(getString(R.string.title_lifeline_interval, prefs.getString(key, DEFAULT_LIFELINE_METERED_INTERVAL)));
         else if (PREF_LIFELINE_STATE.equals(key) || PREF_LIFELINE_LAST.equals(key)) {
-            DatabaseHelper dh = new DatabaseHelper(getActivity());
-            int unsent = dh.getUnsentLocationCount();
-            dh.close();
+            int unsent = DatabaseHelper.getInstance(getActivity()).getUnsentLocationCount();
             long last = prefs.getLong(PREF_LIFELINE_LAST, 0);
             String time = (last == 0 ? "-" : SimpleDateFormat.getDateTimeInstance().format(last));
             pref = findPreference(PREF_LIFELINE_STATE);
@@ -3702,6 +3764,8 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
 
         } else if (PREF_GRAPH_HISTORY.equals(key))
             pref.setTitle(getString(R.string.title_graph_history, prefs.getString(key, DEFAULT_GRAPH_HISTORY)));
+        else if (PREF_ARCHIVE_AGE.equals(key))
+            pref.setTitle(getString(R.string.title_archive_age, prefs.getString(key, DEFAULT_ARCHIVE_AGE)));
         else if (PREF_WIKI_BASE_URL.equals(key))
             pref.setSummary(prefs.getString(key, DEFAULT_WIKI_BASE_URL));
         else if (PREF_WIKI_RADIUS.equals(key))
@@ -0,0 +1,205 @@
+package eu.faircode.backpacktrack2;
+
+import java.nio.ByteBuffer;
+
+// Incremental stay point detection: fixes within a radius of the centroid of the current candidate stay
+// extend it, two consecutive fixes outside end it, so that a single outlier does not split a stay
+// Fixes are weighted by their accuracy and kept as sums in meters around the first fix of the candidate
+public class StayDetector {
+    private static final double METERS_PER_DEGREE = 111320;
+    private static final int FULL_COUNT = 3; // fixes for full confidence
+    private static final double UNKNOWN_ACCURACY = 100; // meters
+
+    public static final int SIZE = 136; // bytes, persisted state
+
+    // Candidate stay
+    private int count = 0;
+    private int outliers = 0;
+    private long start;
+    private long end;
+    private double latitude0;
+    private double longitude0;
+    private double scale; // meters per degree longitude
+    private double weight;
+    private double sx, sy, sxx, syy;
+    private double altitude;
+    private double altitudeWeight;
+
+    // First fix outside
+    private boolean pending = false;
+    private long pendingTime;
+    private double pendingLatitude;
+    private double pendingLongitude;
+    private double pendingAltitude;
+    private float pendingAccuracy;
+
+    public static class Stay {
+        public long start;
+        public long end;
+        public double latitude;
+        public double longitude;
+        public double altitude; // NaN if unknown
+        public double radius; // meters, root mean square distance to the centroid
+        public int count;
+        public float confidence; // 0..1
+
+        public long getDwell() {
+            return end - start;
+        }
+
+        @Override
+        public String toString() {
+            return "Stay " + latitude + "," + longitude + " dwell=" + getDwell() / 1000 + "s" +
+                    " count=" + count + " radius=" + Math.round(radius) + "m confidence=" + confidence;
+        }
+    }
+
+    public void reset() {
+        count = 0;
+        outliers = 0;
+        pending = false;
+    }
+
+    // Returns a stay of at least minDwell milliseconds, when a fix confirms it has ended
+    public Stay add(long time, double latitude, double longitude, double alt, float accuracy, int radius, long minDwell) {
+        if (count == 0) {
+            begin(time, latitude, longitude, alt, accuracy);
+            return null;
+        }
+
+        if (getDistance(latitude, longitude) <= radius) {
+            if (pending) {
+                // Back again
+                outliers++;
+                pending = false;
+            }
+            include(time, latitude, longitude, alt, accuracy);
+            return null;
+        }
+
+        if (!pending) {
+            pending = true;
+            pendingTime = time;
+            pendingLatitude = latitude;
+            pendingLongitude = longitude;
+            pendingAltitude = alt;
+            pendingAccuracy = accuracy;
+            return null;
+        }
+
+        // Left, the stay lasted until the first fix outside
+        Stay stay = null;
+        if (pendingTime - start >= minDwell)
+            stay = getStay(pendingTime);
+
+        pending = false;
+        begin(pendingTime, pendingLatitude, pendingLongitude, pendingAltitude, pendingAccuracy);
+        add(time, latitude, longitude, alt, accuracy, radius, minDwell);
+        return stay;
+    }
+
+    private void begin(long time, double latitude, double longitude, double alt, float accuracy) {
+        count = 0;
+        outliers = 0;
+        start = time;
+        latitude0 = latitude;
+        longitude0 = longitude;
+        scale = METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude));
+        weight = 0;
+        sx = sy = sxx = syy = 0;
+        altitude = 0;
+        altitudeWeight = 0;
+        include(time, latitude, longitude, alt, accuracy);
+    }
+
+    // A fix without an accuracy (NaN or not positive) gets the least weight
+    private void include(long time, double latitude, double longitude, double alt, float accuracy) {
+        double sigma = (accuracy > 0 ? Math.max(accuracy, 1) : UNKNOWN_ACCURACY);
+        double w = 1 / (sigma * sigma);
+        double x = (longitude - longitude0) * scale;
+        double y = (latitude - latitude0) * METERS_PER_DEGREE;
+        weight += w;
+        sx += w * x;
+        sy += w * y;
+        sxx += w * x * x;
+        syy += w * y * y;
+        if (!Double.isNaN(alt)) {
+            altitude += w * alt;
+            altitudeWeight += w;
+        }
+        count++;
+        end = time;
+    }
+
+    private double getDistance(double latitude, double longitude) {
+        double dx = (longitude - longitude0) * scale - sx / weight;
+        double dy = (latitude - latitude0) * METERS_PER_DEGREE - sy / weight;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private Stay getStay(long end) {
+        Stay stay = new Stay();
+        stay.start = start;
+        stay.end = end;
+        double cx = sx / weight;
+        double cy = sy / weight;
+        stay.latitude = latitude0 + cy / METERS_PER_DEGREE;
+        stay.longitude = longitude0 + cx / scale;
+        stay.altitude = (altitudeWeight > 0 ? altitude / altitudeWeight : Double.NaN);
+        stay.radius = Math.sqrt(Math.max(0, sxx / weight - cx * cx + syy / weight - cy * cy));
+        stay.count = count;
+
+        // More fixes, a tighter cluster and fewer outliers give more confidence
+        double samples = Math.min(1, count / (double) FULL_COUNT);
+        double consistency = count / (double) (count + outliers);
+        stay.confidence = (float) (samples * consistency / (1 + stay.radius / 100));
+        return stay;
+    }
+
+    // Persistence
+
+    public void save(ByteBuffer buffer, int offset) {
+        buffer.putInt(offset, count);
+        buffer.putInt(offset + 4, outliers);
+        buffer.putLong(offset + 8, start);
+        buffer.putLong(offset + 16, end);
+        buffer.putDouble(offset + 24, latitude0);
+        buffer.putDouble(offset + 32, longitude0);
+        buffer.putDouble(offset + 40, weight);
+        buffer.putDouble(offset + 48, sx);
+        buffer.putDouble(offset + 56, sy);
+        buffer.putDouble(offset + 64, sxx);
+        buffer.putDouble(offset + 72, syy);
+        buffer.putDouble(offset + 80, altitude);
+        buffer.putDouble(offset + 88, altitudeWeight);
+        buffer.putInt(offset + 96, pending ? 1 : 0);
+        buffer.putLong(offset + 100, pendingTime);
+        buffer.putDouble(offset + 108, pendingLatitude);
+        buffer.putDouble(offset + 116, pendingLongitude);
+        buffer.putDouble(offset + 124, pendingAltitude);
+        buffer.putFloat(offset + 132, pendingAccuracy);
+    }
+
+    public void load(ByteBuffer buffer, int offset) {
+        count = buffer.getInt(offset);
+        outliers = buffer.getInt(offset + 4);
+        start = buffer.getLong(offset + 8);
+        end = buffer.getLong(offset + 16);
+        latitude0 = buffer.getDouble(offset + 24);
+        longitude0 = buffer.getDouble(offset + 32);
+        scale = METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude0));
+        weight = buffer.getDouble(offset + 40);
+        sx = buffer.getDouble(offset + 48);
+        sy = buffer.getDouble(offset + 56);
+        sxx = buffer.getDouble(offset + 64);
+        syy = buffer.getDouble(offset + 72);
+        altitude = buffer.getDouble(offset + 80);
+        altitudeWeight = buffer.getDouble(offset + 88);
+        pending = (buffer.getInt(offset + 96) != 0);
+        pendingTime = buffer.getLong(offset + 100);
+        pendingLatitude = buffer.getDouble(offset + 108);
+        pendingLongitude = buffer.getDouble(offset + 116);
+        pendingAltitude = buffer.getDouble(offset + 124);
+        pendingAccuracy = buffer.getFloat(offset + 132);
+    }
+}
@@ -4,14 +4,12 @@ import android.annotation.TargetApi;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.os.Build;
 import android.os.IBinder;
-import android.preference.PreferenceManager;
 import android.util.Log;
 
 import java.util.Date;
@@ -30,17 +28,17 @@ public class StepCounterService extends Service {
             Log.w(TAG, "Step count=" + steps);
 
             // Check delta
-            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(StepCounterService.this);
-            int last = prefs.getInt(SettingsFragment.PREF_LAST_STEP_COUNT, -1);
-            int delta = Integer.parseInt(prefs.getString(SettingsFragment.PREF_STEP_DELTA, SettingsFragment.DEFAULT_STEP_DELTA));
+            TrackingState state = TrackingState.getInstance(StepCounterService.this);
+            int last = state.getLastStepCount();
+            int delta = TrackingSettings.get(StepCounterService.this).step_delta;
             if (last < 0 || steps - last >= delta) {
                 // Update last step count
-                prefs.edit().putInt(SettingsFragment.PREF_LAST_STEP_COUNT, steps).apply();
+                state.setLastStepCount(steps);
 
                 if (last >= 0) {
                     // Update total step count
                     int stepped = steps - last;
-                    new DatabaseHelper(StepCounterService.this).updateSteps(new Date().getTime(), stepped).close();
+                    DatabaseHelper.getInstance(StepCounterService.this).updateSteps(new Date().getTime(), stepped);
 
                     // Update UI
                     StepCountWidget.updateWidgets(StepCounterService.this);
@@ -63,8 +61,7 @@ public class StepCounterService extends Service {
     public void onCreate() {
         super.onCreate();
 
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-        prefs.edit().remove(SettingsFragment.PREF_LAST_STEP_COUNT).apply();
+        TrackingState.getInstance(this).setLastStepCount(-1);
 
         SensorManager sm = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
         Sensor stepCounter = sm.getDefaultSensor(Sensor.TYPE_STEP_COUNTER);
@@ -82,8 +79,7 @@ public class StepCounterService extends Service {
         SensorManager sm = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
         sm.unregisterListener(mStepCounterListener);
 
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-        prefs.edit().remove(SettingsFragment.PREF_LAST_STEP_COUNT).apply();
+        TrackingState.getInstance(this).setLastStepCount(-1);
 
         super.onDestroy();
     }
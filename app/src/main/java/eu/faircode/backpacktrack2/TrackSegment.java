@@ -0,0 +1,338 @@
+package eu.faircode.backpacktrack2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// A run of trackpoints, ordered by time and ID, stored as a single blob
+public class TrackSegment {
+    public static final int FORMAT_PLAIN = 1;
+    public static final int FORMAT_DELTA = 2; // fixed point differences to the previous trackpoint as varints
+
+    private static final int FLAG_PROVIDER = 1;
+    private static final int FLAG_ALTITUDE = 2;
+    private static final int FLAG_SPEED = 4;
+    private static final int FLAG_BEARING = 8;
+    private static final int FLAG_ACCURACY = 16;
+    private static final int FLAG_ALTITUDE_TYPE = 32; // delta: altitude type changed
+
+    // Delta format resolution
+    private static final double SCALE_DEGREES = 1e7; // about 1 cm
+    private static final double SCALE_ALTITUDE = 100; // cm
+    private static final double SCALE_SPEED = 100; // cm/s
+    private static final double SCALE_BEARING = 10; // 0.1 degree
+    private static final double SCALE_ACCURACY = 10; // dm
+
+    public static class Trackpoint {
+        public long id;
+        public long time;
+        public String provider;
+        public double latitude;
+        public double longitude;
+        public double altitude = Double.NaN;
+        public int altitude_type;
+        public float speed = Float.NaN;
+        public float bearing = Float.NaN;
+        public float accuracy = Float.NaN;
+
+        // Value of a location table column, archived trackpoints count as sent
+        public Object get(String column) {
+            switch (column) {
+                case "ID":
+                case "_id":
+                    return id;
+                case "time":
+                    return time;
+                case "provider":
+                    return provider;
+                case "latitude":
+                    return latitude;
+                case "longitude":
+                    return longitude;
+                case "altitude":
+                    return (Double.isNaN(altitude) ? null : altitude);
+                case "altitude_type":
+                    return altitude_type;
+                case "speed":
+                    return (Float.isNaN(speed) ? null : speed);
+                case "bearing":
+                    return (Float.isNaN(bearing) ? null : bearing);
+                case "accuracy":
+                    return (Float.isNaN(accuracy) ? null : accuracy);
+                case "sent":
+                    return 1;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    public static byte[] encode(List<Trackpoint> points, int format) throws IOException {
+        switch (format) {
+            case FORMAT_PLAIN:
+                return encodePlain(points);
+            case FORMAT_DELTA:
+                return encodeDelta(points);
+            default:
+                throw new IOException("Unknown segment format=" + format);
+        }
+    }
+
+    public static List<Trackpoint> decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int format = in.readUnsignedByte();
+        switch (format) {
+            case FORMAT_PLAIN:
+                return decodePlain(in);
+            case FORMAT_DELTA:
+                return decodeDelta(in);
+            default:
+                throw new IOException("Unknown segment format=" + format);
+        }
+    }
+
+    private static byte[] encodePlain(List<Trackpoint> points) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeByte(FORMAT_PLAIN);
+        out.writeInt(points.size());
+        for (Trackpoint point : points) {
+            int flags = 0;
+            if (point.provider != null)
+                flags |= FLAG_PROVIDER;
+            if (!Double.isNaN(point.altitude))
+                flags |= FLAG_ALTITUDE;
+            if (!Float.isNaN(point.speed))
+                flags |= FLAG_SPEED;
+            if (!Float.isNaN(point.bearing))
+                flags |= FLAG_BEARING;
+            if (!Float.isNaN(point.accuracy))
+                flags |= FLAG_ACCURACY;
+
+            out.writeByte(flags);
+            out.writeLong(point.id);
+            out.writeLong(point.time);
+            if (point.provider != null)
+                out.writeUTF(point.provider);
+            out.writeDouble(point.latitude);
+            out.writeDouble(point.longitude);
+            if (!Double.isNaN(point.altitude))
+                out.writeDouble(point.altitude);
+            out.writeByte(point.altitude_type);
+            if (!Float.isNaN(point.speed))
+                out.writeFloat(point.speed);
+            if (!Float.isNaN(point.bearing))
+                out.writeFloat(point.bearing);
+            if (!Float.isNaN(point.accuracy))
+                out.writeFloat(point.accuracy);
+        }
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    private static List<Trackpoint> decodePlain(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<Trackpoint> points = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Trackpoint point = new Trackpoint();
+            int flags = in.readUnsignedByte();
+            point.id = in.readLong();
+            point.time = in.readLong();
+            if ((flags & FLAG_PROVIDER) != 0)
+                point.provider = in.readUTF();
+            point.latitude = in.readDouble();
+            point.longitude = in.readDouble();
+            if ((flags & FLAG_ALTITUDE) != 0)
+                point.altitude = in.readDouble();
+            point.altitude_type = in.readUnsignedByte();
+            if ((flags & FLAG_SPEED) != 0)
+                point.speed = in.readFloat();
+            if ((flags & FLAG_BEARING) != 0)
+                point.bearing = in.readFloat();
+            if ((flags & FLAG_ACCURACY) != 0)
+                point.accuracy = in.readFloat();
+            points.add(point);
+        }
+        return points;
+    }
+
+    // Lossy to the resolutions above, which are well below the accuracy of a fix
+    private static byte[] encodeDelta(List<Trackpoint> points) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeByte(FORMAT_DELTA);
+        writeVarLong(out, points.size());
+
+        List<String> providers = new ArrayList<>();
+        String provider = null;
+        int altitude_type = 0;
+        long id = 0, time = 0, latitude = 0, longitude = 0;
+        long altitude = 0, speed = 0, bearing = 0, accuracy = 0;
+        for (Trackpoint point : points) {
+            boolean providerChanged = (point.provider == null ? provider != null : !point.provider.equals(provider));
+            int flags = 0;
+            if (providerChanged)
+                flags |= FLAG_PROVIDER;
+            if (!Double.isNaN(point.altitude))
+                flags |= FLAG_ALTITUDE;
+            if (!Float.isNaN(point.speed))
+                flags |= FLAG_SPEED;
+            if (!Float.isNaN(point.bearing))
+                flags |= FLAG_BEARING;
+            if (!Float.isNaN(point.accuracy))
+                flags |= FLAG_ACCURACY;
+            if (point.altitude_type != altitude_type)
+                flags |= FLAG_ALTITUDE_TYPE;
+            out.writeByte(flags);
+
+            writeDelta(out, point.id, id);
+            id = point.id;
+            writeDelta(out, point.time, time);
+            time = point.time;
+
+            // Provider: 0 is null, 1..n is a provider seen before, n + 1 is a new one
+            if (providerChanged) {
+                provider = point.provider;
+                if (provider == null)
+                    writeVarLong(out, 0);
+                else {
+                    int index = providers.indexOf(provider);
+                    if (index < 0) {
+                        writeVarLong(out, providers.size() + 1);
+                        out.writeUTF(provider);
+                        providers.add(provider);
+                    } else
+                        writeVarLong(out, index + 1);
+                }
+            }
+
+            long fixed = Math.round(point.latitude * SCALE_DEGREES);
+            writeDelta(out, fixed, latitude);
+            latitude = fixed;
+            fixed = Math.round(point.longitude * SCALE_DEGREES);
+            writeDelta(out, fixed, longitude);
+            longitude = fixed;
+
+            if (!Double.isNaN(point.altitude)) {
+                fixed = Math.round(point.altitude * SCALE_ALTITUDE);
+                writeDelta(out, fixed, altitude);
+                altitude = fixed;
+            }
+            if (point.altitude_type != altitude_type) {
+                altitude_type = point.altitude_type;
+                writeVarLong(out, altitude_type);
+            }
+            if (!Float.isNaN(point.speed)) {
+                fixed = Math.round(point.speed * SCALE_SPEED);
+                writeDelta(out, fixed, speed);
+                speed = fixed;
+            }
+            if (!Float.isNaN(point.bearing)) {
+                fixed = Math.round(point.bearing * SCALE_BEARING);
+                writeDelta(out, fixed, bearing);
+                bearing = fixed;
+            }
+            if (!Float.isNaN(point.accuracy)) {
+                fixed = Math.round(point.accuracy * SCALE_ACCURACY);
+                writeDelta(out, fixed, accuracy);
+                accuracy = fixed;
+            }
+        }
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    private static List<Trackpoint> decodeDelta(DataInputStream in) throws IOException {
+        int count = (int) readVarLong(in);
+        List<Trackpoint> points = new ArrayList<>(count);
+
+        List<String> providers = new ArrayList<>();
+        String provider = null;
+        int altitude_type = 0;
+        long id = 0, time = 0, latitude = 0, longitude = 0;
+        long altitude = 0, speed = 0, bearing = 0, accuracy = 0;
+        for (int i = 0; i < count; i++) {
+            Trackpoint point = new Trackpoint();
+            int flags = in.readUnsignedByte();
+
+            id = readDelta(in, id);
+            point.id = id;
+            time = readDelta(in, time);
+            point.time = time;
+
+            if ((flags & FLAG_PROVIDER) != 0) {
+                int index = (int) readVarLong(in);
+                if (index == 0)
+                    provider = null;
+                else if (index == providers.size() + 1) {
+                    provider = in.readUTF();
+                    providers.add(provider);
+                } else if (index <= providers.size())
+                    provider = providers.get(index - 1);
+                else
+                    throw new IOException("Invalid provider index=" + index);
+            }
+            point.provider = provider;
+
+            latitude = readDelta(in, latitude);
+            point.latitude = latitude / SCALE_DEGREES;
+            longitude = readDelta(in, longitude);
+            point.longitude = longitude / SCALE_DEGREES;
+
+            if ((flags & FLAG_ALTITUDE) != 0) {
+                altitude = readDelta(in, altitude);
+                point.altitude = altitude / SCALE_ALTITUDE;
+            }
+            if ((flags & FLAG_ALTITUDE_TYPE) != 0)
+                altitude_type = (int) readVarLong(in);
+            point.altitude_type = altitude_type;
+            if ((flags & FLAG_SPEED) != 0) {
+                speed = readDelta(in, speed);
+                point.speed = (float) (speed / SCALE_SPEED);
+            }
+            if ((flags & FLAG_BEARING) != 0) {
+                bearing = readDelta(in, bearing);
+                point.bearing = (float) (bearing / SCALE_BEARING);
+            }
+            if ((flags & FLAG_ACCURACY) != 0) {
+                accuracy = readDelta(in, accuracy);
+                point.accuracy = (float) (accuracy / SCALE_ACCURACY);
+            }
+            points.add(point);
+        }
+        return points;
+    }
+
+    private static void writeDelta(DataOutputStream out, long value, long previous) throws IOException {
+        long delta = value - previous;
+        writeVarLong(out, (delta << 1) ^ (delta >> 63)); // zigzag, small negative numbers stay short
+    }
+
+    private static long readDelta(DataInputStream in, long previous) throws IOException {
+        long zigzag = readVarLong(in);
+        return previous + ((zigzag >>> 1) ^ -(zigzag & 1));
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Invalid varint");
+    }
+}
@@ -0,0 +1,184 @@
+package eu.faircode.backpacktrack2;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+// Immutable snapshot of the settings used for every activity, location and sensor event,
+// parsed once and replaced as a whole when one of these settings changes
+public class TrackingSettings {
+    private static final String TAG = "BPT2.Settings";
+
+    private static final Set<String> KEYS = new HashSet<>(Arrays.asList(
+            SettingsFragment.PREF_RECOGNITION_CONFIDENCE,
+            SettingsFragment.PREF_RECOGNITION_TILTING,
+            SettingsFragment.PREF_RECOGNITION_KNOWN,
+            SettingsFragment.PREF_RECOGNITION_UNKNOWN,
+            SettingsFragment.PREF_RECOGNITION_HISTORY,
+            SettingsFragment.PREF_RECOGNITION_STEPS,
+            SettingsFragment.PREF_RECOGNITION_UNKNOWN_STEPS,
+            SettingsFragment.PREF_RECOGNITION_INTERVAL_STILL,
+            SettingsFragment.PREF_RECOGNITION_INTERVAL_MOVING,
+            SettingsFragment.PREF_AUTO_ENABLED,
+            SettingsFragment.PREF_AUTO_STILL,
+            SettingsFragment.PREF_AUTO_TIME,
+            SettingsFragment.PREF_AUTO_DISTANCE,
+            SettingsFragment.PREF_AUTO_DUPLICATE,
+            SettingsFragment.PREF_INACCURATE,
+            SettingsFragment.PREF_ALTITUDE,
+            SettingsFragment.PREF_WP_ACCURACY,
+            SettingsFragment.PREF_TP_ACCURACY,
+            SettingsFragment.PREF_NEARBY,
+            SettingsFragment.PREF_ALTITUDE_WAYPOINT,
+            SettingsFragment.PREF_ALTITUDE_TRACKPOINT,
+            SettingsFragment.PREF_CORRECTION_ENABLED,
+            SettingsFragment.PREF_SMOOTHING,
+            SettingsFragment.PREF_PASSIVE_INACCURATE,
+            SettingsFragment.PREF_PASSIVE_NEARBY,
+            SettingsFragment.PREF_PASSIVE_BEARING,
+            SettingsFragment.PREF_PASSIVE_ALTITUDE,
+            SettingsFragment.PREF_PRESSURE_ENABLED,
+            SettingsFragment.PREF_PRESSURE_OFFSET,
+            SettingsFragment.PREF_PRESSURE_MAXAGE,
+            SettingsFragment.PREF_PRESSURE_MAXDIST,
+            SettingsFragment.PREF_PRESSURE_INVEHICLE,
+            SettingsFragment.PREF_STEP_DELTA));
+
+    private static volatile TrackingSettings mInstance = null;
+    private static SharedPreferences.OnSharedPreferenceChangeListener mListener = null;
+
+    // Activity recognition
+    public final int recognition_confidence;
+    public final boolean recognition_tilting;
+    public final boolean recognition_known;
+    public final boolean recognition_unknown;
+    public final boolean recognition_history;
+    public final boolean recognition_steps;
+    public final boolean recognition_unknown_steps;
+    public final int recognition_interval_still;
+    public final int recognition_interval_moving;
+
+    // Auto waypoints
+    public final boolean auto_enabled;
+    public final boolean auto_still;
+    public final int auto_time;
+    public final int auto_distance;
+    public final int auto_duplicate;
+
+    // Locating
+    public final int inaccurate;
+    public final boolean altitude;
+    public final int wp_accuracy;
+    public final int tp_accuracy;
+    public final int nearby;
+    public final boolean altitude_waypoint;
+    public final boolean altitude_trackpoint;
+    public final boolean correction_enabled;
+    public final boolean smoothing;
+
+    // Passive locations
+    public final int passive_inaccurate;
+    public final int passive_nearby;
+    public final int passive_bearing;
+    public final int passive_altitude;
+
+    // Pressure
+    public final boolean pressure_enabled;
+    public final float pressure_offset;
+    public final int pressure_maxage;
+    public final int pressure_maxdist;
+    public final boolean pressure_invehicle;
+
+    // Step counter
+    public final int step_delta;
+
+    public static TrackingSettings get(Context context) {
+        TrackingSettings settings = mInstance;
+        return (settings == null ? init(context) : settings);
+    }
+
+    private static synchronized TrackingSettings init(Context context) {
+        if (mInstance == null) {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context.getApplicationContext());
+
+            // Preferences keep a weak reference to listeners
+            mListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                    if (key == null || KEYS.contains(key)) {
+                        Log.i(TAG, "Reloading settings key=" + key);
+                        mInstance = new TrackingSettings(prefs);
+                    }
+                }
+            };
+            prefs.registerOnSharedPreferenceChangeListener(mListener);
+
+            mInstance = new TrackingSettings(prefs);
+        }
+        return mInstance;
+    }
+
+    private TrackingSettings(SharedPreferences prefs) {
+        recognition_confidence = getInt(prefs, SettingsFragment.PREF_RECOGNITION_CONFIDENCE, SettingsFragment.DEFAULT_RECOGNITION_CONFIDENCE);
+        recognition_tilting = prefs.getBoolean(SettingsFragment.PREF_RECOGNITION_TILTING, SettingsFragment.DEFAULT_RECOGNITION_TILTING);
+        recognition_known = prefs.getBoolean(SettingsFragment.PREF_RECOGNITION_KNOWN, SettingsFragment.DEFAULT_RECOGNITION_KNOWN);
+        recognition_unknown = prefs.getBoolean(SettingsFragment.PREF_RECOGNITION_UNKNOWN, SettingsFragment.DEFAULT_RECOGNITION_UNKNOWN);
+        recognition_history = prefs.getBoolean(SettingsFragment.PREF_RECOGNITION_HISTORY, SettingsFragment.DEFAULT_RECOGNITION_HISTORY);
+        recognition_steps = prefs.getBoolean(SettingsFragment.PREF_RECOGNITION_STEPS, SettingsFragment.DEFAULT_RECOGNITION_STEPS);
+        recognition_unknown_steps = prefs.getBoolean(SettingsFragment.PREF_RECOGNITION_UNKNOWN_STEPS, SettingsFragment.DEFAULT_RECOGNITION_UNKNOWN_STEPS);
+        recognition_interval_still = getInt(prefs, SettingsFragment.PREF_RECOGNITION_INTERVAL_STILL, SettingsFragment.DEFAULT_RECOGNITION_INTERVAL_STILL);
+        recognition_interval_moving = getInt(prefs, SettingsFragment.PREF_RECOGNITION_INTERVAL_MOVING, SettingsFragment.DEFAULT_RECOGNITION_INTERVAL_MOVING);
+
+        auto_enabled = prefs.getBoolean(SettingsFragment.PREF_AUTO_ENABLED, SettingsFragment.DEFAULT_AUTO_ENABLED);
+        auto_still = prefs.getBoolean(SettingsFragment.PREF_AUTO_STILL, SettingsFragment.DEFAULT_AUTO_STILL);
+        auto_time = getInt(prefs, SettingsFragment.PREF_AUTO_TIME, SettingsFragment.DEFAULT_AUTO_TIME);
+        auto_distance = getInt(prefs, SettingsFragment.PREF_AUTO_DISTANCE, SettingsFragment.DEFAULT_AUTO_DISTANCE);
+        auto_duplicate = getInt(prefs, SettingsFragment.PREF_AUTO_DUPLICATE, SettingsFragment.DEFAULT_AUTO_DUPLICATE);
+
+        inaccurate = getInt(prefs, SettingsFragment.PREF_INACCURATE, SettingsFragment.DEFAULT_INACCURATE);
+        altitude = prefs.getBoolean(SettingsFragment.PREF_ALTITUDE, SettingsFragment.DEFAULT_ALTITUDE);
+        wp_accuracy = getInt(prefs, SettingsFragment.PREF_WP_ACCURACY, SettingsFragment.DEFAULT_WP_ACCURACY);
+        tp_accuracy = getInt(prefs, SettingsFragment.PREF_TP_ACCURACY, SettingsFragment.DEFAULT_TP_ACCURACY);
+        nearby = getInt(prefs, SettingsFragment.PREF_NEARBY, SettingsFragment.DEFAULT_NEARBY);
+        altitude_waypoint = prefs.getBoolean(SettingsFragment.PREF_ALTITUDE_WAYPOINT, SettingsFragment.DEFAULT_ALTITUDE_WAYPOINT);
+        altitude_trackpoint = prefs.getBoolean(SettingsFragment.PREF_ALTITUDE_TRACKPOINT, SettingsFragment.DEFAULT_ALTITUDE_TRACKPOINT);
+        correction_enabled = prefs.getBoolean(SettingsFragment.PREF_CORRECTION_ENABLED, SettingsFragment.DEFAULT_CORRECTION_ENABLED);
+        smoothing = prefs.getBoolean(SettingsFragment.PREF_SMOOTHING, SettingsFragment.DEFAULT_SMOOTHING);
+
+        passive_inaccurate = getInt(prefs, SettingsFragment.PREF_PASSIVE_INACCURATE, SettingsFragment.DEFAULT_PASSIVE_INACCURATE);
+        passive_nearby = getInt(prefs, SettingsFragment.PREF_PASSIVE_NEARBY, SettingsFragment.DEFAULT_PASSIVE_NEARBY);
+        passive_bearing = getInt(prefs, SettingsFragment.PREF_PASSIVE_BEARING, SettingsFragment.DEFAULT_PASSIVE_BEARING);
+        passive_altitude = getInt(prefs, SettingsFragment.PREF_PASSIVE_ALTITUDE, SettingsFragment.DEFAULT_PASSIVE_ALTITUDE);
+
+        pressure_enabled = prefs.getBoolean(SettingsFragment.PREF_PRESSURE_ENABLED, SettingsFragment.DEFAULT_PRESSURE_ENABLED);
+        pressure_offset = getFloat(prefs, SettingsFragment.PREF_PRESSURE_OFFSET, SettingsFragment.DEFAULT_PRESSURE_OFFSET);
+        pressure_maxage = getInt(prefs, SettingsFragment.PREF_PRESSURE_MAXAGE, SettingsFragment.DEFAULT_PRESSURE_MAXAGE);
+        pressure_maxdist = getInt(prefs, SettingsFragment.PREF_PRESSURE_MAXDIST, SettingsFragment.DEFAULT_PRESSURE_MAXDIST);
+        pressure_invehicle = prefs.getBoolean(SettingsFragment.PREF_PRESSURE_INVEHICLE, SettingsFragment.DEFAULT_PRESSURE_INVEHICLE);
+
+        step_delta = getInt(prefs, SettingsFragment.PREF_STEP_DELTA, SettingsFragment.DEFAULT_STEP_DELTA);
+    }
+
+    private static int getInt(SharedPreferences prefs, String key, String def) {
+        try {
+            return Integer.parseInt(prefs.getString(key, def));
+        } catch (NumberFormatException ex) {
+            Log.w(TAG, "Invalid " + key + ": " + ex.toString());
+            return Integer.parseInt(def);
+        }
+    }
+
+    private static float getFloat(SharedPreferences prefs, String key, String def) {
+        try {
+            return Float.parseFloat(prefs.getString(key, def));
+        } catch (NumberFormatException ex) {
+            Log.w(TAG, "Invalid " + key + ": " + ex.toString());
+            return Float.parseFloat(def);
+        }
+    }
+}
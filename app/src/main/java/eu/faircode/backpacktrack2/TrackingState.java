@@ -0,0 +1,322 @@
+package eu.faircode.backpacktrack2;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.location.Location;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.google.android.gms.location.DetectedActivity;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Hot state of the tracking engine, kept in memory and in a small memory mapped file,
+// so that it survives the process without rewriting the shared preferences on every fix
+public class TrackingState {
+    private static final String TAG = "BPT2.State";
+
+    private static final String FILE_NAME = "tracking.state";
+    private static final int MAGIC = 0x42505432;
+    private static final int VERSION = 2;
+
+    // File layout
+    private static final int LOCATION_SIZE = 80;
+    private static final int PROVIDER_SIZE = 24;
+    private static final int OFFSET_LAST_LOCATION = 8;
+    private static final int OFFSET_BEST_LOCATION = OFFSET_LAST_LOCATION + LOCATION_SIZE;
+    private static final int OFFSET_ACTIVITY = OFFSET_BEST_LOCATION + LOCATION_SIZE; // activity, confidence, time
+    private static final int OFFSET_STEP_COUNT = OFFSET_ACTIVITY + 16;
+    private static final int OFFSET_STAY = OFFSET_STEP_COUNT + 4;
+    private static final int SIZE = OFFSET_STAY + StayDetector.SIZE;
+
+    private static final int FLAG_PRESENT = 1;
+    private static final int FLAG_ALTITUDE = 2;
+    private static final int FLAG_SPEED = 4;
+    private static final int FLAG_BEARING = 8;
+    private static final int FLAG_ACCURACY = 16;
+
+    private static TrackingState mInstance = null;
+
+    private MappedByteBuffer mBuffer = null;
+
+    private Location mLastLocation = null;
+    private Location mBestLocation = null;
+    private final StayDetector mStay = new StayDetector();
+    private int mLastActivity = -1;
+    private int mLastConfidence = -1;
+    private long mLastActivityTime = -1;
+    private int mLastStepCount = -1;
+
+    public static synchronized TrackingState getInstance(Context context) {
+        if (mInstance == null)
+            mInstance = new TrackingState(context.getApplicationContext());
+        return mInstance;
+    }
+
+    private TrackingState(Context context) {
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        boolean exists = (file.exists() && file.length() >= SIZE);
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(SIZE);
+            mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+        } catch (Throwable ex) {
+            // State will not survive the process
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            mBuffer = null;
+        } finally {
+            // The mapping stays valid after closing the file
+            if (raf != null)
+                try {
+                    raf.close();
+                } catch (Throwable ignored) {
+                }
+        }
+
+        if (mBuffer != null && exists && mBuffer.getInt(0) == MAGIC && mBuffer.getInt(4) == VERSION)
+            load();
+        else
+            migrate(context);
+    }
+
+    private void load() {
+        mLastLocation = readLocation(OFFSET_LAST_LOCATION);
+        mBestLocation = readLocation(OFFSET_BEST_LOCATION);
+        mStay.load(mBuffer, OFFSET_STAY);
+        mLastActivity = mBuffer.getInt(OFFSET_ACTIVITY);
+        mLastConfidence = mBuffer.getInt(OFFSET_ACTIVITY + 4);
+        mLastActivityTime = mBuffer.getLong(OFFSET_ACTIVITY + 8);
+        mLastStepCount = mBuffer.getInt(OFFSET_STEP_COUNT);
+        Log.i(TAG, "Loaded last=" + mLastLocation + " activity=" + mLastActivity);
+    }
+
+    private void migrate(Context context) {
+        // Take over the state from the preferences, where older versions kept it
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        Location lastStationary = null;
+        try {
+            mLastLocation = BackgroundService.LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_LAST_LOCATION, null));
+            mBestLocation = BackgroundService.LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_BEST_LOCATION, null));
+            lastStationary = BackgroundService.LocationDeserializer.deserialize(prefs.getString(SettingsFragment.PREF_LAST_STATIONARY, null));
+        } catch (Throwable ex) {
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+        }
+        if (lastStationary != null && prefs.contains(SettingsFragment.PREF_LAST_STATIONARY_AVG)) {
+            lastStationary.setLatitude(prefs.getFloat(SettingsFragment.PREF_LAST_STATIONARY_LAT, (float) lastStationary.getLatitude()));
+            lastStationary.setLongitude(prefs.getFloat(SettingsFragment.PREF_LAST_STATIONARY_LON, (float) lastStationary.getLongitude()));
+            lastStationary.setAltitude(prefs.getFloat(SettingsFragment.PREF_LAST_STATIONARY_ALT, (float) lastStationary.getAltitude()));
+        }
+        mLastActivity = prefs.getInt(SettingsFragment.PREF_LAST_ACTIVITY, -1);
+        mLastConfidence = prefs.getInt(SettingsFragment.PREF_LAST_CONFIDENCE, -1);
+        mLastActivityTime = prefs.getLong(SettingsFragment.PREF_LAST_ACTIVITY_TIME, -1);
+        mLastStepCount = prefs.getInt(SettingsFragment.PREF_LAST_STEP_COUNT, -1);
+        Log.i(TAG, "Migrated last=" + mLastLocation + " activity=" + mLastActivity);
+
+        if (mBuffer != null) {
+            writeLocation(OFFSET_LAST_LOCATION, mLastLocation);
+            writeLocation(OFFSET_BEST_LOCATION, mBestLocation);
+            resetStationary(lastStationary);
+            writeActivity();
+            mBuffer.putInt(OFFSET_STEP_COUNT, mLastStepCount);
+            mBuffer.putInt(4, VERSION);
+            mBuffer.putInt(0, MAGIC);
+            mBuffer.force();
+
+            SharedPreferences.Editor editor = prefs.edit();
+            editor.remove(SettingsFragment.PREF_LAST_LOCATION);
+            editor.remove(SettingsFragment.PREF_BEST_LOCATION);
+            editor.remove(SettingsFragment.PREF_LAST_STATIONARY);
+            editor.remove(SettingsFragment.PREF_LAST_STATIONARY_AVG);
+            editor.remove(SettingsFragment.PREF_LAST_STATIONARY_LAT);
+            editor.remove(SettingsFragment.PREF_LAST_STATIONARY_LON);
+            editor.remove(SettingsFragment.PREF_LAST_STATIONARY_ALT);
+            editor.remove(SettingsFragment.PREF_LAST_ACTIVITY);
+            editor.remove(SettingsFragment.PREF_LAST_CONFIDENCE);
+            editor.remove(SettingsFragment.PREF_LAST_ACTIVITY_TIME);
+            editor.remove(SettingsFragment.PREF_LAST_STEP_COUNT);
+            editor.apply();
+        }
+    }
+
+    // Locations
+
+    public synchronized Location getLastLocation() {
+        return (mLastLocation == null ? null : new Location(mLastLocation));
+    }
+
+    // Copies the last location into location without allocating, false if there is none
+    public synchronized boolean getLastLocation(Location location) {
+        if (mLastLocation == null)
+            return false;
+        location.set(mLastLocation);
+        return true;
+    }
+
+    public synchronized void setLastLocation(Location location) {
+        mLastLocation = copy(location, mLastLocation);
+        writeLocation(OFFSET_LAST_LOCATION, mLastLocation);
+    }
+
+    public synchronized Location getBestLocation() {
+        return (mBestLocation == null ? null : new Location(mBestLocation));
+    }
+
+    public synchronized boolean getBestLocation(Location location) {
+        if (mBestLocation == null)
+            return false;
+        location.set(mBestLocation);
+        return true;
+    }
+
+    public synchronized void setBestLocation(Location location) {
+        mBestLocation = copy(location, mBestLocation);
+        writeLocation(OFFSET_BEST_LOCATION, mBestLocation);
+    }
+
+    // Stationary
+
+    // Adds a fix to the current candidate stay, returns a stay when the fix confirms it has ended
+    public synchronized StayDetector.Stay addStationary(Location location, int radius, long minDwell) {
+        StayDetector.Stay stay = mStay.add(location.getTime(), location.getLatitude(), location.getLongitude(),
+                location.hasAltitude() ? location.getAltitude() : Double.NaN,
+                location.hasAccuracy() ? location.getAccuracy() : Float.NaN, radius, minDwell);
+        if (mBuffer != null)
+            mStay.save(mBuffer, OFFSET_STAY);
+        return stay;
+    }
+
+    // Starts a new candidate stay at location, if any
+    public synchronized void resetStationary(Location location) {
+        mStay.reset();
+        if (location != null)
+            addStationary(location, 0, Long.MAX_VALUE);
+        else if (mBuffer != null)
+            mStay.save(mBuffer, OFFSET_STAY);
+    }
+
+    // Activity
+
+    public synchronized int getLastActivity() {
+        return (mLastActivity < 0 ? DetectedActivity.STILL : mLastActivity);
+    }
+
+    public synchronized long getLastActivityTime() {
+        return mLastActivityTime;
+    }
+
+    public synchronized void setLastActivity(int activity, int confidence, long time) {
+        mLastActivity = activity;
+        mLastConfidence = confidence;
+        mLastActivityTime = time;
+        writeActivity();
+    }
+
+    public synchronized void setLastActivityTime(long time) {
+        mLastActivityTime = time;
+        writeActivity();
+    }
+
+    public synchronized void clearLastActivity() {
+        mLastActivity = -1;
+        mLastConfidence = -1;
+        writeActivity();
+    }
+
+    // Steps
+
+    public synchronized int getLastStepCount() {
+        return mLastStepCount;
+    }
+
+    public synchronized void setLastStepCount(int count) {
+        mLastStepCount = count;
+        if (mBuffer != null)
+            mBuffer.putInt(OFFSET_STEP_COUNT, count);
+    }
+
+    // Helper methods
+
+    // Reuses the current instance, callers keep their own
+    private static Location copy(Location location, Location into) {
+        if (location == null)
+            return null;
+        if (into == null)
+            return new Location(location);
+        into.set(location);
+        return into;
+    }
+
+    private void writeActivity() {
+        if (mBuffer != null) {
+            mBuffer.putInt(OFFSET_ACTIVITY, mLastActivity);
+            mBuffer.putInt(OFFSET_ACTIVITY + 4, mLastConfidence);
+            mBuffer.putLong(OFFSET_ACTIVITY + 8, mLastActivityTime);
+        }
+    }
+
+    private void writeLocation(int offset, Location location) {
+        if (mBuffer == null)
+            return;
+
+        if (location == null) {
+            mBuffer.putInt(offset, 0);
+            return;
+        }
+
+        int flags = FLAG_PRESENT;
+        if (location.hasAltitude())
+            flags |= FLAG_ALTITUDE;
+        if (location.hasSpeed())
+            flags |= FLAG_SPEED;
+        if (location.hasBearing())
+            flags |= FLAG_BEARING;
+        if (location.hasAccuracy())
+            flags |= FLAG_ACCURACY;
+
+        mBuffer.putLong(offset + 4, location.getTime());
+        mBuffer.putDouble(offset + 12, location.getLatitude());
+        mBuffer.putDouble(offset + 20, location.getLongitude());
+        mBuffer.putDouble(offset + 28, location.getAltitude());
+        mBuffer.putFloat(offset + 36, location.getSpeed());
+        mBuffer.putFloat(offset + 40, location.getBearing());
+        mBuffer.putFloat(offset + 44, location.getAccuracy());
+
+        // Provider names are short and ASCII
+        String provider = location.getProvider();
+        int length = (provider == null ? 0 : Math.min(provider.length(), PROVIDER_SIZE));
+        mBuffer.put(offset + 48, (byte) length);
+        for (int i = 0; i < length; i++)
+            mBuffer.put(offset + 49 + i, (byte) provider.charAt(i));
+
+        mBuffer.putInt(offset, flags);
+    }
+
+    private Location readLocation(int offset) {
+        int flags = mBuffer.getInt(offset);
+        if ((flags & FLAG_PRESENT) == 0)
+            return null;
+
+        int length = mBuffer.get(offset + 48);
+        char[] provider = new char[length];
+        for (int i = 0; i < length; i++)
+            provider[i] = (char) mBuffer.get(offset + 49 + i);
+
+        Location location = new Location(new String(provider));
+        location.setTime(mBuffer.getLong(offset + 4));
+        location.setLatitude(mBuffer.getDouble(offset + 12));
+        location.setLongitude(mBuffer.getDouble(offset + 20));
+        if ((flags & FLAG_ALTITUDE) != 0)
+            location.setAltitude(mBuffer.getDouble(offset + 28));
+        if ((flags & FLAG_SPEED) != 0)
+            location.setSpeed(mBuffer.getFloat(offset + 36));
+        if ((flags & FLAG_BEARING) != 0)
+            location.setBearing(mBuffer.getFloat(offset + 40));
+        if ((flags & FLAG_ACCURACY) != 0)
+            location.setAccuracy(mBuffer.getFloat(offset + 44));
+        return location;
+    }
+}
@@ -0,0 +1,305 @@
+package eu.faircode.backpacktrack2;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.location.Location;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.lang.reflect.Field;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class DatabaseHelperTest {
+    private static final String DB_NAME = "BackPackTrackII";
+
+    // Newer waypoints are counted on the name index, the time index would walk all later trackpoints
+    private static final String NEWER_WAYPOINTS_QUERY =
+            "SELECT ID FROM location WHERE name >= '' AND deleted IS NULL AND +time > 0 LIMIT 1";
+
+    // Query shapes on the location table which should neither scan the table nor sort
+    // Trackpoints are selected with +name IS NULL, else the planner may walk all trackpoints on the name index
+    private static final String[] PLAN_QUERIES = new String[]{
+            "SELECT * FROM location WHERE time >= 0 AND time <= 1 AND deleted IS NULL AND +name IS NULL ORDER BY time, ID",
+            "SELECT * FROM location WHERE time >= 0 AND time <= 1 AND deleted IS NULL AND NOT name IS NULL ORDER BY time DESC, ID DESC",
+            "SELECT COUNT(*) FROM (SELECT ID FROM location WHERE time >= 0 AND time <= 1 AND deleted IS NULL AND +name IS NULL LIMIT 1)",
+            "SELECT time, ID FROM location WHERE time >= 0 AND time <= 1 AND (time > 0 OR ID > 0) AND deleted IS NULL AND +name IS NULL ORDER BY time, ID LIMIT 1",
+            "SELECT MIN(time) FROM location WHERE +name IS NULL AND NOT +sent IS NULL AND time < 1",
+            "SELECT ID FROM location WHERE name >= '' AND (hidden IS NULL OR hidden = 0) AND deleted IS NULL ORDER BY name",
+            "SELECT * FROM location WHERE sent IS NULL ORDER BY time DESC",
+            "SELECT ID FROM location WHERE geohash >= 'u' AND geohash < 'u{' AND deleted IS NULL",
+            "SELECT ID FROM location WHERE geohash >= '' AND proximity > 0 AND deleted IS NULL",
+            NEWER_WAYPOINTS_QUERY
+    };
+
+    private Context context;
+
+    @Before
+    public void setUp() throws Exception {
+        context = RuntimeEnvironment.application;
+        resetInstance();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        DatabaseHelper.getInstance(context).close();
+        resetInstance();
+    }
+
+    // The helper is a process singleton, each test gets a new database file
+    private static void resetInstance() throws Exception {
+        Field instance = DatabaseHelper.class.getDeclaredField("mInstance");
+        instance.setAccessible(true);
+        instance.set(null, null);
+    }
+
+    @Test
+    public void upgradeFromVersion27() {
+        File file = context.getDatabasePath(DB_NAME);
+        file.getParentFile().mkdirs();
+        SQLiteDatabase old = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            createVersion27(old);
+
+            old.execSQL("INSERT INTO location (time, provider, latitude, longitude, name) VALUES (1000, 'gps', 52.0, 5.0, NULL)");
+            old.execSQL("INSERT INTO location (time, provider, latitude, longitude, name) VALUES (2000, 'gps', 52.1, 5.1, 'Home')");
+            old.execSQL("INSERT INTO step (time, count) VALUES (0, 2)");
+            old.execSQL("INSERT INTO step (time, count) VALUES (0, 3)");
+            old.execSQL("INSERT INTO weather (time, provider, station_id, station_type) VALUES (1000, 'fio', -1, -1)");
+            old.execSQL("INSERT INTO weather (time, provider, station_id, station_type) VALUES (1000, 'fio', -1, -1)");
+            old.execSQL("INSERT INTO weather (time, provider, station_id, station_type) VALUES (2000, NULL, 0, 0)");
+            old.execSQL("INSERT INTO weather (time, provider, station_id, station_type) VALUES (2000, NULL, 0, 0)");
+            old.setVersion(27);
+        } finally {
+            old.close();
+        }
+
+        SQLiteDatabase db = DatabaseHelper.getInstance(context).getReadableDatabase();
+        assertEquals(36, db.getVersion());
+
+        for (String table : new String[]{"trackday", "archive", "trackdetail", "geocode"})
+            assertTrue(table, exists(db, "table", table));
+        for (String index : new String[]{"idx_location_time_id", "idx_location_name_deleted_hidden",
+                "idx_location_sent_time", "idx_location_geohash", "idx_weather_time_station_provider"})
+            assertTrue(index, exists(db, "index", index));
+        for (String index : new String[]{"idx_location_time", "idx_location_name", "idx_location_sent"})
+            assertFalse(index, exists(db, "index", index));
+
+        assertNull(DatabaseUtils.stringForQuery(db, "SELECT geohash FROM location WHERE name IS NULL", null));
+        assertNotNull(DatabaseUtils.stringForQuery(db, "SELECT geohash FROM location WHERE name = 'Home'", null));
+
+        assertEquals(5, DatabaseUtils.longForQuery(db, "SELECT SUM(count) FROM step WHERE time = 0", null));
+        assertEquals(1, DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM step", null));
+        assertEquals(1, DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM weather WHERE provider = 'fio'", null));
+        assertEquals(2, DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM weather WHERE provider IS NULL", null));
+
+        assertQueryPlans(db);
+    }
+
+    @Test
+    public void queryPlans() {
+        assertQueryPlans(DatabaseHelper.getInstance(context).getReadableDatabase());
+    }
+
+    @Test
+    public void newerWaypointsOnNameIndex() {
+        SQLiteDatabase db = DatabaseHelper.getInstance(context).getReadableDatabase();
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("EXPLAIN QUERY PLAN " + NEWER_WAYPOINTS_QUERY, new String[0]);
+            int colDetail = cursor.getColumnIndex("detail");
+            boolean name = false;
+            while (cursor.moveToNext())
+                if (cursor.getString(colDetail).contains("idx_location_name_deleted_hidden"))
+                    name = true;
+            assertTrue(name);
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+    }
+
+    @Test
+    public void archivedTrackpointsMerged() {
+        DatabaseHelper dh = DatabaseHelper.getInstance(context);
+        long now = System.currentTimeMillis();
+        long old = 1452816000000L; // mid January 2016
+
+        // Trackpoints at even seconds are archived, the waypoint in between stays hot
+        for (int i = 0; i < 10; i++)
+            dh.insertLocation(location(old + i * 2000), 0, null);
+        dh.insertLocation(location(old + 5000), 0, "Waypoint");
+        dh.insertLocation(location(now), 0, null);
+        dh.archiveTrackpoints(now);
+        assertEquals(1, DatabaseUtils.longForQuery(dh.getReadableDatabase(), "SELECT COUNT(*) FROM archive", null));
+
+        assertTimes(dh.getLocations(0, Long.MAX_VALUE, true, false, true, 0),
+                old, old + 2000, old + 4000, old + 6000, old + 8000, old + 10000,
+                old + 12000, old + 14000, old + 16000, old + 18000, now);
+        assertTimes(dh.getLocations(0, Long.MAX_VALUE, true, true, true, 0),
+                old, old + 2000, old + 4000, old + 5000, old + 6000, old + 8000, old + 10000,
+                old + 12000, old + 14000, old + 16000, old + 18000, now);
+        assertTimes(dh.getLocations(0, Long.MAX_VALUE, true, true, false, 4),
+                now, old + 18000, old + 16000, old + 14000);
+        assertTimes(dh.getLocations(old + 3000, old + 9000, true, true, false, 0),
+                old + 8000, old + 6000, old + 5000, old + 4000);
+        assertTimes(dh.getLocations(old + 3000, Long.MAX_VALUE, true, true, true, 3),
+                old + 4000, old + 5000, old + 6000);
+    }
+
+    private static Location location(long time) {
+        Location location = new Location("gps");
+        location.setTime(time);
+        location.setLatitude(52);
+        location.setLongitude(5);
+        return location;
+    }
+
+    private static void assertTimes(Cursor cursor, long... times) {
+        try {
+            int colTime = cursor.getColumnIndex("time");
+            int colID = cursor.getColumnIndex("_id");
+            assertEquals(times.length, cursor.getCount());
+            for (long time : times) {
+                assertTrue(cursor.moveToNext());
+                assertEquals(time, cursor.getLong(colTime));
+                assertFalse(cursor.isNull(colID));
+            }
+            assertFalse(cursor.moveToNext());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Fails when a query falls back to a table scan or a sort, for example because a migration lost an index
+    private static void assertQueryPlans(SQLiteDatabase db) {
+        for (String query : PLAN_QUERIES) {
+            Cursor cursor = null;
+            try {
+                cursor = db.rawQuery("EXPLAIN QUERY PLAN " + query, new String[0]);
+                int colDetail = cursor.getColumnIndex("detail");
+                while (cursor.moveToNext()) {
+                    String detail = cursor.getString(colDetail);
+                    assertFalse(query + " plan=" + detail,
+                            (detail.matches("^SCAN (TABLE )?location( .*)?$") && !detail.contains(" USING ")) ||
+                                    detail.startsWith("USE TEMP B-TREE"));
+                }
+            } finally {
+                if (cursor != null)
+                    cursor.close();
+            }
+        }
+    }
+
+    private static boolean exists(SQLiteDatabase db, String type, String name) {
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = ? AND name = ?", new String[]{type, name});
+            return cursor.moveToFirst();
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+    }
+
+    // The schema as released with version 27
+    private static void createVersion27(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE location (" +
+                " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
+                ", time INTEGER NOT NULL" +
+                ", provider INTEGER NOT NULL" +
+                ", latitude REAL NOT NULL" +
+                ", longitude REAL NOT NULL" +
+                ", altitude REAL NULL" +
+                ", altitude_type INTEGER NULL" +
+                ", speed REAL NULL" +
+                ", bearing REAL NULL" +
+                ", accuracy REAL NULL" +
+                ", name TEXT" +
+                ", proximity INTEGER NULL" +
+                ", hidden INTEGER NULL" +
+                ", deleted INTEGER NULL" +
+                ", sent INTEGER NULL" +
+                ");");
+        db.execSQL("CREATE INDEX idx_location_time ON location(time)");
+        db.execSQL("CREATE INDEX idx_location_name ON location(name)");
+        db.execSQL("CREATE INDEX idx_location_sent ON location(sent)");
+
+        db.execSQL("CREATE TABLE activitytype (" +
+                " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
+                ", time INTEGER NOT NULL" +
+                ", activity INTEGER NOT NULL" +
+                ", confidence INTEGER NOT NULL" + ");");
+        db.execSQL("CREATE INDEX idx_activitytype_time ON activitytype(time)");
+
+        db.execSQL("CREATE TABLE activityduration (" +
+                " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
+                ", time INTEGER NOT NULL" +
+                ", still INTEGER NOT NULL" +
+                ", walking INTEGER NOT NULL" +
+                ", running INTEGER NOT NULL" +
+                ", onbicycle INTEGER NOT NULL" +
+                ", invehicle INTEGER NOT NULL" +
+                ", unknown INTEGER NOT NULL" + ");");
+        db.execSQL("CREATE INDEX idx_activityduration_time ON activityduration(time)");
+
+        db.execSQL("CREATE TABLE activitylog (" +
+                " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
+                ", start INTEGER NOT NULL" +
+                ", finish INTEGER NOT NULL" +
+                ", activity INTEGER NOT NULL" + ");");
+        db.execSQL("CREATE INDEX idx_activitylog_start ON activitylog(start)");
+        db.execSQL("CREATE INDEX idx_activitylog_finish ON activitylog(finish)");
+        db.execSQL("CREATE INDEX idx_activitylog_activity ON activitylog(activity)");
+
+        db.execSQL("CREATE TABLE step (" +
+                " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
+                ", time INTEGER NOT NULL" +
+                ", count INTEGER NOT NULL" + ");");
+        db.execSQL("CREATE INDEX idx_step_time ON step(time)");
+
+        db.execSQL("CREATE TABLE weather (" +
+                " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
+                ", time INTEGER NOT NULL" +
+                ", provider TEXT NULL" +
+                ", station_id INTEGER NOT NULL" +
+                ", station_type INTEGER NOT NULL" +
+                ", station_name TEXT NULL" +
+                ", station_latitude REAL NULL" +
+                ", station_longitude REAL NULL" +
+                ", latitude REAL NULL" +
+                ", longitude REAL NULL" +
+                ", temperature REAL NULL" +
+                ", humidity REAL NULL" +
+                ", pressure REAL NULL" +
+                ", wind_speed REAL NULL" +
+                ", wind_gust REAL NULL" +
+                ", wind_direction REAL NULL" +
+                ", visibility REAL NULL" +
+                ", rain_1h REAL NULL" +
+                ", rain_today REAL NULL" +
+                ", rain_probability REAL NULL" +
+                ", clouds REAL NULL" +
+                ", ozone REAL NULL" +
+                ", icon TEXT NULL" +
+                ", summary TEXT NULL" +
+                ", created INTEGER NULL" + ");");
+        db.execSQL("CREATE INDEX idx_weather_time ON weather(time)");
+        db.execSQL("CREATE INDEX idx_weather_station_id ON weather(station_id)");
+    }
+}
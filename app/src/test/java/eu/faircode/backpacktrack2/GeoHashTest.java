@@ -0,0 +1,91 @@
+package eu.faircode.backpacktrack2;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GeoHashTest {
+    @Test
+    public void encode() {
+        // https://en.wikipedia.org/wiki/Geohash
+        assertEquals("u4pruydqqvj", GeoHash.encode(57.64911, 10.40744, 11));
+        assertEquals("u4pruydqq", GeoHash.encode(57.64911, 10.40744, GeoHash.PRECISION));
+        assertEquals("ezs42", GeoHash.encode(42.6, -5.6, 5));
+    }
+
+    @Test
+    public void encodeAntimeridian() {
+        assertEquals(GeoHash.encode(10, -180, 9), GeoHash.encode(10, 180, 9));
+        assertEquals(GeoHash.encode(10, -170, 9), GeoHash.encode(10, 190, 9));
+        assertEquals(GeoHash.encode(10, 170, 9), GeoHash.encode(10, -190, 9));
+        assertEquals(GeoHash.encode(10, 5, 9), GeoHash.encode(10, 365, 9));
+    }
+
+    @Test
+    public void encodePoles() {
+        assertEquals("zzzzzzzzz", GeoHash.encode(90, 179.99999, 9));
+        assertEquals("000000000", GeoHash.encode(-90, -180, 9));
+    }
+
+    @Test
+    public void cover() {
+        double latitude = 52.0;
+        double longitude = 5.0;
+        List<String> cells = GeoHash.cover(latitude, longitude, 100);
+        assertFalse(cells.isEmpty());
+        assertTrue(cells.size() <= 4);
+
+        // Points within the radius fall in one of the cells
+        for (int bearing = 0; bearing < 360; bearing += 45) {
+            double dlat = 0.0008 * Math.cos(Math.toRadians(bearing));
+            double dlon = 0.0008 * Math.sin(Math.toRadians(bearing)) / Math.cos(Math.toRadians(latitude));
+            assertCovered(cells, latitude + dlat, longitude + dlon);
+        }
+    }
+
+    @Test
+    public void coverAntimeridian() {
+        // Cells on both sides of the antimeridian
+        List<String> cells = GeoHash.cover(0, 179.9999, 100);
+        assertCovered(cells, 0, 179.9995);
+        assertCovered(cells, 0, -179.9995);
+        assertCovered(cells, 0.0005, -179.9999);
+
+        cells = GeoHash.cover(0, -179.9999, 100);
+        assertCovered(cells, 0, 179.9995);
+        assertCovered(cells, 0, -179.9995);
+    }
+
+    @Test
+    public void coverPoles() {
+        // Circles reaching a pole cannot be narrowed down
+        assertTrue(GeoHash.cover(90, 0, 100).isEmpty());
+        assertTrue(GeoHash.cover(-90, 0, 100).isEmpty());
+        assertTrue(GeoHash.cover(89.9995, 0, 100).isEmpty());
+        assertTrue(GeoHash.cover(-89.9995, 0, 100).isEmpty());
+
+        // Near but not reaching a pole
+        List<String> cells = GeoHash.cover(89.99, 0, 100);
+        assertFalse(cells.isEmpty());
+        assertCovered(cells, 89.99, 0);
+        assertCovered(cells, 89.9908, 0);
+    }
+
+    @Test
+    public void coverLarge() {
+        // Larger than any cell
+        assertTrue(GeoHash.cover(0, 0, 10000 * 1000).isEmpty());
+    }
+
+    private static void assertCovered(List<String> cells, double latitude, double longitude) {
+        String hash = GeoHash.encode(latitude, longitude, GeoHash.PRECISION);
+        for (String cell : cells)
+            if (hash.startsWith(cell))
+                return;
+        throw new AssertionError(latitude + "," + longitude + " hash=" + hash + " not in " + cells);
+    }
+}
@@ -0,0 +1,75 @@
+package eu.faircode.backpacktrack2;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class GeoidTest {
+    private Geoid geoid;
+
+    @Before
+    public void setUp() throws IOException {
+        geoid = Geoid.getInstance(RuntimeEnvironment.application);
+    }
+
+    @Test
+    public void gridPoints() {
+        // Heights of the first and last row of WW15MGH.DAC, in meters
+        assertEquals(13.61, geoid.getOffset(90, 0), 1e-9);
+        assertEquals(-29.53, geoid.getOffset(-90, 0), 1e-9);
+        assertEquals(17.16, geoid.getOffset(0, 0), 1e-9);
+        assertEquals(17.08, geoid.getOffset(0, 0.25), 1e-9);
+        assertEquals(17.19, geoid.getOffset(-0.25, 0), 1e-9);
+    }
+
+    @Test
+    public void interpolated() {
+        // Average of the four surrounding grid points
+        assertEquals((17.16 + 17.08 + 17.19 + 17.15) / 4, geoid.getOffset(-0.125, 0.125), 1e-9);
+        // Half way between two grid points
+        assertEquals((17.16 + 17.08) / 2, geoid.getOffset(0, 0.125), 1e-9);
+        assertEquals((17.16 + 17.19) / 2, geoid.getOffset(-0.125, 0), 1e-9);
+    }
+
+    @Test
+    public void wrapsAtZeroMeridian() {
+        // Between the last column, 359.75E, and the first column
+        assertEquals((17.17 + 17.16) / 2, geoid.getOffset(0, 359.875), 1e-9);
+        assertEquals(geoid.getOffset(0, 359.875), geoid.getOffset(0, -0.125), 1e-9);
+        assertEquals(geoid.getOffset(12.3, 45.6), geoid.getOffset(12.3, 45.6 - 360), 1e-9);
+        assertEquals(geoid.getOffset(12.3, 45.6), geoid.getOffset(12.3, 45.6 + 720), 1e-9);
+    }
+
+    @Test
+    public void antimeridian() {
+        assertEquals(geoid.getOffset(-17.5, 180), geoid.getOffset(-17.5, -180), 1e-9);
+    }
+
+    @Test
+    public void poles() {
+        // Clamped to the first and last row
+        assertEquals(13.61, geoid.getOffset(90, 123), 1e-9);
+        assertEquals(-29.53, geoid.getOffset(-90, -123), 1e-9);
+        assertEquals(13.61, geoid.getOffset(91, 0), 1e-9);
+        assertEquals(-29.53, geoid.getOffset(-91, 0), 1e-9);
+    }
+
+    @Test
+    public void offsets() {
+        double[] latitudes = new double[]{90, 0, -0.125};
+        double[] longitudes = new double[]{0, 0.125, 0};
+        assertArrayEquals(new double[]{
+                geoid.getOffset(90, 0), geoid.getOffset(0, 0.125), geoid.getOffset(-0.125, 0)
+        }, geoid.getOffsets(latitudes, longitudes), 1e-9);
+    }
+}
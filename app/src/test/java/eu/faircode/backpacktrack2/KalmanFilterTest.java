@@ -0,0 +1,104 @@
+package eu.faircode.backpacktrack2;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class KalmanFilterTest {
+    private static final double METERS_PER_DEGREE = 111320;
+    private static final double LATITUDE = 52;
+    private static final double LONGITUDE = 5;
+    private static final long GAP = 60 * 1000L;
+
+    @Test
+    public void convergesStationary() {
+        // Little process noise, as when standing still
+        KalmanFilter filter = new KalmanFilter(0.2, GAP);
+        Random random = new Random(1);
+        for (int i = 0; i < 120; i++)
+            filter.update(i * 1000L,
+                    LATITUDE + 10 * random.nextGaussian() / METERS_PER_DEGREE,
+                    LONGITUDE + 10 * random.nextGaussian() / METERS_PER_DEGREE,
+                    100 + 5 * random.nextGaussian(), 10);
+
+        assertTrue(getDistance(filter, LATITUDE, LONGITUDE) < 5);
+        assertEquals(100, filter.getAltitude(), 5);
+        assertTrue(filter.getSpeed() < 1);
+    }
+
+    @Test
+    public void convergesMoving() {
+        // North at 10 m/s
+        KalmanFilter filter = new KalmanFilter(1, GAP);
+        Random random = new Random(2);
+        double latitude = LATITUDE;
+        for (int i = 0; i < 120; i++) {
+            latitude = LATITUDE + i * 10 / METERS_PER_DEGREE;
+            filter.update(i * 1000L,
+                    latitude + 5 * random.nextGaussian() / METERS_PER_DEGREE,
+                    LONGITUDE + 5 * random.nextGaussian() / METERS_PER_DEGREE,
+                    Double.NaN, 5);
+        }
+
+        assertTrue(getDistance(filter, latitude, LONGITUDE) < 5);
+        assertEquals(10, filter.getSpeed(), 1);
+        assertTrue(Double.isNaN(filter.getAltitude()));
+    }
+
+    @Test
+    public void accurateFixesTrustedMore() {
+        KalmanFilter accurate = converged();
+        KalmanFilter inaccurate = converged();
+        accurate.update(60 * 1000L, LATITUDE + 100 / METERS_PER_DEGREE, LONGITUDE, Double.NaN, 5);
+        inaccurate.update(60 * 1000L, LATITUDE + 100 / METERS_PER_DEGREE, LONGITUDE, Double.NaN, 50);
+        assertTrue(getDistance(inaccurate, LATITUDE, LONGITUDE) < getDistance(accurate, LATITUDE, LONGITUDE));
+    }
+
+    @Test
+    public void unknownAccuracyTrustedLeast() {
+        KalmanFilter known = converged();
+        KalmanFilter nan = converged();
+        KalmanFilter zero = converged();
+        known.update(60 * 1000L, LATITUDE + 100 / METERS_PER_DEGREE, LONGITUDE, Double.NaN, 5);
+        nan.update(60 * 1000L, LATITUDE + 100 / METERS_PER_DEGREE, LONGITUDE, Double.NaN, Float.NaN);
+        zero.update(60 * 1000L, LATITUDE + 100 / METERS_PER_DEGREE, LONGITUDE, Double.NaN, 0);
+
+        double moved = getDistance(known, LATITUDE, LONGITUDE);
+        assertTrue(getDistance(nan, LATITUDE, LONGITUDE) < moved / 10);
+        assertTrue(getDistance(zero, LATITUDE, LONGITUDE) < moved / 10);
+    }
+
+    @Test
+    public void restartsAfterGap() {
+        KalmanFilter filter = converged();
+        filter.update(59 * 1000L + GAP + 1, LATITUDE + 1, LONGITUDE + 1, 200, 10);
+        assertEquals(LATITUDE + 1, filter.getLatitude(), 1e-9);
+        assertEquals(LONGITUDE + 1, filter.getLongitude(), 1e-9);
+        assertEquals(200, filter.getAltitude(), 1e-9);
+        assertEquals(0, filter.getSpeed(), 0);
+    }
+
+    @Test
+    public void restartsOnOlderFix() {
+        KalmanFilter filter = converged();
+        filter.update(0, LATITUDE + 1, LONGITUDE, Double.NaN, 10);
+        assertEquals(LATITUDE + 1, filter.getLatitude(), 1e-9);
+    }
+
+    // A minute of accurate fixes at the same place
+    private static KalmanFilter converged() {
+        KalmanFilter filter = new KalmanFilter(1, GAP);
+        for (int i = 0; i < 60; i++)
+            filter.update(i * 1000L, LATITUDE, LONGITUDE, 100, 5);
+        return filter;
+    }
+
+    private static double getDistance(KalmanFilter filter, double latitude, double longitude) {
+        double dy = (filter.getLatitude() - latitude) * METERS_PER_DEGREE;
+        double dx = (filter.getLongitude() - longitude) * METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude));
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+}
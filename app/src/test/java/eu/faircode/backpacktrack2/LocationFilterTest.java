@@ -0,0 +1,109 @@
+package eu.faircode.backpacktrack2;
+
+import android.location.Location;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class LocationFilterTest {
+    private static Location fix(long time, double latitude, double longitude, float accuracy) {
+        Location location = new Location("test");
+        location.setTime(time);
+        location.setLatitude(latitude);
+        location.setLongitude(longitude);
+        if (accuracy > 0)
+            location.setAccuracy(accuracy);
+        return location;
+    }
+
+    @Test
+    public void accuracy() {
+        LocationFilter.Stage stage = LocationFilter.accuracy("accuracy", 20);
+        assertTrue(stage.accept(null, fix(0, 52, 5, 20)));
+        assertFalse(stage.accept(null, fix(0, 52, 5, 21)));
+        assertFalse(stage.accept(null, fix(0, 52, 5, 0)));
+    }
+
+    @Test
+    public void order() {
+        Location last = fix(1000, 52, 5, 10);
+        assertTrue(LocationFilter.order(false).accept(null, last));
+        assertFalse(LocationFilter.order(true).accept(null, last));
+        assertTrue(LocationFilter.order(true).accept(last, fix(1001, 52, 5, 10)));
+        assertFalse(LocationFilter.order(true).accept(last, fix(1000, 52, 5, 10)));
+    }
+
+    @Test
+    public void nearby() {
+        LocationFilter.Stage stage = LocationFilter.nearby(100);
+        Location last = fix(0, 52, 5, 10);
+        // 0.001 degree of latitude is about 111 meters
+        assertTrue(stage.accept(last, fix(1000, 52.001, 5, 10)));
+        assertFalse(stage.accept(last, fix(1000, 52.0005, 5, 10)));
+        // Nearby but more accurate
+        assertTrue(stage.accept(last, fix(1000, 52.0005, 5, 5)));
+    }
+
+    @Test
+    public void speed() {
+        LocationFilter.Stage stage = LocationFilter.speed(100);
+        Location last = fix(0, 52, 5, 10);
+        // About 111 meters in 10 seconds
+        assertTrue(stage.accept(last, fix(10 * 1000, 52.001, 5, 10)));
+        // About 1.1 kilometers in 1 second
+        assertFalse(stage.accept(last, fix(1000, 52.01, 5, 10)));
+    }
+
+    @Test
+    public void bearingChange() {
+        Location last = fix(0, 52, 5, 10);
+        last.setBearing(350);
+        Location location = fix(1000, 52, 5, 10);
+        location.setBearing(20);
+        assertEquals(30, LocationFilter.getBearingChange(last, location), 0.001);
+        assertTrue(LocationFilter.bearingChange(20).accept(last, location));
+        assertFalse(LocationFilter.bearingChange(40).accept(last, location));
+    }
+
+    @Test
+    public void replay() {
+        LocationFilter filter = new LocationFilter("replay")
+                .add(LocationFilter.accuracy("inaccurate", 50))
+                .add(LocationFilter.order(false))
+                .add(LocationFilter.nearby(100));
+
+        List<Location> locations = new ArrayList<>(Arrays.asList(
+                fix(1000, 52, 5, 10),
+                fix(2000, 52.01, 5, 100), // inaccurate
+                fix(500, 52.01, 5, 10), // older than the last accepted fix
+                fix(3000, 52.0005, 5, 10), // nearby
+                fix(4000, 52.01, 5, 10)));
+
+        String live = LocationFilter.getStatistics();
+        Map<String, LocationFilter.Counter> counters = LocationFilter.replay(filter, locations);
+
+        assertEquals(3, counters.size());
+        assertEquals(4, counters.get("replay.inaccurate").accepted);
+        assertEquals(1, counters.get("replay.inaccurate").rejected);
+        assertEquals(3, counters.get("replay.order").accepted);
+        assertEquals(1, counters.get("replay.order").rejected);
+        assertEquals(2, counters.get("replay.nearby").accepted);
+        assertEquals(1, counters.get("replay.nearby").rejected);
+
+        // Live statistics are not affected
+        assertEquals(live, LocationFilter.getStatistics());
+    }
+}
@@ -0,0 +1,135 @@
+package eu.faircode.backpacktrack2;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StayDetectorTest {
+    private static final double METERS_PER_DEGREE = 111320;
+    private static final double LATITUDE = 52;
+    private static final double LONGITUDE = 5;
+    private static final int RADIUS = 50; // meters
+    private static final long MIN_DWELL = 10 * 60 * 1000L;
+    private static final long MINUTE = 60 * 1000L;
+
+    @Test
+    public void converges() {
+        StayDetector detector = new StayDetector();
+        Random random = new Random(1);
+        for (int i = 0; i <= 30; i++)
+            assertNull(detector.add(i * MINUTE,
+                    LATITUDE + 10 * random.nextGaussian() / METERS_PER_DEGREE,
+                    LONGITUDE + 10 * random.nextGaussian() / METERS_PER_DEGREE / Math.cos(Math.toRadians(LATITUDE)),
+                    100, 10, RADIUS, MIN_DWELL));
+
+        // Left, confirmed by the second fix outside
+        assertNull(detector.add(31 * MINUTE, LATITUDE + 0.01, LONGITUDE, Double.NaN, 10, RADIUS, MIN_DWELL));
+        StayDetector.Stay stay = detector.add(32 * MINUTE, LATITUDE + 0.02, LONGITUDE, Double.NaN, 10, RADIUS, MIN_DWELL);
+
+        assertNotNull(stay);
+        assertEquals(0, stay.start);
+        assertEquals(31 * MINUTE, stay.end);
+        assertEquals(31, stay.count);
+        assertTrue(getDistance(stay, LATITUDE, LONGITUDE) < 5);
+        assertEquals(100, stay.altitude, 1e-6);
+        assertEquals(14, stay.radius, 5); // 10 m in each direction
+        assertTrue(stay.confidence > 0.8);
+    }
+
+    @Test
+    public void shortStayIgnored() {
+        StayDetector detector = new StayDetector();
+        for (int i = 0; i < 5; i++)
+            assertNull(detector.add(i * MINUTE, LATITUDE, LONGITUDE, Double.NaN, 10, RADIUS, MIN_DWELL));
+        assertNull(detector.add(5 * MINUTE, LATITUDE + 0.01, LONGITUDE, Double.NaN, 10, RADIUS, MIN_DWELL));
+        assertNull(detector.add(6 * MINUTE, LATITUDE + 0.02, LONGITUDE, Double.NaN, 10, RADIUS, MIN_DWELL));
+    }
+
+    @Test
+    public void outlierDoesNotSplit() {
+        StayDetector detector = new StayDetector();
+        for (int i = 0; i < 10; i++)
+            assertNull(detector.add(i * MINUTE, LATITUDE, LONGITUDE, Double.NaN, 10, RADIUS, MIN_DWELL));
+        assertNull(detector.add(10 * MINUTE, LATITUDE + 0.01, LONGITUDE, Double.NaN, 10, RADIUS, MIN_DWELL));
+        for (int i = 11; i < 20; i++)
+            assertNull(detector.add(i * MINUTE, LATITUDE, LONGITUDE, Double.NaN, 10, RADIUS, MIN_DWELL));
+
+        assertNull(detector.add(20 * MINUTE, LATITUDE + 0.01, LONGITUDE, Double.NaN, 10, RADIUS, MIN_DWELL));
+        StayDetector.Stay stay = detector.add(21 * MINUTE, LATITUDE + 0.02, LONGITUDE, Double.NaN, 10, RADIUS, MIN_DWELL);
+
+        assertNotNull(stay);
+        assertEquals(0, stay.start);
+        assertEquals(20 * MINUTE, stay.end);
+        assertEquals(19, stay.count);
+        assertTrue(Double.isNaN(stay.altitude));
+        assertTrue(getDistance(stay, LATITUDE, LONGITUDE) < 1);
+        // One outlier in twenty fixes
+        assertEquals(19 / 20f, stay.confidence, 0.01);
+    }
+
+    @Test
+    public void accurateFixesWeighMore() {
+        StayDetector detector = new StayDetector();
+        detector.add(0, LATITUDE, LONGITUDE, Double.NaN, 5, RADIUS, MIN_DWELL);
+        detector.add(MINUTE, LATITUDE + 30 / METERS_PER_DEGREE, LONGITUDE, Double.NaN, 50, RADIUS, MIN_DWELL);
+        StayDetector.Stay stay = leave(detector, 20 * MINUTE);
+
+        assertNotNull(stay);
+        // Weights 1/25 and 1/2500
+        assertEquals(30 / 101d, getDistance(stay, LATITUDE, LONGITUDE), 0.01);
+    }
+
+    @Test
+    public void unknownAccuracyWeighsLeast() {
+        for (float accuracy : new float[]{Float.NaN, 0}) {
+            StayDetector detector = new StayDetector();
+            for (int i = 0; i < 10; i++)
+                detector.add(i * MINUTE, LATITUDE, LONGITUDE, Double.NaN, 5, RADIUS, MIN_DWELL);
+            detector.add(10 * MINUTE, LATITUDE + 30 / METERS_PER_DEGREE, LONGITUDE, Double.NaN, accuracy, RADIUS, MIN_DWELL);
+            StayDetector.Stay stay = leave(detector, 20 * MINUTE);
+
+            assertNotNull(stay);
+            assertEquals(11, stay.count);
+            assertTrue("accuracy=" + accuracy, getDistance(stay, LATITUDE, LONGITUDE) < 0.1);
+        }
+    }
+
+    @Test
+    public void persisted() {
+        StayDetector detector = new StayDetector();
+        StayDetector restored = new StayDetector();
+        ByteBuffer buffer = ByteBuffer.allocate(StayDetector.SIZE + 8);
+
+        for (int i = 0; i < 15; i++)
+            detector.add(i * MINUTE, LATITUDE + i / METERS_PER_DEGREE, LONGITUDE, 100 + i, 10, RADIUS, MIN_DWELL);
+        detector.add(15 * MINUTE, LATITUDE + 0.01, LONGITUDE, Double.NaN, 10, RADIUS, MIN_DWELL);
+        detector.save(buffer, 8);
+        restored.load(buffer, 8);
+
+        StayDetector.Stay expected = detector.add(16 * MINUTE, LATITUDE + 0.02, LONGITUDE, Double.NaN, 10, RADIUS, MIN_DWELL);
+        StayDetector.Stay actual = restored.add(16 * MINUTE, LATITUDE + 0.02, LONGITUDE, Double.NaN, 10, RADIUS, MIN_DWELL);
+        assertNotNull(expected);
+        assertNotNull(actual);
+        assertEquals(expected.toString(), actual.toString());
+        assertEquals(expected.end, actual.end);
+        assertEquals(expected.altitude, actual.altitude, 0);
+    }
+
+    // Two fixes far away end the stay
+    private static StayDetector.Stay leave(StayDetector detector, long time) {
+        detector.add(time, LATITUDE + 0.01, LONGITUDE, Double.NaN, 10, RADIUS, MIN_DWELL);
+        return detector.add(time + MINUTE, LATITUDE + 0.02, LONGITUDE, Double.NaN, 10, RADIUS, MIN_DWELL);
+    }
+
+    private static double getDistance(StayDetector.Stay stay, double latitude, double longitude) {
+        double dy = (stay.latitude - latitude) * METERS_PER_DEGREE;
+        double dx = (stay.longitude - longitude) * METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude));
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+}
@@ -0,0 +1,162 @@
+package eu.faircode.backpacktrack2;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TrackSegmentTest {
+    private static TrackSegment.Trackpoint point(long id, long time, String provider, double latitude, double longitude) {
+        TrackSegment.Trackpoint point = new TrackSegment.Trackpoint();
+        point.id = id;
+        point.time = time;
+        point.provider = provider;
+        point.latitude = latitude;
+        point.longitude = longitude;
+        return point;
+    }
+
+    // Both hemispheres, decreasing IDs and values, missing values and provider changes
+    private static List<TrackSegment.Trackpoint> getPoints() {
+        List<TrackSegment.Trackpoint> points = new ArrayList<>();
+
+        TrackSegment.Trackpoint point = point(100, 1452816000000L, "gps", 52.0912345, 5.1212345);
+        point.altitude = 12.34;
+        point.altitude_type = 1;
+        point.speed = 1.25f;
+        point.bearing = 359.9f;
+        point.accuracy = 4.5f;
+        points.add(point);
+
+        point = point(99, 1452816001000L, "network", -33.8567844, -151.2152967);
+        point.accuracy = 1200f;
+        points.add(point);
+
+        point = point(250, 1452816001000L, null, -33.8567844, 179.9999999);
+        point.altitude = -28.5;
+        point.speed = 0f;
+        points.add(point);
+
+        point = point(251, 1452816061000L, "gps", 89.9999999, -179.9999999);
+        point.altitude = 8848.86;
+        point.altitude_type = 2;
+        point.bearing = 0.1f;
+        points.add(point);
+
+        point = point(252, 1452816062000L, "network", 0, 0);
+        point.altitude_type = 0;
+        points.add(point);
+
+        return points;
+    }
+
+    @Test
+    public void plainRoundTrip() throws IOException {
+        List<TrackSegment.Trackpoint> points = getPoints();
+        List<TrackSegment.Trackpoint> decoded = TrackSegment.decode(TrackSegment.encode(points, TrackSegment.FORMAT_PLAIN));
+
+        assertEquals(points.size(), decoded.size());
+        for (int i = 0; i < points.size(); i++) {
+            TrackSegment.Trackpoint expected = points.get(i);
+            TrackSegment.Trackpoint actual = decoded.get(i);
+            assertEquals(expected.id, actual.id);
+            assertEquals(expected.time, actual.time);
+            assertEquals(expected.provider, actual.provider);
+            assertEquals(expected.latitude, actual.latitude, 0);
+            assertEquals(expected.longitude, actual.longitude, 0);
+            assertEquals(expected.altitude, actual.altitude, 0);
+            assertEquals(expected.altitude_type, actual.altitude_type);
+            assertEquals(expected.speed, actual.speed, 0);
+            assertEquals(expected.bearing, actual.bearing, 0);
+            assertEquals(expected.accuracy, actual.accuracy, 0);
+        }
+    }
+
+    @Test
+    public void deltaRoundTrip() throws IOException {
+        List<TrackSegment.Trackpoint> points = getPoints();
+        List<TrackSegment.Trackpoint> decoded = TrackSegment.decode(TrackSegment.encode(points, TrackSegment.FORMAT_DELTA));
+
+        // Lossy to the resolution of the format
+        assertEquals(points.size(), decoded.size());
+        for (int i = 0; i < points.size(); i++) {
+            TrackSegment.Trackpoint expected = points.get(i);
+            TrackSegment.Trackpoint actual = decoded.get(i);
+            assertEquals(expected.id, actual.id);
+            assertEquals(expected.time, actual.time);
+            assertEquals(expected.provider, actual.provider);
+            assertEquals(expected.latitude, actual.latitude, 1e-7);
+            assertEquals(expected.longitude, actual.longitude, 1e-7);
+            assertEquals(expected.altitude, actual.altitude, 0.01);
+            assertEquals(expected.altitude_type, actual.altitude_type);
+            assertEquals(expected.speed, actual.speed, 0.01);
+            assertEquals(expected.bearing, actual.bearing, 0.1);
+            assertEquals(expected.accuracy, actual.accuracy, 0.1);
+        }
+    }
+
+    @Test
+    public void deltaMissingValues() throws IOException {
+        List<TrackSegment.Trackpoint> decoded = TrackSegment.decode(TrackSegment.encode(getPoints(), TrackSegment.FORMAT_DELTA));
+
+        TrackSegment.Trackpoint point = decoded.get(1);
+        assertTrue(Double.isNaN(point.altitude));
+        assertTrue(Float.isNaN(point.speed));
+        assertTrue(Float.isNaN(point.bearing));
+        assertNull(point.get("altitude"));
+        assertNull(point.get("speed"));
+        assertNull(point.get("bearing"));
+        assertEquals(1200f, (Float) point.get("accuracy"), 0.1);
+
+        point = decoded.get(2);
+        assertNull(point.provider);
+        assertTrue(Float.isNaN(point.accuracy));
+        assertEquals(0f, point.speed, 0);
+    }
+
+    @Test
+    public void deltaSmallerThanPlain() throws IOException {
+        List<TrackSegment.Trackpoint> points = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            TrackSegment.Trackpoint point = point(i, 1452816000000L + i * 1000L, "gps", 52 + i * 1e-5, 5 - i * 1e-5);
+            point.accuracy = 10;
+            points.add(point);
+        }
+        int plain = TrackSegment.encode(points, TrackSegment.FORMAT_PLAIN).length;
+        int delta = TrackSegment.encode(points, TrackSegment.FORMAT_DELTA).length;
+        assertTrue("plain=" + plain + " delta=" + delta, delta * 4 < plain);
+    }
+
+    @Test
+    public void empty() throws IOException {
+        List<TrackSegment.Trackpoint> points = new ArrayList<>();
+        assertTrue(TrackSegment.decode(TrackSegment.encode(points, TrackSegment.FORMAT_PLAIN)).isEmpty());
+        assertTrue(TrackSegment.decode(TrackSegment.encode(points, TrackSegment.FORMAT_DELTA)).isEmpty());
+    }
+
+    @Test
+    public void unknownFormat() {
+        try {
+            TrackSegment.decode(new byte[]{99, 0, 0, 0, 0});
+            fail();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Test
+    public void archivedColumns() {
+        TrackSegment.Trackpoint point = point(7, 1000, "gps", 52, 5);
+        assertEquals(7L, point.get("ID"));
+        assertEquals(7L, point.get("_id"));
+        assertEquals(1000L, point.get("time"));
+        assertEquals(1, point.get("sent"));
+        assertNull(point.get("name"));
+        assertNull(point.get("altitude"));
+    }
+}